@@ -1,6 +1,8 @@
 package com.weikai77.fdb.util;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -13,7 +15,6 @@ import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.async.Future;
 import com.foundationdb.tuple.ByteArrayUtil;
-import com.weikai77.fdb.util.concurrent.DistributedSimpleLock;
 
 /**
  * 
@@ -22,7 +23,7 @@ import com.weikai77.fdb.util.concurrent.DistributedSimpleLock;
  */
 public class ChangeMonitor
 {
-  private static final Logger LOGGER = LoggerFactory.getLogger(DistributedSimpleLock.class);
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChangeMonitor.class);
 
   public static interface ChangeListener
   {
@@ -40,12 +41,13 @@ public class ChangeMonitor
     this._watches = new ConcurrentHashMap<>();
   }
   
-  public void shutdown()
+  public synchronized void shutdown()
   {
     for (Entry<byte[],Set<ChangeListener>> entry : _listeners.entrySet())
     {
       byte[] key = entry.getKey();
-      for (ChangeListener listener : entry.getValue())
+      // copy, since unregistering modifies the set
+      for (ChangeListener listener : new ArrayList<>(entry.getValue()))
       {
         unregisterListener(key, listener);
       }
@@ -97,7 +99,7 @@ public class ChangeMonitor
     }
     else
     {
-      boolean found = listeners.remove(key);
+      boolean found = listeners.remove(listener);
       if (found && listeners.isEmpty())
       {
         // last listener on this key, so cancel the watch loop
@@ -151,8 +153,15 @@ public class ChangeMonitor
         }
       });
       
-      Set<ChangeListener> listeners = _listeners.get(_key);
-      if (listeners != null && !listeners.isEmpty())
+      List<ChangeListener> listeners;
+      synchronized (ChangeMonitor.this)
+      {
+        // copy, since listeners may (un)register while being notified
+        Set<ChangeListener> registered = _listeners.get(_key);
+        listeners = registered == null ? new ArrayList<>() : new ArrayList<>(registered);
+      }
+
+      if (!listeners.isEmpty())
       {
         // notify the listeners
         for (ChangeListener listener : listeners)
@@ -5,7 +5,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.ScheduledExecutorService;
 
 import com.foundationdb.Database;
 import com.foundationdb.FDBException;
@@ -16,6 +15,7 @@ import com.foundationdb.async.Future;
 import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.ByteArrayUtil;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * 
@@ -103,7 +103,7 @@ public class FdbUtils
    * @param key
    * @return
    */
-  public static Watch getAndWatch(Database fdb, ScheduledExecutorService timer, byte[] key)
+  public static Watch getAndWatch(Database fdb, HashedWheelTimer timer, byte[] key)
   {
     return fdb.run(new Function<Transaction, Watch>()
     {
@@ -114,7 +114,7 @@ public class FdbUtils
     });
   }
   
-  public static Watch getAndWatch(Transaction tr, ScheduledExecutorService timer, byte[] key)
+  public static Watch getAndWatch(Transaction tr, HashedWheelTimer timer, byte[] key)
   {
     Future<byte[]> f = tr.get(key);
     Future<Void> watch = tr.watch(key);
@@ -130,7 +130,7 @@ public class FdbUtils
    * @param value
    * @return
    */
-  public static Watch setAndWatch(Database fdb, ScheduledExecutorService timer, byte[] key, byte[] value)
+  public static Watch setAndWatch(Database fdb, HashedWheelTimer timer, byte[] key, byte[] value)
   {
     return fdb.run(new Function<Transaction, Watch>()
     {
@@ -141,7 +141,7 @@ public class FdbUtils
     });
   }
 
-  public static Watch setAndWatch(Transaction tr, ScheduledExecutorService timer, byte[] key, byte[] value)
+  public static Watch setAndWatch(Transaction tr, HashedWheelTimer timer, byte[] key, byte[] value)
   {
     tr.set(key, value);
     Future<Void> watch = tr.watch(key);
@@ -2,12 +2,18 @@ package com.weikai77.fdb.util;
 
 import java.util.Arrays;
 import java.util.Random;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Future;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.HashedWheelTimer.Timeout;
 
 /**
  * A wrapper around FDB's watch functionality.
@@ -20,16 +26,39 @@ public class Watch
   private final byte[] _key;
   private final byte[] _value;
   private final Future<Void> _future;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
+  private final CompletableFuture<Void> _fired;
   private volatile boolean _cancelled = false;
   
   public Watch(byte[] key, byte[] value, Future<Void> future, 
-      ScheduledExecutorService timer)
+      HashedWheelTimer timer)
   {
     this._key = key;
     this._value = value;
     this._future = future;
     this._timer = timer;
+    this._fired = new CompletableFuture<>();
+
+    // bridge the FDB future, the callback runs on FDB's network thread
+    _future.onReady(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (_cancelled)
+        {
+          _fired.cancel(false);
+        }
+        else if (_future.isError())
+        {
+          _fired.completeExceptionally(_future.getError());
+        }
+        else
+        {
+          _fired.complete(null);
+        }
+      }
+    });
   }
   
   public byte[] getKey()
@@ -42,49 +71,136 @@ public class Watch
     return _value;
   }
 
-  public void await()
+  /**
+   * @return the underlying FDB watch, e.g., to combine with other watches
+   */
+  public Future<Void> getFuture()
   {
-    _future.blockUntilReady();
+    return _future;
   }
-  
+
   /**
-   * @return false if timed out, true otherwise
-   * @throws InterruptedException 
+   * @return a future that completes when the watch fires, or completes
+   *         exceptionally with a {@link CancellationException} when the
+   *         watch is cancelled. Dependent actions run on FDB's network
+   *         thread unless attached with one of the async variants.
    */
-  public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+  public CompletableFuture<Void> onFire()
   {
-    // set up a canceller to enforce timeout
-    ScheduledFuture<?> future = _timer.schedule(new Runnable()
+    return _fired;
+  }
+
+  /**
+   * Same as {@link #onFire()}, but the watch is cancelled after the given
+   * timeout.
+   *
+   * @return a future that completes with true if fired, false if timed out,
+   *         or exceptionally if the watch failed or was cancelled otherwise
+   */
+  public CompletableFuture<Boolean> onFire(long timeout, TimeUnit unit)
+  {
+    AtomicBoolean timedOut = new AtomicBoolean();
+    Timeout canceller = _timer.newTimeout(new Runnable()
     {
       @Override
       public void run()
       {
+        timedOut.set(true);
         cancel();
       }
     }, timeout, unit);
 
-    await();
+    CompletableFuture<Boolean> fired = new CompletableFuture<>();
+    _fired.whenComplete(new BiConsumer<Void,Throwable>()
+    {
+      @Override
+      public void accept(Void result, Throwable ex)
+      {
+        canceller.cancel();
+        if (ex == null)
+        {
+          fired.complete(true);
+        }
+        else if (ex instanceof CancellationException && timedOut.get())
+        {
+          fired.complete(false);
+        }
+        else
+        {
+          fired.completeExceptionally(ex);
+        }
+      }
+    });
+    return fired;
+  }
+
+  /**
+   * Waits for the watch to fire or be cancelled. Interrupts are ignored,
+   * see {@link #awaitInterruptibly()}.
+   */
+  public void await()
+  {
+    WatchAwaiter.await(_future, _fired);
+  }
 
-    // This actually does not work today because the interrupt seems
-    // to be swallowed by the preceding await() call. This will 
-    // start to work if/when the FDB folks fix this bug/design flaw.
-    if (Thread.interrupted())
+  /**
+   * Waits for the watch to fire or be cancelled.
+   *
+   * @throws InterruptedException if the current thread is interrupted while
+   *         waiting; the watch is left in place
+   */
+  public void awaitInterruptibly() throws InterruptedException
+  {
+    try
     {
-      // current thread interrupted--cancel the canceller
-      future.cancel(false);
-      throw new InterruptedException();
+      _fired.get();
     }
-    else if (!_cancelled)
+    catch (ExecutionException | CancellationException ex)
     {
-      // received a signal before timeout--cancel the canceller
-      future.cancel(false);
+      // fired with an error, or cancelled
+    }
+  }
+
+  /**
+   * Waits for the watch to fire or be cancelled, or until the timeout
+   * elapses, in which case the watch is cancelled.
+   *
+   * @return false if timed out, true otherwise
+   * @throws InterruptedException if the current thread is interrupted while
+   *         waiting; the watch is left in place
+   * @throws RuntimeException the error of the watch, e.g., an
+   *         {@link com.foundationdb.FDBException}
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    try
+    {
+      _fired.get(timeout, unit);
       return true;
     }
-    else
+    catch (TimeoutException ex)
     {
-      // await was cancelled due to timeout
+      cancel();
       return false;
     }
+    catch (CancellationException ex)
+    {
+      // cancelled by someone else
+      return true;
+    }
+    catch (ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException) cause;
+      }
+      else if (cause instanceof Error)
+      {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Watch failed", cause);
+    }
   }
 
   public void signalAll(Transaction tr)
@@ -105,6 +221,7 @@ public class Watch
   public void cancel()
   {
     _cancelled = true;
+    _fired.cancel(false);
     _future.cancel();
   }
   
@@ -0,0 +1,27 @@
+package com.weikai77.fdb.util;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.foundationdb.async.Future;
+
+/**
+ * Uninterruptible wait on a watch. This is the Java 8 variant, which blocks
+ * in FDB's native future; the multi-release jar overrides it for Java 21
+ * (see src/main/java21).
+ *
+ * @author kwei
+ *
+ */
+class WatchAwaiter
+{
+  private WatchAwaiter() {}
+
+  /**
+   * @param future the FDB watch
+   * @param fired the same watch bridged into a {@link CompletableFuture}
+   */
+  static void await(Future<Void> future, CompletableFuture<Void> fired)
+  {
+    future.blockUntilReady();
+  }
+}
@@ -0,0 +1,208 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A group-commit producer in front of a {@link Queue}.
+ * <p>
+ * Offers from any number of threads are buffered and committed in
+ * batches of up to {@code maxBatchSize} items, one transaction per
+ * batch, and of up to half the transaction size limit in bytes. A batch
+ * is committed as soon as it is full, or once {@code lingerMillis} has
+ * passed since its first item arrived.
+ * <p>
+ * Items from a single thread are committed in the order they were
+ * offered.
+ *
+ * @author kwei
+ *
+ */
+public class BatchingQueueProducer implements QueueProducer
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingQueueProducer.class);
+
+  // half the transaction size limit
+  private static final int MAX_BATCH_BYTES = 5_000_000;
+  private static final long IDLE_WAIT_MILLIS = 100;
+
+  private final Queue _queue;
+  private final int _maxBatchSize;
+  private final long _lingerMillis;
+  private final LinkedBlockingQueue<PendingOffer> _pending;
+  private final ExecutorService _executor;
+  private volatile boolean _shutdown = false;
+
+  public BatchingQueueProducer(Queue queue, int maxBatchSize, long lingerMillis)
+  {
+    _queue = queue;
+    _maxBatchSize = maxBatchSize;
+    _lingerMillis = lingerMillis;
+    _pending = new LinkedBlockingQueue<>();
+    _executor = Executors.newSingleThreadExecutor();
+  }
+
+  public void start()
+  {
+    _executor.submit(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        flushLoop();
+      }
+    });
+  }
+
+  /**
+   * Stops accepting new items. Items already accepted are still committed
+   * before the flusher thread exits.
+   */
+  @Override
+  public void shutdown()
+  {
+    synchronized (this)
+    {
+      _shutdown = true;
+    }
+    _executor.shutdown();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _executor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String getQueueId()
+  {
+    return _queue.getId();
+  }
+
+  @Override
+  public CompletableFuture<Boolean> offer(byte[] item)
+  {
+    PendingOffer offer = new PendingOffer(item);
+    synchronized (this)
+    {
+      if (_shutdown)
+      {
+        throw new IllegalStateException("Producer has been shut down: " + _queue.getId());
+      }
+      _pending.add(offer);
+    }
+    return offer.getFuture();
+  }
+
+  private void flushLoop()
+  {
+    List<PendingOffer> batch = new ArrayList<>(_maxBatchSize);
+    while (!_shutdown || !_pending.isEmpty())
+    {
+      try
+      {
+        PendingOffer first = _pending.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null)
+        {
+          continue;
+        }
+
+        // linger a little to let the batch fill up
+        batch.add(first);
+        long bytes = first.getItem().length;
+        long deadline = System.currentTimeMillis() + _lingerMillis;
+        while (batch.size() < _maxBatchSize && bytes < MAX_BATCH_BYTES)
+        {
+          PendingOffer next = _pending.poll();
+          if (next == null)
+          {
+            long remainingTime = deadline - System.currentTimeMillis();
+            if (remainingTime <= 0)
+            {
+              break;
+            }
+
+            next = _pending.poll(remainingTime, TimeUnit.MILLISECONDS);
+            if (next == null)
+            {
+              break;
+            }
+          }
+          batch.add(next);
+          bytes += next.getItem().length;
+        }
+
+        flush(batch);
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.warn("Flusher interrupted for queue " + _queue.getId());
+        fail(batch, ex);
+        break;
+      }
+      finally
+      {
+        batch.clear();
+      }
+    }
+
+    // only reachable with items left behind if the flusher was interrupted
+    _pending.drainTo(batch);
+    fail(batch, new IllegalStateException("Producer has been shut down: " + _queue.getId()));
+  }
+
+  private static void fail(List<PendingOffer> batch, Throwable ex)
+  {
+    for (PendingOffer offer : batch)
+    {
+      offer.getFuture().completeExceptionally(ex);
+    }
+  }
+
+  private void flush(List<PendingOffer> batch)
+  {
+    List<byte[]> items = new ArrayList<>(batch.size());
+    for (PendingOffer offer : batch)
+    {
+      items.add(offer.getItem());
+    }
+
+    try
+    {
+      int accepted = _queue.offer(items);
+      for (int i=0; i<batch.size(); i++)
+      {
+        batch.get(i).getFuture().complete(i < accepted);
+      }
+    }
+    catch (Exception ex)
+    {
+      LOGGER.error("Error committing batch of " + batch.size() + " items to queue " +
+          _queue.getId(), ex);
+      fail(batch, ex);
+    }
+  }
+
+  private static class PendingOffer
+  {
+    private final byte[] _item;
+    private final CompletableFuture<Boolean> _future;
+
+    public PendingOffer(byte[] item)
+    {
+      _item = item;
+      _future = new CompletableFuture<>();
+    }
+
+    public byte[] getItem() { return _item; }
+    public CompletableFuture<Boolean> getFuture() { return _future; }
+  }
+}
@@ -0,0 +1,28 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes the items of a {@link TypedQueue} straight into, and out of,
+ * buffers.
+ *
+ * @author kwei
+ *
+ */
+public interface Codec<T>
+{
+  /**
+   * Writes the value at the position of the buffer.
+   *
+   * @throws BufferOverflowException if the buffer is too small, in which
+   *         case the value is written again into a larger buffer
+   */
+  void encode(T value, ByteBuffer buffer);
+
+  /**
+   * Reads a value from the remaining bytes of the buffer, which is a view
+   * of the stored item and may be kept by the value.
+   */
+  T decode(ByteBuffer buffer);
+}
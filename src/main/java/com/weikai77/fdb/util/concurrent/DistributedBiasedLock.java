@@ -0,0 +1,719 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import com.foundationdb.Database;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.HashedWheelTimer.Timeout;
+
+/**
+ * A distributed, non-reentrant lock biased towards its last holder, for
+ * locks re-acquired by the same process most of the time.
+ * <p>
+ * Once acquired on FDB, the lock stays owned by this instance after
+ * {@link #release()}, and re-acquiring it is a local operation, without
+ * any transaction. A contender from another instance records itself as the
+ * revoker instead, and signals the owner through a watch: the owner then
+ * hands the lock over to the revoker on FDB, right away if not in use, or
+ * else on its next release, so that a busy owner cannot take the lock back
+ * before the contender had its turn. Other contenders wait until the
+ * revoker is done. A contender that gives up withdraws its request, or
+ * passes the lock on if it was handed over in the meantime. The bias can
+ * also be given up with {@link #releaseBias()}.
+ * <p>
+ * With a TTL, the ownership on FDB expires unless renewed, so that the
+ * lock of a dead process does not stay biased forever. The ownership is
+ * renewed on FDB by an acquire once half of the TTL has elapsed.
+ * <p>
+ * Layout on FDB:
+ * <pre>
+ *    /data         -> {@link BiasData}
+ *    /revoke       -> signalled on revocation requests
+ * </pre>
+ *
+ * @author kwei
+ *
+ */
+public class DistributedBiasedLock
+{
+  private static final String KEY_DATA = "data";
+  private static final String KEY_REVOKE = "revoke";
+
+  private final Database _fdb;
+  private final Subspace _space;
+  private final HashedWheelTimer _timer;
+  private final String _id;
+  private final String _owner;
+  private final long _ttlMillis;
+  private final Clock _clock;
+
+  // derived and cached
+  private final byte[] _dataKey;
+  private final byte[] _revokeKey;
+
+  // guarded by this
+  private boolean _biased = false;
+  private long _expireTime = 0;
+  private boolean _inUse = false;
+  private boolean _revoked = false;
+  private Watch _revokeWatch = null;
+
+  /**
+   * @param ttlMillis TTL of the ownership on FDB, 0 for no TTL
+   */
+  protected DistributedBiasedLock(Database db, Subspace space, HashedWheelTimer timer,
+      String id, String owner, long ttlMillis, Clock clock)
+  {
+    if (ttlMillis < 0)
+    {
+      throw new IllegalArgumentException("Invalid TTL: " + ttlMillis);
+    }
+
+    this._fdb = db;
+    this._space = space;
+    this._timer = timer;
+    this._id = id;
+    this._owner = owner;
+    this._ttlMillis = ttlMillis;
+    this._clock = clock;
+    this._dataKey = _space.pack(Tuple.from(KEY_DATA));
+    this._revokeKey = _space.pack(Tuple.from(KEY_REVOKE));
+  }
+
+  public String getId()
+  {
+    return _id;
+  }
+
+  public void acquire() throws InterruptedException
+  {
+    reserve(-1);
+    try
+    {
+      if (acquireLocally())
+      {
+        return;
+      }
+
+      while (true)
+      {
+        Attempt attempt = acquireOnFdb(true);
+        if (attempt.isAcquired())
+        {
+          return;
+        }
+
+        // wake up when the holder expires, if nothing else happens
+        Watch watch = attempt.getWatch();
+        long expiryDelay = getExpiryDelay(watch);
+        Timeout expiry = expiryDelay < 0 ? null
+            : _timer.newTimeout(watch::cancel, expiryDelay, TimeUnit.MILLISECONDS);
+        try
+        {
+          watch.awaitInterruptibly();
+        }
+        finally
+        {
+          if (expiry != null)
+          {
+            expiry.cancel();
+          }
+          watch.cancel();
+        }
+      }
+    }
+    catch (RuntimeException | InterruptedException ex)
+    {
+      try
+      {
+        abandon();
+      }
+      finally
+      {
+        unreserve();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Acquires the lock if available, without requesting its revocation.
+   */
+  public boolean tryAcquire() throws InterruptedException
+  {
+    return tryAcquire(0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquires the lock if available, requesting its revocation otherwise,
+   * unless the timeout is zero.
+   */
+  public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    long timeoutMillis = unit.toMillis(timeout);
+    if (!reserve(timeoutMillis))
+    {
+      return false;
+    }
+    try
+    {
+      if (acquireLocally())
+      {
+        return true;
+      }
+
+      // no point asking the owner to hand over if not waiting for it
+      boolean revoke = timeoutMillis > 0;
+      while (true)
+      {
+        Attempt attempt = acquireOnFdb(revoke);
+        if (attempt.isAcquired())
+        {
+          return true;
+        }
+
+        Watch watch = attempt.getWatch();
+        try
+        {
+          long elapsedTime = System.currentTimeMillis() - startTime;
+          long remainingTime = timeoutMillis - elapsedTime;
+          if (remainingTime <= 0)
+          {
+            // timed out
+            giveUp();
+            return false;
+          }
+
+          // the holder may expire before the timeout, then try again
+          long expiryDelay = getExpiryDelay(watch);
+          boolean expiring = expiryDelay >= 0 && expiryDelay < remainingTime;
+          boolean timedOut = !watch.await(expiring ? expiryDelay : remainingTime,
+              TimeUnit.MILLISECONDS);
+          if (timedOut && !expiring)
+          {
+            // timed out
+            giveUp();
+            return false;
+          }
+        }
+        finally
+        {
+          watch.cancel();
+        }
+      }
+    }
+    catch (RuntimeException | InterruptedException ex)
+    {
+      giveUp();
+      throw ex;
+    }
+  }
+
+  /**
+   * Releases the lock locally, and on FDB only if revoked in the meantime.
+   */
+  public synchronized void release()
+  {
+    if (!_inUse)
+    {
+      throw new IllegalMonitorStateException("Trying to release a lock not owned");
+    }
+
+    try
+    {
+      if (_revoked)
+      {
+        releaseOnFdb();
+      }
+    }
+    finally
+    {
+      _inUse = false;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Releases the lock on FDB if owned but not in use, e.g., before shutting
+   * down.
+   *
+   * @return false if the lock is in use, true otherwise
+   */
+  public synchronized boolean releaseBias()
+  {
+    if (_inUse)
+    {
+      return false;
+    }
+    if (_biased)
+    {
+      releaseOnFdb();
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the lock is acquired by this instance, as far as known
+   *         locally
+   */
+  public synchronized boolean hasLock()
+  {
+    return _inUse;
+  }
+
+  /**
+   * @return true if the lock is owned by this instance on FDB, in use or not
+   */
+  public synchronized boolean isBiased()
+  {
+    return _biased;
+  }
+
+  /**
+   * Waits for the lock to be free locally, and reserves it for the current
+   * thread.
+   *
+   * @param timeoutMillis -1 to wait indefinitely
+   * @return false if timed out
+   */
+  private synchronized boolean reserve(long timeoutMillis) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (_inUse)
+    {
+      if (timeoutMillis < 0)
+      {
+        wait();
+      }
+      else
+      {
+        long remainingTime = deadline - System.currentTimeMillis();
+        if (remainingTime <= 0)
+        {
+          return false;
+        }
+        wait(remainingTime);
+      }
+    }
+
+    _inUse = true;
+    return true;
+  }
+
+  /**
+   * Acquires the reserved lock without any transaction, if biased and not
+   * due for renewal. A revocation that came in while reserved is honored
+   * first, so that the next acquire on FDB competes with the contender.
+   *
+   * @return true if acquired
+   */
+  private synchronized boolean acquireLocally()
+  {
+    if (_revoked)
+    {
+      releaseOnFdb();
+      return false;
+    }
+
+    return _biased 
+        && (_expireTime <= 0 || _clock.currentTimeMillis() + _ttlMillis / 2 < _expireTime);
+  }
+
+  private synchronized void unreserve()
+  {
+    _inUse = false;
+    notifyAll();
+  }
+
+  /**
+   * Withdraws the revocation request of the reserved lock, and unreserves
+   * it.
+   */
+  private void giveUp()
+  {
+    try
+    {
+      abandon();
+    }
+    finally
+    {
+      unreserve();
+    }
+  }
+
+  /**
+   * Withdraws the revocation request, or passes the lock on if it has been
+   * handed over to us in the meantime.
+   */
+  private void abandon()
+  {
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        BiasData data = getData(tr);
+        if (data == null)
+        {
+          return null;
+        }
+
+        if (_owner.equals(data.getRevoker()))
+        {
+          tr.set(_dataKey, new BiasData(data.getOwner(), data.getExpireTime(), null).toBytes());
+        }
+        else if (_owner.equals(data.getOwner()))
+        {
+          handOff(tr, data);
+        }
+        return null;
+      }
+    });
+    clearBias();
+  }
+
+  /**
+   * @param revoke true to request the revocation of the lock if biased to
+   *        someone else
+   */
+  private Attempt acquireOnFdb(boolean revoke)
+  {
+    Attempt attempt = _fdb.run(new Function<Transaction,Attempt>()
+    {
+      @Override
+      public Attempt apply(Transaction tr)
+      {
+        BiasData data = getData(tr);
+        if (data == null || data.hasExpired(_clock)
+            || (_owner.equals(data.getOwner()) && data.getRevoker() == null))
+        {
+          // free, or biased to me, possibly handed over by the previous owner
+          BiasData bias = new BiasData(_owner, getNewExpireTime(), null);
+          tr.set(_dataKey, bias.toBytes());
+          return new Attempt(true, FdbUtils.getAndWatch(tr, _timer, _revokeKey),
+              bias.getExpireTime());
+        }
+
+        if (_owner.equals(data.getOwner()))
+        {
+          // revoked while biased to me, the revoker goes first
+          handOff(tr, data);
+        }
+        else if (revoke && data.getRevoker() == null)
+        {
+          // ask the owner to hand it over to me
+          tr.set(_dataKey, new BiasData(data.getOwner(), data.getExpireTime(), _owner).toBytes());
+          FdbUtils.signalWatch(tr, _revokeKey);
+        }
+        return new Attempt(false, FdbUtils.getAndWatch(tr, _timer, _dataKey), 0);
+      }
+    });
+
+    if (attempt.isAcquired())
+    {
+      onBiased(attempt.getWatch(), attempt.getExpireTime());
+    }
+    else
+    {
+      clearBias();
+    }
+    return attempt;
+  }
+
+  /**
+   * Gives the lock to the revoker, if any, or frees it otherwise.
+   */
+  private void handOff(Transaction tr, BiasData data)
+  {
+    if (data.getRevoker() == null)
+    {
+      tr.clear(_dataKey);
+    }
+    else
+    {
+      tr.set(_dataKey, new BiasData(data.getRevoker(), getNewExpireTime(), null).toBytes());
+    }
+  }
+
+  private long getNewExpireTime()
+  {
+    return _ttlMillis > 0 ? _clock.currentTimeMillis() + _ttlMillis : 0;
+  }
+
+  private void onBiased(Watch revokeWatch, long expireTime)
+  {
+    synchronized (this)
+    {
+      if (_revokeWatch != null)
+      {
+        _revokeWatch.cancel();
+      }
+      _biased = true;
+      _expireTime = expireTime;
+      _revoked = false;
+      _revokeWatch = revokeWatch;
+    }
+    arm(revokeWatch);
+  }
+
+  private void arm(Watch revokeWatch)
+  {
+    // off FDB's network thread, since the release runs a transaction
+    revokeWatch.onFire().whenCompleteAsync((result, ex) ->
+    {
+      if (ex == null)
+      {
+        onRevoke(revokeWatch);
+      }
+      else if (!(ex instanceof CancellationException))
+      {
+        rearm(revokeWatch);
+      }
+    });
+  }
+
+  /**
+   * Sets a new watch on the revocation requests once the current one has
+   * failed, and honors any request that came in meanwhile.
+   */
+  private void rearm(Watch revokeWatch)
+  {
+    Rearm rearm;
+    try
+    {
+      rearm = _fdb.run(new Function<Transaction,Rearm>()
+      {
+        @Override
+        public Rearm apply(Transaction tr)
+        {
+          BiasData data = getData(tr);
+          if (data == null || !_owner.equals(data.getOwner()))
+          {
+            return null;
+          }
+          return new Rearm(FdbUtils.getAndWatch(tr, _timer, _revokeKey), data.getRevoker() != null);
+        }
+      });
+    }
+    catch (RuntimeException ex)
+    {
+      synchronized (this)
+      {
+        if (revokeWatch == _revokeWatch)
+        {
+          // unwatched, so go through FDB on the next acquire
+          _revoked = true;
+        }
+      }
+      return;
+    }
+
+    synchronized (this)
+    {
+      if (revokeWatch != _revokeWatch)
+      {
+        // stale
+        if (rearm != null)
+        {
+          rearm.getWatch().cancel();
+        }
+        return;
+      }
+
+      if (rearm == null)
+      {
+        // taken over already
+        clearBias();
+        return;
+      }
+      _revokeWatch = rearm.getWatch();
+    }
+
+    arm(rearm.getWatch());
+    if (rearm.isRevoked())
+    {
+      onRevoke(rearm.getWatch());
+    }
+  }
+
+  private synchronized void onRevoke(Watch revokeWatch)
+  {
+    if (revokeWatch != _revokeWatch)
+    {
+      // stale
+      return;
+    }
+
+    if (_inUse)
+    {
+      _revoked = true;
+    }
+    else
+    {
+      releaseOnFdb();
+    }
+  }
+
+  /**
+   * Releases the ownership on FDB, handing it over to the revoker if any,
+   * if not taken over already.
+   */
+  private synchronized void releaseOnFdb()
+  {
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        BiasData data = getData(tr);
+        if (data != null && _owner.equals(data.getOwner()))
+        {
+          handOff(tr, data);
+        }
+        return null;
+      }
+    });
+    clearBias();
+  }
+
+  private synchronized void clearBias()
+  {
+    if (_revokeWatch != null)
+    {
+      _revokeWatch.cancel();
+      _revokeWatch = null;
+    }
+    _biased = false;
+    _expireTime = 0;
+    _revoked = false;
+  }
+
+  /**
+   * @param watch a watch on the lock, owned by someone else
+   * @return the delay until the owner as seen by the watch expires, or -1 if
+   *         it has no TTL
+   */
+  private long getExpiryDelay(Watch watch)
+  {
+    BiasData data = BiasData.fromBytes(watch.getValue());
+    if (data == null || data.getExpireTime() <= 0)
+    {
+      return -1;
+    }
+
+    // expired only once past the expire time
+    return Math.max(data.getExpireTime() + 1 - _clock.currentTimeMillis(), 0);
+  }
+
+  private BiasData getData(Transaction tr)
+  {
+    byte[] bytes = tr.get(_dataKey).get();
+    return bytes == null ? null : BiasData.fromBytes(bytes);
+  }
+
+  private static class Attempt
+  {
+    private final boolean _acquired;
+    private final Watch _watch;
+    private final long _expireTime;
+
+    /**
+     * @param watch on the revocation requests if acquired, on the lock
+     *        otherwise
+     */
+    public Attempt(boolean acquired, Watch watch, long expireTime)
+    {
+      _acquired = acquired;
+      _watch = watch;
+      _expireTime = expireTime;
+    }
+
+    public boolean isAcquired() { return _acquired; }
+    public Watch getWatch() { return _watch; }
+    public long getExpireTime() { return _expireTime; }
+  }
+
+  private static class Rearm
+  {
+    private final Watch _watch;
+    private final boolean _revoked;
+
+    /**
+     * @param revoked true if a revocation is pending
+     */
+    public Rearm(Watch watch, boolean revoked)
+    {
+      _watch = watch;
+      _revoked = revoked;
+    }
+
+    public Watch getWatch() { return _watch; }
+    public boolean isRevoked() { return _revoked; }
+  }
+
+  private static class BiasData
+  {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_OWNER = 1;
+    private static final int IDX_EXPIRE_TIME = 2;
+    private static final int IDX_REVOKER = 3;
+
+    private final int _version;
+    private final String _owner;
+    private final long _expireTime;
+    private final String _revoker;
+
+    /**
+     * @param revoker the contender the owner hands over to, null for none
+     */
+    public BiasData(String owner, long expireTime, String revoker)
+    {
+      this._version = VERSION;
+      this._owner = owner;
+      this._expireTime = expireTime;
+      this._revoker = revoker;
+    }
+
+    public String getOwner() { return _owner; }
+    public long getExpireTime() { return _expireTime; }
+    public String getRevoker() { return _revoker; }
+    public boolean hasExpired(Clock clock) { return _expireTime > 0 && _expireTime < clock.currentTimeMillis(); }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _owner, _expireTime, _revoker).pack();
+    }
+
+    public static BiasData fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        String owner = tuple.getString(IDX_OWNER);
+        long expireTime = tuple.getLong(IDX_EXPIRE_TIME);
+        String revoker = tuple.getString(IDX_REVOKER);
+        return new BiasData(owner, expireTime, revoker);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+}
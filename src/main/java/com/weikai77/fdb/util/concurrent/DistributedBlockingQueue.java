@@ -1,8 +1,9 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -12,10 +13,15 @@ import com.foundationdb.Database;
 import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.concurrent.DistributedBoundedQueue.QueueMeta;
 import com.weikai77.fdb.util.concurrent.DistributedQueue.QueueItem;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * A distributed blocking queue implementation on FDB.
  * <p>
+ * Every operation takes the lock in its own transactions, so none of them
+ * can share the caller's transaction, see {@link TransactionalQueue} and
+ * {@link DistributedBlockingQueueLockFree}.
+ * <p>
  * Layout on FDB:
  * <pre>
  *    /meta             -> {@link QueueMeta}
@@ -40,7 +46,7 @@ public class DistributedBlockingQueue implements BlockingQueue
   private final DistributedCondition _notEmpty;
   private final DistributedCondition _notFull;
   
-  protected DistributedBlockingQueue(Database fdb, ScheduledExecutorService timer, 
+  protected DistributedBlockingQueue(Database fdb, HashedWheelTimer timer, 
       DistributedQueue fifo)
   {
     _fdb = fdb;
@@ -101,6 +107,46 @@ public class DistributedBlockingQueue implements BlockingQueue
     }
   }
 
+  @Override
+  public ByteBuffer pollBuffer()
+  {
+    _lock.acquire();
+    try
+    {
+      ByteBuffer res = _fifo.pollBuffer();
+      if (res != null)
+      {
+        _notFull.signalAll();
+      }
+  
+      return res;
+    }
+    finally
+    {
+      _lock.release();
+    }
+  }
+
+  @Override
+  public List<byte[]> poll(int maxItems)
+  {
+    _lock.acquire();
+    try
+    {
+      List<byte[]> res = _fifo.poll(maxItems);
+      if (!res.isEmpty())
+      {
+        _notFull.signalAll();
+      }
+  
+      return res;
+    }
+    finally
+    {
+      _lock.release();
+    }
+  }
+
   @Override
   public boolean offer(byte[] itemValue)
   {
@@ -123,6 +169,47 @@ public class DistributedBlockingQueue implements BlockingQueue
     }
   }
 
+  @Override
+  public boolean offer(ByteBuffer itemValue)
+  {
+    _lock.acquire();
+    try
+    {
+      if (_fifo.offer(itemValue))
+      {
+        _notEmpty.signalAll();
+        return true;
+      }
+      else
+      {
+        return false;
+      }
+    }
+    finally
+    {
+      _lock.release();
+    }
+  }
+
+  @Override
+  public int offer(List<byte[]> itemValues)
+  {
+    _lock.acquire();
+    try
+    {
+      int count = _fifo.offer(itemValues);
+      if (count > 0)
+      {
+        _notEmpty.signalAll();
+      }
+      return count;
+    }
+    finally
+    {
+      _lock.release();
+    }
+  }
+
   @Override
   public byte[] take() throws InterruptedException
   {
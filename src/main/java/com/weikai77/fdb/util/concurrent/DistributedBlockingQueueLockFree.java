@@ -1,16 +1,22 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.concurrent.ScheduledExecutorService;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import com.foundationdb.Database;
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.ChangeMonitor;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Watch;
 import com.weikai77.fdb.util.concurrent.DistributedBoundedQueue.QueueMeta;
 import com.weikai77.fdb.util.concurrent.DistributedQueue.QueueItem;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * A lock-free implementation of distributed blocking queue on FDB.
@@ -35,7 +41,7 @@ import com.weikai77.fdb.util.concurrent.DistributedQueue.QueueItem;
  * @author kwei
  *
  */
-public class DistributedBlockingQueueLockFree implements BlockingQueue
+public class DistributedBlockingQueueLockFree implements BlockingQueue, TransactionalQueue
 {
   private static final String KEY_WATCHES = "watches";
   private static final String KEY_NOT_EMPTY = "notEmpty";
@@ -43,7 +49,8 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
 
   private final Database _fdb;
   private final DistributedQueue _fifo;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
+  private final ChangeMonitor _changeMonitor;
   private final byte[] _notEmpty;
   private final byte[] _notFull;
   
@@ -51,11 +58,12 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
    * This constructor creates a lock-free instance.
    */
   protected DistributedBlockingQueueLockFree(Database fdb, DistributedQueue fifo,
-      ScheduledExecutorService timer)
+      HashedWheelTimer timer, ChangeMonitor changeMonitor)
   {
     _fdb = fdb;
     _fifo = fifo;
     _timer = timer;
+    _changeMonitor = changeMonitor;
     _notEmpty = _fifo.getSpace().subspace(Tuple.from(KEY_WATCHES, KEY_NOT_EMPTY)).pack();
     _notFull = _fifo.getSpace().subspace(Tuple.from(KEY_WATCHES, KEY_NOT_FULL)).pack();
   }
@@ -66,11 +74,32 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
     return _fifo.getId();
   }
 
+  protected DistributedQueue getFifo()
+  {
+    return _fifo;
+  }
+
+  protected byte[] getNotEmptyKey()
+  {
+    return _notEmpty;
+  }
+
+  protected byte[] getNotFullKey()
+  {
+    return _notFull;
+  }
+
   @Override
   public long size()
   {
     return _fifo.size();
   }
+
+  @Override
+  public long size(Transaction tr)
+  {
+    return _fifo.size(tr);
+  }
   
   @Override
   public long capacity()
@@ -93,17 +122,113 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
   @Override
   public byte[] poll()
   {
-    return _fdb.run(new Function<Transaction,byte[]>()
+    return DistributedQueue.toArray(pollBuffer());
+  }
+
+  @Override
+  public byte[] poll(Transaction tr)
+  {
+    byte[] res = _fifo.poll(tr);
+    if (res != null)
+    {
+      FdbUtils.signalWatch(tr, _notFull);
+    }
+    return res;
+  }
+
+  @Override
+  public ByteBuffer pollBuffer()
+  {
+    while (true)
+    {
+      List<ByteBuffer> res = _fdb.run(new Function<Transaction,List<ByteBuffer>>()
+      {
+        @Override
+        public List<ByteBuffer> apply(Transaction tr)
+        {
+          ByteBuffer item = pollBuffer(tr);
+
+          // null if only expired items were found so far
+          return item != null || _fifo.size(tr) <= 0 ? Collections.singletonList(item) : null;
+        }
+      });
+
+      if (res != null)
+      {
+        return res.get(0);
+      }
+    }
+  }
+
+  @Override
+  public ByteBuffer pollBuffer(Transaction tr)
+  {
+    ByteBuffer res = _fifo.pollBuffer(tr);
+    if (res != null)
+    {
+      FdbUtils.signalWatch(tr, _notFull);
+    }
+    return res;
+  }
+
+  @Override
+  public List<byte[]> poll(int maxItems)
+  {
+    while (true)
+    {
+      List<byte[]> items = _fdb.run(new Function<Transaction,List<byte[]>>()
+      {
+        @Override
+        public List<byte[]> apply(Transaction tr)
+        {
+          List<byte[]> items = poll(tr, maxItems);
+
+          // null if only expired items were found so far
+          return !items.isEmpty() || _fifo.size(tr) <= 0 ? items : null;
+        }
+      });
+
+      if (items != null)
+      {
+        return items;
+      }
+    }
+  }
+
+  @Override
+  public List<byte[]> poll(Transaction tr, int maxItems)
+  {
+    List<byte[]> items = _fifo.poll(tr, maxItems);
+    if (!items.isEmpty())
+    {
+      FdbUtils.signalWatch(tr, _notFull);
+    }
+    return items;
+  }
+
+  /**
+   * Polls up to the given number of items, or, if the queue is empty,
+   * sets a watch on the notEmpty key in the same transaction.
+   * 
+   * @return the items polled, none if only expired items were found, or
+   *         a {@link Watch} if the queue is empty
+   */
+  protected Object pollOrWatch(int maxItems)
+  {
+    return _fdb.run(new Function<Transaction,Object>()
     {
       @Override
-      public byte[] apply(Transaction tr)
+      public Object apply(Transaction tr)
       {
-        byte[] res = _fifo.poll(tr);
-        if (res != null)
+        List<byte[]> items = _fifo.poll(tr, maxItems);
+        if (items.isEmpty())
         {
-          FdbUtils.signalWatch(tr, _notFull);
+          return _fifo.size(tr) <= 0 ? FdbUtils.getAndWatch(tr, _timer, _notEmpty) : items;
         }
-        return res;
+
+        // wake up the blocked producers
+        FdbUtils.signalWatch(tr, _notFull);
+        return items;
       }
     });
   }
@@ -116,7 +241,63 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
       @Override
       public Boolean apply(Transaction tr)
       {
-        if (_fifo.offer(tr, itemValue))
+        return offer(tr, itemValue);
+      }
+    });
+  }
+
+  @Override
+  public boolean offer(Transaction tr, byte[] itemValue)
+  {
+    if (_fifo.offer(tr, itemValue))
+    {
+      FdbUtils.signalWatch(tr, _notEmpty);
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean offer(ByteBuffer itemValue)
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        return offer(tr, itemValue);
+      }
+    });
+  }
+
+  @Override
+  public boolean offer(Transaction tr, ByteBuffer itemValue)
+  {
+    if (_fifo.offer(tr, itemValue))
+    {
+      FdbUtils.signalWatch(tr, _notEmpty);
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  /**
+   * See {@link DistributedQueue#offer(byte[], long, TimeUnit)}.
+   */
+  public boolean offer(byte[] itemValue, long ttl, TimeUnit unit)
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        if (_fifo.offer(tr, itemValue, _fifo.getExpireTime(unit.toMillis(ttl))))
         {
           FdbUtils.signalWatch(tr, _notEmpty);
           return true;
@@ -129,6 +310,91 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
     });
   }
 
+  /**
+   * See {@link DistributedQueue#purgeExpired()}.
+   */
+  public long purgeExpired()
+  {
+    return _fifo.purgeExpired();
+  }
+
+  /**
+   * See {@link DistributedQueue#getStats()}.
+   */
+  public QueueStats getStats()
+  {
+    return _fifo.getStats();
+  }
+
+  @Override
+  public boolean isFull(Transaction tr)
+  {
+    return _fifo.isFull(tr);
+  }
+
+  @Override
+  public Database getDatabase()
+  {
+    return _fdb;
+  }
+
+  @Override
+  public byte[] transfer(TransactionalQueue target)
+  {
+    return transfer(target, UnaryOperator.identity());
+  }
+
+  @Override
+  public byte[] transfer(TransactionalQueue target, UnaryOperator<byte[]> transformer)
+  {
+    return _fdb.run(new Function<Transaction,byte[]>()
+    {
+      @Override
+      public byte[] apply(Transaction tr)
+      {
+        return QueueUtils.transfer(tr, DistributedBlockingQueueLockFree.this, target, transformer);
+      }
+    });
+  }
+
+  /**
+   * Pushes the items of this queue to the given handler, with at most
+   * {@code concurrency} items being handled at a time, instead of
+   * dedicating threads to blocking takes. Items are removed from the queue
+   * before they are handled.
+   */
+  public QueueSubscription subscribe(Consumer<byte[]> handler, int concurrency)
+  {
+    QueueSubscription subscription = new QueueSubscription(this, handler, concurrency,
+        _changeMonitor, _timer);
+    subscription.start();
+    return subscription;
+  }
+
+  @Override
+  public int offer(List<byte[]> itemValues)
+  {
+    return _fdb.run(new Function<Transaction,Integer>()
+    {
+      @Override
+      public Integer apply(Transaction tr)
+      {
+        return offer(tr, itemValues);
+      }
+    });
+  }
+
+  @Override
+  public int offer(Transaction tr, List<byte[]> itemValues)
+  {
+    int count = _fifo.offer(tr, itemValues);
+    if (count > 0)
+    {
+      FdbUtils.signalWatch(tr, _notEmpty);
+    }
+    return count;
+  }
+
   @Override
   public byte[] take() throws InterruptedException
   {
@@ -139,16 +405,21 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
         @Override
         public Object apply(Transaction tr)
         {
-          byte[] item = null;
-          if (_fifo.size(tr) <= 0 || (item = _fifo.poll(tr)) == null)
+          byte[] item = _fifo.poll(tr);
+          if (item != null)
+          {
+            // wake up the blocked producers
+            FdbUtils.signalWatch(tr, _notFull);
+            return item;
+          }
+          else if (_fifo.size(tr) <= 0)
           {
             return FdbUtils.getAndWatch(tr, _timer, _notEmpty);
           }
           else
           {
-            // wake up the blocked producers
-            FdbUtils.signalWatch(tr, _notFull);
-            return item;
+            // only expired items were found so far, poll again
+            return null;
           }
         }
       });
@@ -158,13 +429,13 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
         // got an item from the queue
         return (byte[]) res;
       }
-      else
+      else if (res != null)
       {
         // queue was empty
         Watch watch = (Watch) res;
         try
         {
-          watch.await();
+          watch.awaitInterruptibly();
         }
         finally
         {
@@ -186,16 +457,21 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
         @Override
         public Object apply(Transaction tr)
         {
-          byte[] item = null;
-          if (_fifo.size(tr) <= 0 || (item = _fifo.poll(tr)) == null)
+          byte[] item = _fifo.poll(tr);
+          if (item != null)
+          {
+            // wake up the blocked producers
+            FdbUtils.signalWatch(tr, _notFull);
+            return item;
+          }
+          else if (_fifo.size(tr) <= 0)
           {
             return FdbUtils.getAndWatch(tr, _timer, _notEmpty);
           }
           else
           {
-            // wake up the blocked producers
-            FdbUtils.signalWatch(tr, _notFull);
-            return item;
+            // only expired items were found so far, poll again
+            return null;
           }
         }
       });
@@ -205,7 +481,7 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
         // got an item from the queue
         return (byte[]) res;
       }
-      else
+      else if (res != null)
       {
         // queue was empty
         Watch watch = (Watch) res;
@@ -267,7 +543,7 @@ public class DistributedBlockingQueueLockFree implements BlockingQueue
         // queue was full
         try
         {
-          watch.await();
+          watch.awaitInterruptibly();
         }
         finally
         {
@@ -1,10 +1,18 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.util.Clock;
+import com.weikai77.util.SystemClock;
 
 /**
  * An alternative distributed queue implementation on FDB.
@@ -12,10 +20,21 @@ import com.foundationdb.tuple.Tuple;
  * Layout on FDB:
  * <pre>
  *    /meta         -> {@link QueueMeta}
- *    /items/0      -> {@link QueueItem} 
- *          /1      -> {@link QueueItem} 
+ *    /items/{head} -> {@link QueueItem} 
  *          /...    -> {@link QueueItem} 
+ *          /{tail} -> {@link QueueItem} 
  * </pre>
+ * Items are keyed by absolute offset, so the capacity is only a limit
+ * kept in the meta, and can be changed at any time (see {@link
+ * DistributedQueueMgr#resize(String, long)}). Queues written with offsets
+ * modulo the capacity (meta version 1) are migrated in place by {@link
+ * #migrate()}, in batches of {@link #MIGRATE_BATCH_SIZE} items per
+ * transaction, which {@link DistributedQueueMgr#getQueue(String)} runs
+ * before handing out the queue. Until then, polls and offers fail.
+ * <p>
+ * In ring-buffer mode, an offer to a full queue overwrites the oldest item
+ * and advances the head in the same transaction, so offers never fail and
+ * the storage used never exceeds the capacity.
  * 
  * @author kwei
  *
@@ -24,50 +43,165 @@ public class DistributedBoundedQueue extends DistributedQueue
 {
   private static final String KEY_META = "meta";
 
+  /**
+   * Max number of items moved by a single migration transaction.
+   */
+  public static final int MIGRATE_BATCH_SIZE = 1000;
+
   private final long _capacity;
+  private final boolean _overwrite;
   
   // derived and cached
   private final byte[] _metaKey;
   
   protected DistributedBoundedQueue(Database db, Subspace space, String id, long capacity)
   {
-    super(db, space, id);
+    this(db, space, id, capacity, false);
+  }
+
+  /**
+   * @param capacity the initial capacity, used until the meta is written
+   * @param overwrite true for ring-buffer mode
+   */
+  protected DistributedBoundedQueue(Database db, Subspace space, String id, long capacity,
+      boolean overwrite)
+  {
+    this(db, space, id, capacity, overwrite, 0, SystemClock.getInstance());
+  }
+
+  /**
+   * @param ttl time-to-live of the items in milliseconds, 0 for none
+   */
+  protected DistributedBoundedQueue(Database db, Subspace space, String id, long capacity,
+      boolean overwrite, long ttl, Clock clock)
+  {
+    this(db, space, id, capacity, overwrite, ttl, clock, null);
+  }
+
+  /**
+   * @param statsSpace where to maintain the telemetry, null for none
+   */
+  protected DistributedBoundedQueue(Database db, Subspace space, String id, long capacity,
+      boolean overwrite, long ttl, Clock clock, Subspace statsSpace)
+  {
+    super(db, space, id, ttl, clock, statsSpace);
 
     _capacity = capacity;
+    _overwrite = overwrite;
     _metaKey = _space.subspace(Tuple.from(KEY_META)).pack();
   }
   
+  /**
+   * Reads the head item with a single range read, which skips the holes
+   * left by purges, and then expired items in batches, up to {@link
+   * #MAX_DROPPED_PER_POLL} of them.
+   * 
+   * @return null if the queue is empty, or if only expired items were found
+   */
   @Override
-  public byte[] poll()
+  public ByteBuffer pollBuffer(Transaction tr)
   {
-    return _fdb.run(new Function<Transaction,byte[]>()
+    QueueMeta meta = getMigratedQueueMeta(tr);
+    if (meta == null || meta.isEmpty())
     {
-      @Override
-      public byte[] apply(Transaction tr)
+      return null;
+    }
+    
+    // skip the holes left by purges, and the expired items
+    long now = _clock.currentTimeMillis();
+    ByteBuffer res = null;
+    int dropped = 0;
+    long bytes = 0;
+    byte[] begin = getItemKey(meta.getHeadOffset());
+    byte[] end = getItemKey(meta.getTailOffset());
+    int limit = 1;
+    while (res == null && dropped < MAX_DROPPED_PER_POLL && !meta.isEmpty())
+    {
+      List<KeyValue> kvs = tr.getRange(getItemKey(meta.getHeadOffset()), end, limit).asList()
+          .get();
+      if (kvs.isEmpty())
       {
-        return poll(tr);
+        // only holes left
+        meta.advanceHead(meta.size());
+        break;
       }
-    });
+
+      for (KeyValue kv : kvs)
+      {
+        QueueItem item = QueueItem.fromBytes(kv.getValue());
+        meta.advanceHead(item.getOffset() + 1 - meta.getHeadOffset());
+        clearExpiry(tr, item);
+        bytes += item.getValueSize();
+        if (!item.isExpired(now))
+        {
+          res = item.getValueBuffer();
+          break;
+        }
+        else if (++dropped >= MAX_DROPPED_PER_POLL)
+        {
+          break;
+        }
+      }
+      limit = SKIP_BATCH_SIZE;
+    }
+    tr.clear(begin, getItemKey(meta.getHeadOffset()));
+    tr.set(_metaKey, meta.toBytes());
+    recordRemove(tr, res == null ? 0 : 1, dropped, bytes);
+    return res;
   }
   
   @Override
-  protected byte[] poll(Transaction tr)
+  public List<byte[]> poll(Transaction tr, int maxItems)
   {
-    QueueMeta meta = getQueueMeta(tr);
+    if (maxItems <= 0)
+    {
+      throw new IllegalArgumentException("Invalid max items: " + maxItems);
+    }
+
+    QueueMeta meta = getMigratedQueueMeta(tr);
     if (meta == null || meta.isEmpty())
     {
-      return null;
+      return Collections.emptyList();
+    }
+
+    // the items are contiguous, so a single range read and clear will do,
+    // unless holes or expired items were skipped, up to MAX_DROPPED_PER_POLL
+    // of them
+    long now = _clock.currentTimeMillis();
+    List<byte[]> items = new ArrayList<>(maxItems);
+    int dropped = 0;
+    long skipped = 0;
+    long bytes = 0;
+    while (items.size() < maxItems && skipped < MAX_DROPPED_PER_POLL && !meta.isEmpty())
+    {
+      long count = Math.min(Math.min(maxItems - items.size(), meta.size()),
+          MAX_DROPPED_PER_POLL - skipped);
+      int before = items.size();
+      byte[] begin = getItemKey(meta.getHeadOffset());
+      byte[] end = getItemKey(meta.getHeadOffset() + count);
+      for (KeyValue kv : tr.getRange(begin, end).asList().get())
+      {
+        QueueItem item = QueueItem.fromBytes(kv.getValue());
+        clearExpiry(tr, item);
+        bytes += item.getValueSize();
+        if (item.isExpired(now))
+        {
+          ++dropped;
+        }
+        else
+        {
+          items.add(item.getValue());
+        }
+      }
+      tr.clear(begin, end);
+      meta.advanceHead(count);
+      skipped += count - (items.size() - before);
     }
-    
-    byte[] headKey = getItemKey(meta.getHeadOffset());
-    byte[] headValue = tr.get(headKey).get();
-    QueueItem item = QueueItem.fromBytes(headValue);
-    tr.clear(headKey);
-    meta.advanceHead();
     tr.set(_metaKey, meta.toBytes());
-    return item.getValue();
+    recordRemove(tr, items.size(), dropped, bytes);
+    return items;
   }
-  
+
   @Override
   public boolean offer(byte[] itemValue)
   {
@@ -82,31 +216,118 @@ public class DistributedBoundedQueue extends DistributedQueue
   }
 
   @Override
-  protected boolean offer(Transaction tr, byte[] itemValue)
+  protected boolean offer(Transaction tr, ByteBuffer itemValue, long expireTime)
   {
-    QueueMeta meta = getQueueMeta(tr);
-    if (meta == null)
-    {
-      meta = new QueueMeta(_capacity);
-    }
+    QueueMeta meta = getOrCreateQueueMeta(tr);
 
-    if (meta.isFull())
+    if (meta.isFull() && !_overwrite)
     {
       return false;
     }
 
-    byte[] tailKey = getItemKey(meta.getTailOffset());
-    QueueItem newItem = new QueueItem(meta.getTailOffset(), itemValue);
-    tr.set(tailKey, newItem.toBytes());
-    meta.advanceTail();
+    boolean wasEmpty = meta.isEmpty();
+    Drops drops = new Drops();
+    append(tr, meta, itemValue, expireTime, drops);
     tr.set(_metaKey, meta.toBytes());
+    recordRemove(tr, 0, drops.count, drops.bytes);
+    recordEnqueue(tr, 1, itemValue.remaining(), wasEmpty);
     return true;
   }
-  
+
+  /**
+   * Writes the item at the tail, dropping the oldest items first if the
+   * queue is full.
+   *
+   * @param drops where to count the items dropped
+   */
+  private void append(Transaction tr, QueueMeta meta, ByteBuffer itemValue, long expireTime,
+      Drops drops)
+  {
+    // more than one after the capacity has been shrunk
+    while (meta.isFull())
+    {
+      byte[] headKey = getItemKey(meta.getHeadOffset());
+      QueueItem head = QueueItem.fromBytes(tr.get(headKey).get());
+      if (head != null)
+      {
+        tr.clear(headKey);
+        clearExpiry(tr, head);
+        drops.bytes += head.getValueSize();
+      }
+      meta.advanceHead();
+      ++drops.count;
+    }
+
+    writeItem(tr, meta.getTailOffset(), itemValue, expireTime);
+    meta.advanceTail();
+  }
+
+  @Override
+  public int offer(Transaction tr, List<byte[]> itemValues)
+  {
+    QueueMeta meta = getOrCreateQueueMeta(tr);
+
+    long expireTime = getExpireTime(_ttl);
+    boolean wasEmpty = meta.isEmpty();
+    Drops drops = new Drops();
+    int count = 0;
+    long bytes = 0;
+    for (byte[] itemValue : itemValues)
+    {
+      if (meta.isFull() && !_overwrite)
+      {
+        break;
+      }
+
+      append(tr, meta, ByteBuffer.wrap(itemValue), expireTime, drops);
+      bytes += itemValue.length;
+      ++count;
+    }
+
+    if (count > 0)
+    {
+      tr.set(_metaKey, meta.toBytes());
+      recordRemove(tr, 0, drops.count, drops.bytes);
+      recordEnqueue(tr, count, bytes, wasEmpty);
+    }
+    return count;
+  }
+
   private byte[] getItemKey(long offset)
   {
     return _itemsSpace.pack(offset);
   }
+
+  /**
+   * Purged items leave holes, which still count towards the size until
+   * the head has moved past them. Holes at the head are skipped right away.
+   */
+  @Override
+  protected void purge(Transaction tr, List<Long> offsets)
+  {
+    super.purge(tr, offsets);
+
+    QueueMeta meta = getMigratedQueueMeta(tr);
+    if (meta == null)
+    {
+      return;
+    }
+
+    boolean advanced = false;
+    for (long offset : offsets)
+    {
+      if (offset == meta.getHeadOffset() && !meta.isEmpty())
+      {
+        meta.advanceHead();
+        advanced = true;
+      }
+    }
+
+    if (advanced)
+    {
+      tr.set(_metaKey, meta.toBytes());
+    }
+  }
   
   @Override
   public long size()
@@ -122,7 +343,7 @@ public class DistributedBoundedQueue extends DistributedQueue
   }
   
   @Override
-  protected long size(Transaction tr)
+  public long size(Transaction tr)
   {
     QueueMeta meta = getQueueMeta(tr);
     if (meta == null)
@@ -135,10 +356,40 @@ public class DistributedBoundedQueue extends DistributedQueue
     }
   }
   
+  /**
+   * @return the current capacity, which may have been changed since this
+   *         instance was created
+   */
   @Override
   public long capacity()
   {
-    return _capacity;
+    return _fdb.run(new Function<Transaction,Long>()
+    {
+      @Override
+      public Long apply(Transaction tr)
+      {
+        QueueMeta meta = getQueueMeta(tr);
+        return meta == null ? _capacity : meta.getCapacity();
+      }
+    });
+  }
+
+  public boolean isRingBuffer()
+  {
+    return _overwrite;
+  }
+
+  /**
+   * Changes the capacity. When shrinking below the current size, no item
+   * is dropped: offers fail until enough items have been polled, or, in
+   * ring-buffer mode, the next offer drops the oldest items down to the new
+   * capacity.
+   */
+  protected void resize(Transaction tr, long newCapacity)
+  {
+    QueueMeta meta = getOrCreateQueueMeta(tr);
+    meta.setCapacity(newCapacity);
+    tr.set(_metaKey, meta.toBytes());
   }
   
   @Override
@@ -147,6 +398,9 @@ public class DistributedBoundedQueue extends DistributedQueue
     return size() == 0;
   }
   
+  /**
+   * Always false in ring-buffer mode, since offers never fail.
+   */
   @Override
   public boolean isFull()
   {
@@ -161,8 +415,13 @@ public class DistributedBoundedQueue extends DistributedQueue
   }
   
   @Override
-  protected boolean isFull(Transaction tr)
+  public boolean isFull(Transaction tr)
   {
+    if (_overwrite)
+    {
+      return false;
+    }
+
     QueueMeta meta = getQueueMeta(tr);
     if (meta == null)
     {
@@ -174,48 +433,168 @@ public class DistributedBoundedQueue extends DistributedQueue
     }
   }
 
+  private QueueMeta getOrCreateQueueMeta(Transaction tr)
+  {
+    QueueMeta meta = getMigratedQueueMeta(tr);
+    return meta == null ? new QueueMeta(_capacity) : meta;
+  }
+
   private QueueMeta getQueueMeta(Transaction tr)
   {
     byte[] bytes = tr.get(_metaKey).get();
     return QueueMeta.fromBytes(bytes);
   }
+
+  /**
+   * @throws IllegalStateException if the queue has not been migrated yet,
+   *         see {@link #migrate()}
+   */
+  private QueueMeta getMigratedQueueMeta(Transaction tr)
+  {
+    QueueMeta meta = getQueueMeta(tr);
+    if (meta != null && meta.isMigrating())
+    {
+      throw new IllegalStateException("Queue has not been migrated yet: " + _id);
+    }
+    return meta;
+  }
+
+  /**
+   * Moves the items that have wrapped around to their absolute offsets,
+   * in as many transactions as needed, and does nothing if the queue has
+   * been migrated already. Concurrent migrations conflict on the meta, so
+   * each batch is moved once.
+   */
+  protected void migrate()
+  {
+    boolean done = false;
+    while (!done)
+    {
+      done = _fdb.run(new Function<Transaction,Boolean>()
+      {
+        @Override
+        public Boolean apply(Transaction tr)
+        {
+          return migrate(tr, MIGRATE_BATCH_SIZE);
+        }
+      });
+    }
+  }
+
+  /**
+   * Moves the next batch of wrapped items, and advances the migration
+   * cursor in the meta. The items from the head up to the old capacity are
+   * already in place, and the offsets moved to are all past the old
+   * capacity, so nothing is overwritten.
+   * 
+   * @return true if the migration is complete
+   */
+  private boolean migrate(Transaction tr, int limit)
+  {
+    QueueMeta meta = getQueueMeta(tr);
+    if (meta == null || !meta.isMigrating())
+    {
+      return true;
+    }
+
+    // the capacity cannot change until the migration is complete
+    long capacity = meta.getCapacity();
+    long from = meta.getMigrateFrom();
+    long to = Math.min(from + limit, meta.getMigrateTo());
+    List<KeyValue> kvs = tr.getRange(getItemKey(from), getItemKey(to)).asList().get();
+    for (KeyValue kv : kvs)
+    {
+      QueueItem item = QueueItem.fromBytes(kv.getValue());
+      long offset = item.getOffset() + capacity;
+      QueueItem newItem = new QueueItem(offset, item.getValueBuffer(), item.getExpireTime(),
+          item.getEnqueueTime());
+      tr.set(getItemKey(offset), newItem.toBytes());
+    }
+    tr.clear(getItemKey(from), getItemKey(to));
+
+    meta.setMigrateFrom(to);
+    tr.set(_metaKey, meta.toBytes());
+    return !meta.isMigrating();
+  }
   
+  /**
+   * Items dropped by ring-buffer offers, counted once per transaction.
+   */
+  private static class Drops
+  {
+    int count;
+    long bytes;
+  }
+
+  /**
+   * Version 2 keeps the head as an absolute offset, version 1 kept it
+   * modulo the capacity. A version 1 meta is read as a version 2 meta
+   * with the wrapped items, if any, still to be migrated; the migration
+   * cursor is kept until they all have been.
+   */
   protected static class QueueMeta
   {
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
+    private static final int VERSION_WRAPPED = 1;
     private static final int IDX_VERSION = 0;
     private static final int IDX_CAPCITY = 1;
     private static final int IDX_HEAD_OFFSET = 2;
     private static final int IDX_SIZE = 3;
+    private static final int IDX_MIGRATE_FROM = 4;
+    private static final int IDX_MIGRATE_TO = 5;
 
-    private int _version;
+    private final int _version;
     private long _capacity;
     private long _headOffset;
     private long _size;
 
+    // keys of the wrapped items still to be migrated
+    private long _migrateFrom;
+    private long _migrateTo;
+
     public QueueMeta(long capacity)
     {
       this(capacity, 0, 0);
     }
 
     public QueueMeta(long capacity, long headOffset, long size)
+    {
+      this(capacity, headOffset, size, 0, 0);
+    }
+
+    private QueueMeta(long capacity, long headOffset, long size, long migrateFrom,
+        long migrateTo)
     {
       this._version = VERSION;
       this._capacity = capacity;
       this._headOffset = headOffset;
       this._size = size;
+      this._migrateFrom = migrateFrom;
+      this._migrateTo = migrateTo;
     }
     
+    public long getCapacity() { return _capacity; }
+    public void setCapacity(long capacity) { _capacity = capacity; }
     public long getHeadOffset() { return _headOffset; }
-    public long getTailOffset() { return (_headOffset + _size) % _capacity; }
-    public void advanceHead() { _headOffset = (_headOffset + 1) % _capacity; --_size; }
+    public long getTailOffset() { return _headOffset + _size; }
+    public void advanceHead() { ++_headOffset; --_size; }
+    public void advanceHead(long n) { _headOffset += n; _size -= n; }
     public void advanceTail() { ++_size; }
     public long size() { return _size; }
     public boolean isEmpty() { return _size == 0; }
     public boolean isFull() { return _size >= _capacity; }
+    public boolean isMigrating() { return _migrateFrom < _migrateTo; }
+    public long getMigrateFrom() { return _migrateFrom; }
+    public long getMigrateTo() { return _migrateTo; }
+    public void setMigrateFrom(long migrateFrom) { _migrateFrom = migrateFrom; }
     
     public byte[] toBytes()
     {
+      if (isMigrating())
+      {
+        return Tuple.from(_version, _capacity, _headOffset, _size, _migrateFrom, _migrateTo)
+            .pack();
+      }
       return Tuple.from(_version, _capacity, _headOffset, _size).pack();
     }
 
@@ -233,8 +612,22 @@ public class DistributedBoundedQueue extends DistributedQueue
         long capacity = tuple.getLong(IDX_CAPCITY);
         long headOffset = tuple.getLong(IDX_HEAD_OFFSET);
         long size = tuple.getLong(IDX_SIZE);
+        if (tuple.size() > IDX_MIGRATE_FROM)
+        {
+          long migrateFrom = tuple.getLong(IDX_MIGRATE_FROM);
+          long migrateTo = tuple.getLong(IDX_MIGRATE_TO);
+          return new QueueMeta(capacity, headOffset, size, migrateFrom, migrateTo);
+        }
         return new QueueMeta(capacity, headOffset, size);
       }
+      else if (version == VERSION_WRAPPED)
+      {
+        long capacity = tuple.getLong(IDX_CAPCITY);
+        long headOffset = tuple.getLong(IDX_HEAD_OFFSET);
+        long size = tuple.getLong(IDX_SIZE);
+        long wrapped = headOffset + size - capacity;
+        return new QueueMeta(capacity, headOffset, size, 0, Math.max(wrapped, 0));
+      }
       else
       {
         throw new IllegalArgumentException("Unsupported version: " + version);
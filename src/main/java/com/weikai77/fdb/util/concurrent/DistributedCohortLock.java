@@ -0,0 +1,299 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A distributed lock shared by the threads of a process, where only one
+ * thread per process competes for the distributed lock.
+ * <p>
+ * Threads of the same process queue up on a local fair lock. The first
+ * one acquires the distributed lock, and on release passes it on to the
+ * next local thread waiting, if any, without releasing it on FDB. After
+ * the given number of consecutive handoffs, the distributed lock is
+ * released anyway, so that other processes get their turn. Lock traffic
+ * on FDB is thus per process, rather than per thread.
+ * <p>
+ * The lock is reentrant for the holding thread. Instances are shared per
+ * id by the threads using the same {@link DistributedLockMgr}, see
+ * {@link DistributedLockMgr#getCohortLock(String)}, so a process forms a
+ * single cohort only if it uses a single manager. They interoperate with
+ * the plain distributed lock of the same id used elsewhere.
+ *
+ * @author kwei
+ *
+ */
+public class DistributedCohortLock
+{
+  /**
+   * The distributed lock the cohort competes for.
+   */
+  private static interface GlobalLock
+  {
+    boolean tryAcquire();
+    boolean tryAcquire(long timeoutMillis) throws InterruptedException;
+    void acquire();
+    void release();
+  }
+
+  private final String _id;
+  private final GlobalLock _global;
+  private final int _maxHandoffs;
+  private final ReentrantLock _local;
+
+  // guarded by _local
+  private boolean _globalHeld = false;
+  private int _handoffs = 0;
+
+  /**
+   * @param maxHandoffs max number of consecutive local handoffs
+   */
+  protected DistributedCohortLock(DistributedSimpleLock lock, int maxHandoffs)
+  {
+    this(lock.getId(), new GlobalLock()
+    {
+      @Override
+      public boolean tryAcquire()
+      {
+        return lock.tryAcquire();
+      }
+
+      @Override
+      public boolean tryAcquire(long timeoutMillis) throws InterruptedException
+      {
+        return lock.tryAcquire(timeoutMillis);
+      }
+
+      @Override
+      public void acquire()
+      {
+        lock.acquire();
+      }
+
+      @Override
+      public void release()
+      {
+        lock.release();
+      }
+    }, maxHandoffs);
+  }
+
+  /**
+   * @param maxHandoffs max number of consecutive local handoffs
+   */
+  protected DistributedCohortLock(DistributedReentrantLock lock, int maxHandoffs)
+  {
+    this(lock.getId(), new GlobalLock()
+    {
+      @Override
+      public boolean tryAcquire()
+      {
+        return lock.tryAcquire();
+      }
+
+      @Override
+      public boolean tryAcquire(long timeoutMillis) throws InterruptedException
+      {
+        return lock.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public void acquire()
+      {
+        lock.acquire();
+      }
+
+      @Override
+      public void release()
+      {
+        lock.release();
+      }
+    }, maxHandoffs);
+  }
+
+  private DistributedCohortLock(String id, GlobalLock global, int maxHandoffs)
+  {
+    if (maxHandoffs < 0)
+    {
+      throw new IllegalArgumentException("Invalid max handoffs: " + maxHandoffs);
+    }
+
+    _id = id;
+    _global = global;
+    _maxHandoffs = maxHandoffs;
+    _local = new ReentrantLock(true);
+  }
+
+  public String getId()
+  {
+    return _id;
+  }
+
+  public int getMaxHandoffs()
+  {
+    return _maxHandoffs;
+  }
+
+  public void acquire()
+  {
+    _local.lock();
+    try
+    {
+      if (!_globalHeld)
+      {
+        _global.acquire();
+        onGlobalAcquired();
+      }
+    }
+    catch (RuntimeException ex)
+    {
+      _local.unlock();
+      throw ex;
+    }
+  }
+
+  public boolean tryAcquire()
+  {
+    if (!_local.tryLock())
+    {
+      return false;
+    }
+
+    try
+    {
+      if (!_globalHeld)
+      {
+        if (!_global.tryAcquire())
+        {
+          _local.unlock();
+          return false;
+        }
+        onGlobalAcquired();
+      }
+      return true;
+    }
+    catch (RuntimeException ex)
+    {
+      _local.unlock();
+      throw ex;
+    }
+  }
+
+  public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    long timeoutMillis = unit.toMillis(timeout);
+    boolean locked;
+    try
+    {
+      locked = _local.tryLock(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException ex)
+    {
+      // the lock may have been passed on to us
+      releaseIfIdle();
+      throw ex;
+    }
+
+    if (!locked)
+    {
+      // the lock may have been passed on to us
+      releaseIfIdle();
+      return false;
+    }
+
+    try
+    {
+      if (!_globalHeld)
+      {
+        long remainingTime = timeoutMillis - (System.currentTimeMillis() - startTime);
+        if (!_global.tryAcquire(Math.max(remainingTime, 0)))
+        {
+          _local.unlock();
+          return false;
+        }
+        onGlobalAcquired();
+      }
+      return true;
+    }
+    catch (RuntimeException | InterruptedException ex)
+    {
+      _local.unlock();
+      throw ex;
+    }
+  }
+
+  /**
+   * Passes the lock on to the next local thread waiting, if any and within
+   * the handoff budget, or releases the distributed lock.
+   */
+  public void release()
+  {
+    if (!_local.isHeldByCurrentThread())
+    {
+      throw new IllegalMonitorStateException("Trying to release a lock not owned");
+    }
+
+    try
+    {
+      if (_local.getHoldCount() == 1)
+      {
+        if (_local.hasQueuedThreads() && _handoffs < _maxHandoffs)
+        {
+          ++_handoffs;
+        }
+        else
+        {
+          _global.release();
+          _globalHeld = false;
+        }
+      }
+    }
+    finally
+    {
+      _local.unlock();
+    }
+  }
+
+  public boolean isHeldByCurrentThread()
+  {
+    return _local.isHeldByCurrentThread();
+  }
+
+  /**
+   * @return the number of local threads waiting for the lock, an estimate
+   */
+  public int getQueueLength()
+  {
+    return _local.getQueueLength();
+  }
+
+  private void onGlobalAcquired()
+  {
+    _globalHeld = true;
+    _handoffs = 0;
+  }
+
+  /**
+   * Releases the distributed lock if it was passed on to a thread that
+   * gave up waiting, and no one else is waiting.
+   */
+  private void releaseIfIdle()
+  {
+    if (_local.tryLock())
+    {
+      try
+      {
+        if (_globalHeld && _local.getHoldCount() == 1 && !_local.hasQueuedThreads())
+        {
+          _global.release();
+          _globalHeld = false;
+        }
+      }
+      finally
+      {
+        _local.unlock();
+      }
+    }
+  }
+}
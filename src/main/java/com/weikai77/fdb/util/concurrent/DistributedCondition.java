@@ -1,6 +1,5 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.foundationdb.Database;
@@ -11,6 +10,7 @@ import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * A distributed condition variable implementation on FDB.
@@ -34,7 +34,7 @@ public class DistributedCondition
 
   private final Database _fdb;
   private final Subspace _space;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
   private final String _id;
   
   // optional
@@ -45,13 +45,13 @@ public class DistributedCondition
   private final byte[] _dataKey;
 
   protected DistributedCondition(Database fdb, Subspace space,
-      ScheduledExecutorService timer, String id)
+      HashedWheelTimer timer, String id)
   {
     this(fdb, space, timer, id, null);
   }
   
   protected DistributedCondition(Database fdb, Subspace space,
-      ScheduledExecutorService timer, String id, DistributedSimpleLock lock)
+      HashedWheelTimer timer, String id, DistributedSimpleLock lock)
   {
     this._fdb = fdb;
     this._space = space;
@@ -98,7 +98,7 @@ public class DistributedCondition
       
       try
       {
-        watch.await();
+        watch.awaitInterruptibly();
       }
       finally
       {
@@ -222,6 +222,21 @@ public class DistributedCondition
 
     FdbUtils.signalWatch(_fdb, _watchKey);
   }
+
+  /**
+   * Same as {@link #signalAll()}, within the given transaction, so that the
+   * waiters are woken up only if the transaction commits.
+   */
+  public void signalAll(Transaction tr)
+  {
+    if (_lock != null && !_lock.hasLock(tr))
+    {
+      throw new IllegalMonitorStateException("You do not have the lock associated "
+          + "with this condition variable. Did you acquire the lock before calling me?");
+    }
+
+    FdbUtils.signalWatch(tr, _watchKey);
+  }
   
   private static class ConditionData
   {
@@ -1,6 +1,5 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -14,6 +13,7 @@ import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Watch;
 import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
 import com.weikai77.util.SystemClock;
 
 /**
@@ -36,14 +36,14 @@ public class DistributedCountDownLatch
   private final Database _fdb;
   private final Subspace _space;
   private final String _id;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
 
   // derived and cached
   private final byte[] _dataKey;
   private final byte[] _watchKey;
 
   public DistributedCountDownLatch(Database fdb, Subspace space, 
-      ScheduledExecutorService timer, String id)
+      HashedWheelTimer timer, String id)
   {
     this._fdb = fdb;
     this._space = space;
@@ -65,27 +65,34 @@ public class DistributedCountDownLatch
       @Override
       public Void apply(Transaction tr)
       {
-        CountDownData data = getData(tr);
-        if (data == null)
-        {
-          data = new CountDownData(count);
-        }
-        else
-        {
-          data.setCount(count);
-        }
-        
-        tr.set(_dataKey, data.toBytes());
-        
-        if (count == 0)
-        {
-          FdbUtils.signalWatch(tr, _watchKey);
-        }
-
+        setCount(tr, count);
         return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #setCount(int)}, within the given transaction.
+   */
+  public void setCount(Transaction tr, int count)
+  {
+    CountDownData data = getData(tr);
+    if (data == null)
+    {
+      data = new CountDownData(count);
+    }
+    else
+    {
+      data.setCount(count);
+    }
+
+    tr.set(_dataKey, data.toBytes());
+
+    if (count == 0)
+    {
+      FdbUtils.signalWatch(tr, _watchKey);
+    }
+  }
   
   public int getCount()
   {
@@ -94,11 +101,19 @@ public class DistributedCountDownLatch
       @Override
       public Integer apply(Transaction tr)
       {
-        CountDownData data = getData(tr);
-        return data == null ? 0 : data.getCount();
+        return getCount(tr);
       }
     });
   }
+
+  /**
+   * Same as {@link #getCount()}, within the given transaction.
+   */
+  public int getCount(Transaction tr)
+  {
+    CountDownData data = getData(tr);
+    return data == null ? 0 : data.getCount();
+  }
   
   public void countDown()
   {
@@ -107,24 +122,31 @@ public class DistributedCountDownLatch
       @Override
       public Void apply(Transaction tr)
       {
-        CountDownData data = getData(tr);
-        if (data == null)
-        {
-          return null;
-        }
-
-        data.countDown();
-        tr.set(_dataKey, data.toBytes());
-        
-        if (data.getCount() == 0)
-        {
-          FdbUtils.signalWatch(tr, _watchKey);
-        }
-
+        countDown(tr);
         return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #countDown()}, within the given transaction.
+   */
+  public void countDown(Transaction tr)
+  {
+    CountDownData data = getData(tr);
+    if (data == null)
+    {
+      return;
+    }
+
+    data.countDown();
+    tr.set(_dataKey, data.toBytes());
+
+    if (data.getCount() == 0)
+    {
+      FdbUtils.signalWatch(tr, _watchKey);
+    }
+  }
   
   public void await()
   {
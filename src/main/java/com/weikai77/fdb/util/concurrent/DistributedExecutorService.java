@@ -0,0 +1,1006 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.AsyncUtil;
+import com.foundationdb.async.Function;
+import com.foundationdb.async.Future;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.ByteArrayUtil;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * A distributed {@link java.util.concurrent.ExecutorService} backed by a
+ * {@link DistributedBlockingQueueLockFree}.
+ * <p>
+ * Submitted tasks must be {@link Serializable}. They are serialized into the
+ * task queue and run by the worker threads of any instance sharing the same
+ * queue, on any node. The returned futures complete through watches on the
+ * result keys, without polling.
+ * <p>
+ * A result is removed once collected by its future. Results never
+ * collected, e.g., of futures dropped without a get, are purged by the
+ * workers once older than {@link #RESULT_TTL_MILLIS}, so a future must be
+ * read within that time; {@code invokeAny} discards the results of the
+ * losers right away.
+ * <p>
+ * Tasks are executed at most once: a task taken off the queue by a worker
+ * that then crashes is lost. {@link #shutdown()} and {@link #shutdownNow()}
+ * only affect the local workers; tasks still in the queue are left for the
+ * other nodes.
+ * <p>
+ * Layout on FDB (within the task queue's space):
+ * <pre>
+ *    /items/...          -> {@link TaskData} (see {@link DistributedQueue})
+ *    /results/{taskId}   -> {@link TaskResult}
+ *    /resultExpiry/{expireTime}/{taskId} -> empty, to purge the results
+ * </pre>
+ *
+ * @author kwei
+ *
+ */
+public class DistributedExecutorService extends AbstractExecutorService
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(DistributedExecutorService.class);
+
+  private static final String KEY_RESULTS = "results";
+  private static final String KEY_RESULT_EXPIRY = "resultExpiry";
+  private static final int PURGE_BATCH_SIZE = 100;
+
+  /**
+   * How long results are kept for their futures to collect.
+   */
+  public static final long RESULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  protected final Database _fdb;
+  protected final DistributedBlockingQueueLockFree _queue;
+  protected final HashedWheelTimer _timer;
+  protected final Clock _clock;
+  private final int _workerThreads;
+  private final ExecutorService _workers;
+  private final Set<Watch> _watches = ConcurrentHashMap.newKeySet();
+  private volatile boolean _shutdown = false;
+
+  // derived and cached
+  private final Subspace _resultsSpace;
+  private final Subspace _resultExpirySpace;
+
+  protected DistributedExecutorService(Database fdb, DistributedBlockingQueueLockFree queue,
+      HashedWheelTimer timer, Clock clock, int workerThreads)
+  {
+    _fdb = fdb;
+    _queue = queue;
+    _timer = timer;
+    _clock = clock;
+    _workerThreads = workerThreads;
+    _workers = workerThreads > 0 ? Executors.newFixedThreadPool(workerThreads) : null;
+    _resultsSpace = _queue.getFifo().getSpace().subspace(Tuple.from(KEY_RESULTS));
+    _resultExpirySpace = _queue.getFifo().getSpace().subspace(Tuple.from(KEY_RESULT_EXPIRY));
+  }
+
+  public String getId()
+  {
+    return _queue.getId();
+  }
+
+  protected int getWorkerThreads()
+  {
+    return _workerThreads;
+  }
+
+  /**
+   * Lifecycle method. Starts the local workers, if any.
+   */
+  public void start()
+  {
+    for (int i=0; i<_workerThreads; i++)
+    {
+      _workers.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          workerLoop();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void shutdown()
+  {
+    _shutdown = true;
+    if (_workers != null)
+    {
+      _workers.shutdown();
+    }
+    cancelWatches();
+  }
+
+  /**
+   * Interrupts the local workers. Always returns an empty list, since
+   * queued tasks are shared with the other nodes and stay in the queue.
+   */
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    _shutdown = true;
+    if (_workers != null)
+    {
+      _workers.shutdownNow();
+    }
+    cancelWatches();
+    return Collections.emptyList();
+  }
+
+  /**
+   * Wakes up the idle workers, so that they notice the shutdown.
+   */
+  private void cancelWatches()
+  {
+    for (Watch watch : _watches)
+    {
+      watch.cancel();
+    }
+  }
+
+  @Override
+  public boolean isShutdown()
+  {
+    return _shutdown;
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return _shutdown && (_workers == null || _workers.isTerminated());
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _workers == null ? _shutdown : _workers.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public <T> java.util.concurrent.Future<T> submit(Callable<T> task)
+  {
+    return submitTask(new DistributedTask<T>(newTaskId(), task));
+  }
+
+  @Override
+  public <T> java.util.concurrent.Future<T> submit(Runnable task, T result)
+  {
+    return submitTask(new DistributedTask<T>(newTaskId(), new RunnableCallable<T>(task, result)));
+  }
+
+  @Override
+  public java.util.concurrent.Future<?> submit(Runnable task)
+  {
+    return submit(task, null);
+  }
+
+  private <T> DistributedTask<T> submitTask(DistributedTask<T> future)
+  {
+    submitTask(new TaskData(future.getTaskId(), true, serialize(future.getCallable())));
+    return future;
+  }
+
+  @Override
+  public void execute(Runnable command)
+  {
+    // fire and forget, nobody will ask for the result
+    submitTask(new TaskData(newTaskId(), false, serialize(new RunnableCallable<Void>(command, null))));
+  }
+
+  protected void submitTask(TaskData task)
+  {
+    if (_shutdown)
+    {
+      throw new RejectedExecutionException("Executor has been shut down: " + getId());
+    }
+
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        enqueue(tr, task);
+        return null;
+      }
+    });
+  }
+
+  protected void enqueue(Transaction tr, TaskData task)
+  {
+    _queue.offer(tr, task.toBytes());
+  }
+
+  protected static String newTaskId()
+  {
+    return UUID.randomUUID().toString();
+  }
+
+  protected byte[] getResultKey(String taskId)
+  {
+    return _resultsSpace.pack(taskId);
+  }
+
+  /**
+   * Records the result of a task for its future to collect, purging the
+   * results that have not been collected in time.
+   */
+  protected void setResult(Transaction tr, String taskId, TaskResult result)
+  {
+    long now = _clock.currentTimeMillis();
+    tr.set(getResultKey(taskId), result.toBytes());
+    tr.set(_resultExpirySpace.pack(Tuple.from(now + RESULT_TTL_MILLIS, taskId)), new byte[0]);
+
+    // snapshot read, so that the workers purging at the same time do not
+    // conflict; the entries written meanwhile all expire later
+    byte[] begin = _resultExpirySpace.range().begin;
+    byte[] end = _resultExpirySpace.pack(Tuple.from(now));
+    List<KeyValue> kvs = tr.snapshot().getRange(begin, end, PURGE_BATCH_SIZE).asList().get();
+    for (KeyValue kv : kvs)
+    {
+      tr.clear(getResultKey(_resultExpirySpace.unpack(kv.getKey()).getString(1)));
+    }
+    if (!kvs.isEmpty())
+    {
+      byte[] lastKey = kvs.get(kvs.size()-1).getKey();
+      tr.clear(begin, ByteArrayUtil.join(lastKey, new byte[] {0}));
+    }
+  }
+
+  @Override
+  public <T> List<java.util.concurrent.Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+      throws InterruptedException
+  {
+    return doInvokeAll(tasks, false, 0);
+  }
+
+  @Override
+  public <T> List<java.util.concurrent.Future<T>> invokeAll(Collection<? extends Callable<T>> tasks,
+      long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return doInvokeAll(tasks, true, unit.toMillis(timeout));
+  }
+
+  /**
+   * The default implementation needs futures that run the tasks locally.
+   * The tasks not completed in time are cancelled.
+   */
+  private <T> List<java.util.concurrent.Future<T>> doInvokeAll(
+      Collection<? extends Callable<T>> tasks, boolean timed, long timeoutMillis)
+      throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    List<java.util.concurrent.Future<T>> futures = new ArrayList<>();
+    boolean done = false;
+    try
+    {
+      for (Callable<T> callable : tasks)
+      {
+        futures.add(submitTask(new DistributedTask<T>(newTaskId(), callable)));
+      }
+
+      for (java.util.concurrent.Future<T> future : futures)
+      {
+        try
+        {
+          if (!timed)
+          {
+            future.get();
+          }
+          else
+          {
+            long remainingTime = timeoutMillis - (System.currentTimeMillis() - startTime);
+            if (remainingTime <= 0)
+            {
+              return futures;
+            }
+            future.get(remainingTime, TimeUnit.MILLISECONDS);
+          }
+        }
+        catch (ExecutionException | CancellationException ex)
+        {
+          // reported by the future
+        }
+        catch (TimeoutException ex)
+        {
+          return futures;
+        }
+      }
+      done = true;
+      return futures;
+    }
+    finally
+    {
+      if (!done)
+      {
+        for (java.util.concurrent.Future<T> future : futures)
+        {
+          future.cancel(true);
+        }
+      }
+    }
+  }
+
+  @Override
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+      throws InterruptedException, ExecutionException
+  {
+    try
+    {
+      return doInvokeAny(tasks, false, 0);
+    }
+    catch (TimeoutException ex)
+    {
+      // this should never happen
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
+  public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    return doInvokeAny(tasks, true, unit.toMillis(timeout));
+  }
+
+  /**
+   * The default implementation hands wrapped tasks to {@link #execute(Runnable)},
+   * which cannot be serialized, so we wait on all the result keys ourselves.
+   */
+  private <T> T doInvokeAny(Collection<? extends Callable<T>> tasks, boolean timed, long timeoutMillis)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    if (tasks.isEmpty())
+    {
+      throw new IllegalArgumentException("No tasks to invoke");
+    }
+
+    long startTime = System.currentTimeMillis();
+    List<DistributedTask<T>> pending = new ArrayList<>();
+    try
+    {
+      for (Callable<T> callable : tasks)
+      {
+        pending.add(submitTask(new DistributedTask<T>(newTaskId(), callable)));
+      }
+
+      ExecutionException lastError = null;
+      while (true)
+      {
+        List<Future<Void>> watches = new ArrayList<>();
+        for (DistributedTask<T> task : new ArrayList<>(pending))
+        {
+          Watch watch = task.pollResult();
+          if (watch == null)
+          {
+            try
+            {
+              return task.get();
+            }
+            catch (ExecutionException ex)
+            {
+              lastError = ex;
+              pending.remove(task);
+            }
+          }
+          else
+          {
+            watches.add(watch.getFuture());
+          }
+        }
+
+        if (pending.isEmpty())
+        {
+          throw lastError;
+        }
+
+        Watch any = new Watch(null, null, AsyncUtil.whenAny(watches), _timer);
+        try
+        {
+          if (!timed)
+          {
+            any.awaitInterruptibly();
+          }
+          else
+          {
+            long remainingTime = timeoutMillis - (System.currentTimeMillis() - startTime);
+            if (remainingTime <= 0 || !any.await(remainingTime, TimeUnit.MILLISECONDS))
+            {
+              throw new TimeoutException();
+            }
+          }
+        }
+        finally
+        {
+          for (Future<Void> watch : watches)
+          {
+            watch.cancel();
+          }
+        }
+      }
+    }
+    finally
+    {
+      // nobody will collect the results of the losers
+      for (DistributedTask<T> task : pending)
+      {
+        task.discard();
+      }
+    }
+  }
+
+  private void workerLoop()
+  {
+    while (!_shutdown)
+    {
+      try
+      {
+        TaskData task = takeTask();
+        if (task != null)
+        {
+          runTask(task);
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.info("Worker interrupted for executor " + getId());
+        break;
+      }
+      catch (Exception ex)
+      {
+        LOGGER.error("Error running task for executor " + getId(), ex);
+      }
+    }
+  }
+
+  /**
+   * Takes the next task that has not been cancelled, or waits for one.
+   */
+  private TaskData takeTask() throws InterruptedException
+  {
+    Object res = _fdb.run(new Function<Transaction,Object>()
+    {
+      @Override
+      public Object apply(Transaction tr)
+      {
+        while (true)
+        {
+          byte[] item = _queue.poll(tr);
+          if (item == null)
+          {
+            return FdbUtils.getAndWatch(tr, _timer, _queue.getNotEmptyKey());
+          }
+
+          TaskData task = TaskData.fromBytes(item);
+          byte[] resultKey = getResultKey(task.getTaskId());
+          TaskResult result = TaskResult.fromBytes(tr.get(resultKey).get());
+          if (result != null && result.isCancelled())
+          {
+            // cancelled while in the queue, consume the marker and move on
+            tr.clear(resultKey);
+            continue;
+          }
+          return task;
+        }
+      }
+    });
+
+    if (res instanceof TaskData)
+    {
+      return (TaskData) res;
+    }
+    else
+    {
+      // cancelled by shutdown(), if still waiting by then
+      Watch watch = (Watch) res;
+      _watches.add(watch);
+      try
+      {
+        if (!_shutdown)
+        {
+          watch.awaitInterruptibly();
+        }
+        return null;
+      }
+      finally
+      {
+        _watches.remove(watch);
+        watch.cancel();
+      }
+    }
+  }
+
+  private void runTask(TaskData task)
+  {
+    TaskResult result;
+    try
+    {
+      Callable<?> callable = (Callable<?>) deserialize(task.getPayload());
+      Object value = callable.call();
+      result = new TaskResult(TaskResult.STATUS_SUCCESS, serialize(value));
+    }
+    catch (Throwable ex)
+    {
+      LOGGER.debug("Task " + task.getTaskId() + " failed", ex);
+      result = new TaskResult(TaskResult.STATUS_FAILURE, serializeQuietly(ex));
+    }
+
+    try
+    {
+      completeTask(task, result);
+    }
+    catch (RuntimeException ex)
+    {
+      // e.g. a result too large for FDB; fail the future rather than
+      // leaving it waiting forever
+      LOGGER.warn("Failed to record the result of task " + task.getTaskId(), ex);
+      completeTask(task, new TaskResult(TaskResult.STATUS_FAILURE, serializeQuietly(
+          new IllegalStateException("Failed to record the result of task " + task.getTaskId(), ex))));
+    }
+  }
+
+  private void completeTask(TaskData task, TaskResult result)
+  {
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        byte[] resultKey = getResultKey(task.getTaskId());
+        TaskResult prev = TaskResult.fromBytes(tr.get(resultKey).get());
+        if (prev != null && prev.isCancelled())
+        {
+          // cancelled while running, consume the marker
+          tr.clear(resultKey);
+        }
+        else if (task.wantsResult())
+        {
+          // setting the key also fires the watch of the waiting future
+          setResult(tr, task.getTaskId(), result);
+        }
+
+        onTaskCompleted(tr, task, result);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Hook for subclasses, invoked in the same transaction that records
+   * the result of the task.
+   */
+  protected void onTaskCompleted(Transaction tr, TaskData task, TaskResult result)
+  {
+  }
+
+  protected static byte[] serialize(Object obj)
+  {
+    if (obj != null && !(obj instanceof Serializable))
+    {
+      throw new RejectedExecutionException("Not serializable: " + obj.getClass().getName());
+    }
+
+    try
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(obj);
+      out.close();
+      return bytes.toByteArray();
+    }
+    catch (IOException ex)
+    {
+      throw new RejectedExecutionException("Failed to serialize " + obj.getClass().getName(), ex);
+    }
+  }
+
+  private static byte[] serializeQuietly(Throwable ex)
+  {
+    try
+    {
+      return serialize(ex);
+    }
+    catch (RejectedExecutionException ex2)
+    {
+      // the exception carries something not serializable
+      return serialize(new RuntimeException(ex.toString()));
+    }
+  }
+
+  protected static Object deserialize(byte[] bytes)
+  {
+    try
+    {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      return in.readObject();
+    }
+    catch (IOException | ClassNotFoundException ex)
+    {
+      throw new IllegalArgumentException("Failed to deserialize", ex);
+    }
+  }
+
+  /**
+   * A future whose task runs on whichever node takes it off the queue.
+   */
+  protected class DistributedTask<T> implements java.util.concurrent.Future<T>
+  {
+    private final String _taskId;
+    private final Callable<T> _callable;
+    private final byte[] _resultKey;
+    private volatile TaskResult _result;
+
+    public DistributedTask(String taskId, Callable<T> callable)
+    {
+      _taskId = taskId;
+      _callable = callable;
+      _resultKey = getResultKey(taskId);
+    }
+
+    public String getTaskId() { return _taskId; }
+    public Callable<T> getCallable() { return _callable; }
+
+    /**
+     * Cancels the task if it has not completed yet. A task that is already
+     * running on some worker is not interrupted, but its result is discarded.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+      if (_result != null)
+      {
+        return false;
+      }
+
+      boolean cancelled = _fdb.run(new Function<Transaction,Boolean>()
+      {
+        @Override
+        public Boolean apply(Transaction tr)
+        {
+          return cancel(tr);
+        }
+      });
+
+      if (cancelled)
+      {
+        _result = new TaskResult(TaskResult.STATUS_CANCELLED, new byte[0]);
+      }
+      return cancelled;
+    }
+
+    /**
+     * Leaves a cancel marker in place of the result, for the worker
+     * that takes the task to consume.
+     */
+    protected boolean cancel(Transaction tr)
+    {
+      if (tr.get(_resultKey).get() != null)
+      {
+        // already completed
+        return false;
+      }
+
+      tr.set(_resultKey, new TaskResult(TaskResult.STATUS_CANCELLED, new byte[0]).toBytes());
+      return true;
+    }
+
+    /**
+     * Cancels the task if it has not completed yet, or removes its result
+     * otherwise, for a future nobody will read.
+     */
+    protected void discard()
+    {
+      if (_result != null)
+      {
+        // collected already
+        return;
+      }
+
+      _fdb.run(new Function<Transaction,Void>()
+      {
+        @Override
+        public Void apply(Transaction tr)
+        {
+          if (!cancel(tr))
+          {
+            TaskResult result = TaskResult.fromBytes(tr.get(_resultKey).get());
+            if (!result.isCancelled())
+            {
+              tr.clear(_resultKey);
+            }
+          }
+          return null;
+        }
+      });
+      _result = new TaskResult(TaskResult.STATUS_CANCELLED, new byte[0]);
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return _result != null && _result.isCancelled();
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return _result != null || FdbUtils.get(_fdb, _resultKey) != null;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+      while (_result == null)
+      {
+        Watch watch = pollResult();
+        if (watch != null)
+        {
+          try
+          {
+            watch.awaitInterruptibly();
+          }
+          finally
+          {
+            watch.cancel();
+          }
+        }
+      }
+      return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+      long startTime = System.currentTimeMillis();
+      long timeoutMillis = unit.toMillis(timeout);
+      while (_result == null)
+      {
+        Watch watch = pollResult();
+        if (watch != null)
+        {
+          try
+          {
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            long remainingTime = timeoutMillis - elapsedTime;
+            if (remainingTime <= 0 || !watch.await(remainingTime, TimeUnit.MILLISECONDS))
+            {
+              throw new TimeoutException();
+            }
+          }
+          finally
+          {
+            watch.cancel();
+          }
+        }
+      }
+      return report();
+    }
+
+    /**
+     * Collects the result if it is available, consuming the result key.
+     *
+     * @return null if the result has been collected, or a watch on the
+     *         result key otherwise
+     */
+    protected Watch pollResult()
+    {
+      if (_result != null)
+      {
+        return null;
+      }
+
+      Object res = _fdb.run(new Function<Transaction,Object>()
+      {
+        @Override
+        public Object apply(Transaction tr)
+        {
+          byte[] value = tr.get(_resultKey).get();
+          if (value == null)
+          {
+            return new Watch(_resultKey, null, tr.watch(_resultKey), _timer);
+          }
+
+          TaskResult result = TaskResult.fromBytes(value);
+          if (!result.isCancelled())
+          {
+            // cancel markers are left for the worker to consume
+            tr.clear(_resultKey);
+          }
+          return result;
+        }
+      });
+
+      if (res instanceof TaskResult)
+      {
+        _result = (TaskResult) res;
+        return null;
+      }
+      else
+      {
+        return (Watch) res;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T report() throws ExecutionException
+    {
+      TaskResult result = _result;
+      if (result.isCancelled())
+      {
+        throw new CancellationException("Task cancelled: " + _taskId);
+      }
+      else if (result.isFailure())
+      {
+        throw new ExecutionException((Throwable) deserialize(result.getPayload()));
+      }
+      else
+      {
+        return (T) deserialize(result.getPayload());
+      }
+    }
+  }
+
+  protected static class RunnableCallable<T> implements Callable<T>, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Runnable _runnable;
+    private final T _value;
+
+    public RunnableCallable(Runnable runnable, T value)
+    {
+      _runnable = runnable;
+      _value = value;
+    }
+
+    @Override
+    public T call()
+    {
+      _runnable.run();
+      return _value;
+    }
+  }
+
+  protected static class TaskData
+  {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_TASK_ID = 1;
+    private static final int IDX_WANTS_RESULT = 2;
+    private static final int IDX_PAYLOAD = 3;
+
+    private final int _version;
+    private final String _taskId;
+    private final boolean _wantsResult;
+    private final byte[] _payload;
+
+    public TaskData(String taskId, boolean wantsResult, byte[] payload)
+    {
+      this._version = VERSION;
+      this._taskId = taskId;
+      this._wantsResult = wantsResult;
+      this._payload = payload;
+    }
+
+    public String getTaskId() { return _taskId; }
+    public boolean wantsResult() { return _wantsResult; }
+    public byte[] getPayload() { return _payload; }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _taskId, _wantsResult ? 1 : 0, _payload).pack();
+    }
+
+    public static TaskData fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        String taskId = tuple.getString(IDX_TASK_ID);
+        boolean wantsResult = tuple.getLong(IDX_WANTS_RESULT) != 0;
+        byte[] payload = tuple.getBytes(IDX_PAYLOAD);
+        return new TaskData(taskId, wantsResult, payload);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+
+  protected static class TaskResult
+  {
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_FAILURE = 1;
+    public static final int STATUS_CANCELLED = 2;
+
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_STATUS = 1;
+    private static final int IDX_PAYLOAD = 2;
+
+    private final int _version;
+    private final int _status;
+    private final byte[] _payload;
+
+    public TaskResult(int status, byte[] payload)
+    {
+      this._version = VERSION;
+      this._status = status;
+      this._payload = payload;
+    }
+
+    public boolean isFailure() { return _status == STATUS_FAILURE; }
+    public boolean isCancelled() { return _status == STATUS_CANCELLED; }
+    public byte[] getPayload() { return _payload; }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _status, _payload).pack();
+    }
+
+    public static TaskResult fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        int status = (int) tuple.getLong(IDX_STATUS);
+        byte[] payload = tuple.getBytes(IDX_PAYLOAD);
+        return new TaskResult(status, payload);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+}
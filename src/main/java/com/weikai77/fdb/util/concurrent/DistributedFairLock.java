@@ -0,0 +1,560 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.HashedWheelTimer.Timeout;
+
+/**
+ * A distributed, non-reentrant, first-come first-served lock on FDB.
+ * <p>
+ * Waiters queue up by ticket number. On release, the lock is handed over
+ * directly to the first waiter, by making it the holder and clearing its
+ * entry in the queue, which wakes up that waiter only. There is thus no
+ * race between waiters to re-acquire the lock, and no starvation.
+ * <p>
+ * A lock acquired with a TTL is handed over to the next waiter once the
+ * TTL expires, by whichever waiter notices it first; waiters arm a local
+ * timer for the expire time of the holder. A waiter that dies while
+ * queued is handed the lock eventually, so waiters that may die should
+ * use a TTL.
+ * <p>
+ * Layout on FDB:
+ * <pre>
+ *    /holder           -> {@link HolderData}
+ *    /next             -> next ticket number
+ *    /waiters/{ticket} -> {@link WaiterData}
+ * </pre>
+ *
+ * @author kwei
+ *
+ */
+public class DistributedFairLock
+{
+  private static final String KEY_HOLDER = "holder";
+  private static final String KEY_NEXT = "next";
+  private static final String KEY_WAITERS = "waiters";
+
+  private final Database _fdb;
+  private final Subspace _space;
+  private final HashedWheelTimer _timer;
+  private final String _id;
+  private final String _owner;
+  private final Clock _clock;
+
+  // derived and cached
+  private final byte[] _holderKey;
+  private final byte[] _nextKey;
+  private final Subspace _waitersSpace;
+
+  protected DistributedFairLock(Database db, Subspace space, HashedWheelTimer timer,
+      String id, String owner, Clock clock)
+  {
+    this._fdb = db;
+    this._space = space;
+    this._timer = timer;
+    this._id = id;
+    this._owner = owner;
+    this._clock = clock;
+    this._holderKey = _space.pack(Tuple.from(KEY_HOLDER));
+    this._nextKey = _space.pack(Tuple.from(KEY_NEXT));
+    this._waitersSpace = _space.subspace(Tuple.from(KEY_WAITERS));
+  }
+
+  public String getId()
+  {
+    return _id;
+  }
+
+  /**
+   * Acquires the lock only if free and no one is waiting.
+   */
+  public boolean tryAcquire()
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        return tryAcquire(tr);
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #tryAcquire()}, within the given transaction.
+   */
+  public boolean tryAcquire(Transaction tr)
+  {
+    return acquireIfAvailable(tr, 0);
+  }
+
+  /**
+   * Same as {@link #tryAcquire()}, within the given transaction.
+   *
+   * @param ttlMillis 0 for no TTL
+   */
+  public boolean acquireIfAvailable(Transaction tr, long ttlMillis)
+  {
+    HolderData holder = getHolder(tr);
+    if (holder != null && holder.hasExpired(_clock))
+    {
+      handOff(tr);
+      holder = getHolder(tr);
+    }
+
+    if (holder == null)
+    {
+      // no one is waiting either
+      setHolder(tr, _owner, ttlMillis);
+      return true;
+    }
+    else
+    {
+      return false;
+    }
+  }
+
+  public boolean tryAcquire(long timeoutMillis) throws InterruptedException
+  {
+    return tryAcquire(timeoutMillis, 0);
+  }
+
+  /**
+   * Waits in line for the lock, for up to the given timeout.
+   *
+   * @param ttlMillis 0 for no TTL
+   */
+  public boolean tryAcquire(long timeoutMillis, long ttlMillis) throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    Turn turn = enqueue(ttlMillis);
+    try
+    {
+      while (!turn.isAcquired())
+      {
+        Watch watch = turn.getWatch();
+        try
+        {
+          long elapsedTime = System.currentTimeMillis() - startTime;
+          long remainingTime = timeoutMillis - elapsedTime;
+          if (remainingTime <= 0)
+          {
+            // timed out, unless handed the lock in the meantime
+            return dequeue(turn.getTicket());
+          }
+
+          // the holder may expire before the timeout, then check again
+          long expiryDelay = getExpiryDelay(turn.getHolderExpireTime());
+          boolean expiring = expiryDelay >= 0 && expiryDelay < remainingTime;
+          boolean timedOut = !watch.await(expiring ? expiryDelay : remainingTime,
+              TimeUnit.MILLISECONDS);
+          if (timedOut && !expiring)
+          {
+            // timed out, unless handed the lock in the meantime
+            return dequeue(turn.getTicket());
+          }
+        }
+        finally
+        {
+          watch.cancel();
+        }
+
+        turn = checkTurn(turn.getTicket(), ttlMillis);
+      }
+      return true;
+    }
+    catch (RuntimeException | InterruptedException ex)
+    {
+      if (dequeue(turn.getTicket()))
+      {
+        release();
+      }
+      throw ex;
+    }
+  }
+
+  public void acquire()
+  {
+    acquire(0);
+  }
+
+  /**
+   * Waits in line for the lock.
+   *
+   * @param ttlMillis 0 for no TTL
+   */
+  public void acquire(long ttlMillis)
+  {
+    Turn turn = enqueue(ttlMillis);
+    while (!turn.isAcquired())
+    {
+      // wake up when the holder expires, if nothing else happens
+      Watch watch = turn.getWatch();
+      long expiryDelay = getExpiryDelay(turn.getHolderExpireTime());
+      Timeout expiry = expiryDelay < 0 ? null
+          : _timer.newTimeout(watch::cancel, expiryDelay, TimeUnit.MILLISECONDS);
+      try
+      {
+        watch.await();
+      }
+      finally
+      {
+        if (expiry != null)
+        {
+          expiry.cancel();
+        }
+        watch.cancel();
+      }
+
+      turn = checkTurn(turn.getTicket(), ttlMillis);
+    }
+  }
+
+  /**
+   * Hands the lock over to the first waiter, if any.
+   */
+  public void release()
+  {
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        release(tr);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #release()}, within the given transaction.
+   */
+  public void release(Transaction tr)
+  {
+    if (hasLock(getHolder(tr)))
+    {
+      handOff(tr);
+    }
+    else
+    {
+      throw new IllegalMonitorStateException("Trying to release a lock not owned");
+    }
+  }
+
+  public boolean hasLock()
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        return hasLock(tr);
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #hasLock()}, within the given transaction.
+   */
+  public boolean hasLock(Transaction tr)
+  {
+    return hasLock(getHolder(tr));
+  }
+
+  /**
+   * @return the number of waiters in line
+   */
+  public int getQueueLength()
+  {
+    return _fdb.run(new Function<Transaction,Integer>()
+    {
+      @Override
+      public Integer apply(Transaction tr)
+      {
+        return tr.snapshot().getRange(_waitersSpace.range()).asList().get().size();
+      }
+    });
+  }
+
+  private boolean hasLock(HolderData holder)
+  {
+    return holder != null && _owner.equals(holder.getOwner()) && !holder.hasExpired(_clock);
+  }
+
+  /**
+   * Takes the lock if free, or a ticket otherwise.
+   */
+  private Turn enqueue(long ttlMillis)
+  {
+    return _fdb.run(new Function<Transaction,Turn>()
+    {
+      @Override
+      public Turn apply(Transaction tr)
+      {
+        if (acquireIfAvailable(tr, ttlMillis))
+        {
+          return new Turn(-1, null, 0);
+        }
+
+        byte[] nextBytes = tr.get(_nextKey).get();
+        long ticket = nextBytes == null ? 1 : FdbUtils.decodeLong(nextBytes);
+        tr.set(_nextKey, FdbUtils.encode(ticket+1));
+        tr.set(getWaiterKey(ticket), new WaiterData(_owner, ttlMillis).toBytes());
+
+        // fires when handed the lock
+        Watch watch = FdbUtils.getAndWatch(tr, _timer, getWaiterKey(ticket));
+        return new Turn(ticket, watch, getHolder(tr).getExpireTime());
+      }
+    });
+  }
+
+  /**
+   * Checks whether the given ticket was handed the lock, handing over an
+   * expired lock on the way.
+   *
+   * @param ttlMillis the TTL the ticket waits with, 0 for none
+   */
+  private Turn checkTurn(long ticket, long ttlMillis)
+  {
+    return _fdb.run(new Function<Transaction,Turn>()
+    {
+      @Override
+      public Turn apply(Transaction tr)
+      {
+        HolderData holder = getHolder(tr);
+        if (holder != null && holder.hasExpired(_clock))
+        {
+          handOff(tr);
+          holder = getHolder(tr);
+        }
+
+        byte[] waiterKey = getWaiterKey(ticket);
+        if (holder == null)
+        {
+          // not expected, since the lock is handed over while anyone waits
+          tr.clear(waiterKey);
+          setHolder(tr, _owner, ttlMillis);
+          return new Turn(ticket, null, 0);
+        }
+        else if (tr.get(waiterKey).get() == null)
+        {
+          // handed the lock, or dropped from the line
+          if (!_owner.equals(holder.getOwner()))
+          {
+            throw new IllegalStateException("No longer waiting for lock " + _id);
+          }
+          return new Turn(ticket, null, 0);
+        }
+        else
+        {
+          Watch watch = FdbUtils.getAndWatch(tr, _timer, waiterKey);
+          return new Turn(ticket, watch, holder.getExpireTime());
+        }
+      }
+    });
+  }
+
+  /**
+   * Leaves the line.
+   *
+   * @return true if handed the lock in the meantime
+   */
+  private boolean dequeue(long ticket)
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        byte[] waiterKey = getWaiterKey(ticket);
+        if (tr.get(waiterKey).get() == null)
+        {
+          return hasLock(tr);
+        }
+        tr.clear(waiterKey);
+        return false;
+      }
+    });
+  }
+
+  /**
+   * Makes the first waiter the holder, which wakes it up, or frees the lock
+   * if no one is waiting.
+   */
+  private void handOff(Transaction tr)
+  {
+    List<KeyValue> first = tr.getRange(_waitersSpace.range(), 1).asList().get();
+    if (first.isEmpty())
+    {
+      tr.clear(_holderKey);
+    }
+    else
+    {
+      KeyValue kv = first.get(0);
+      WaiterData waiter = WaiterData.fromBytes(kv.getValue());
+      tr.clear(kv.getKey());
+      setHolder(tr, waiter.getOwner(), waiter.getTtlMillis());
+    }
+  }
+
+  private void setHolder(Transaction tr, String owner, long ttlMillis)
+  {
+    long now = _clock.currentTimeMillis();
+    HolderData holder = new HolderData(owner, now, ttlMillis > 0 ? now+ttlMillis : 0);
+    tr.set(_holderKey, holder.toBytes());
+  }
+
+  /**
+   * @return the delay until the given expire time has passed, or -1 if none
+   */
+  private long getExpiryDelay(long expireTime)
+  {
+    if (expireTime <= 0)
+    {
+      return -1;
+    }
+
+    // expired only once past the expire time
+    return Math.max(expireTime + 1 - _clock.currentTimeMillis(), 0);
+  }
+
+  private byte[] getWaiterKey(long ticket)
+  {
+    return _waitersSpace.pack(Tuple.from(ticket));
+  }
+
+  private HolderData getHolder(Transaction tr)
+  {
+    byte[] bytes = tr.get(_holderKey).get();
+    return bytes == null ? null : HolderData.fromBytes(bytes);
+  }
+
+  private static class Turn
+  {
+    private final long _ticket;
+    private final Watch _watch;
+    private final long _holderExpireTime;
+
+    /**
+     * @param watch on the waiter entry, null if acquired
+     */
+    public Turn(long ticket, Watch watch, long holderExpireTime)
+    {
+      _ticket = ticket;
+      _watch = watch;
+      _holderExpireTime = holderExpireTime;
+    }
+
+    public boolean isAcquired() { return _watch == null; }
+    public long getTicket() { return _ticket; }
+    public Watch getWatch() { return _watch; }
+    public long getHolderExpireTime() { return _holderExpireTime; }
+  }
+
+  private static class HolderData
+  {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_OWNER = 1;
+    private static final int IDX_LOCK_TIME = 2;
+    private static final int IDX_EXPIRE_TIME = 3;
+
+    private final int _version;
+    private final String _owner;
+    private final long _lockTime;
+    private final long _expireTime;
+
+    public HolderData(String owner, long lockTime, long expireTime)
+    {
+      this._version = VERSION;
+      this._owner = owner;
+      this._lockTime = lockTime;
+      this._expireTime = expireTime;
+    }
+
+    public String getOwner() { return _owner; }
+    public long getExpireTime() { return _expireTime; }
+    public boolean hasExpired(Clock clock) { return _expireTime > 0 && _expireTime < clock.currentTimeMillis(); }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _owner, _lockTime, _expireTime).pack();
+    }
+
+    public static HolderData fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        String owner = tuple.getString(IDX_OWNER);
+        long lockTime = tuple.getLong(IDX_LOCK_TIME);
+        long expireTime = tuple.getLong(IDX_EXPIRE_TIME);
+        return new HolderData(owner, lockTime, expireTime);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+
+  private static class WaiterData
+  {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_OWNER = 1;
+    private static final int IDX_TTL = 2;
+
+    private final int _version;
+    private final String _owner;
+    private final long _ttlMillis;
+
+    public WaiterData(String owner, long ttlMillis)
+    {
+      this._version = VERSION;
+      this._owner = owner;
+      this._ttlMillis = ttlMillis;
+    }
+
+    public String getOwner() { return _owner; }
+    public long getTtlMillis() { return _ttlMillis; }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _owner, _ttlMillis).pack();
+    }
+
+    public static WaiterData fromBytes(byte[] bytes)
+    {
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        String owner = tuple.getString(IDX_OWNER);
+        long ttlMillis = tuple.getLong(IDX_TTL);
+        return new WaiterData(owner, ttlMillis);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+}
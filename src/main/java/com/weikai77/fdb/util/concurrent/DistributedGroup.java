@@ -74,25 +74,33 @@ public class DistributedGroup
       @Override
       public List<String> apply(Transaction tr)
       {
-        List<String> list = new ArrayList<>();
-        tr.snapshot().getRange(_membersSpace.range()).forEach(kv -> 
-        {
-          // the last field of the key is the member id
-          Tuple keyTuple = Tuple.fromBytes(kv.getKey());
-          String memberId = keyTuple.getString(keyTuple.size()-1);
-          
-          // enforce TTL if any
-          GroupMember member = GroupMember.fromBytes(kv.getValue());
-          if (_ttl <= 0 || member.getTimestamp() + _ttl > _clock.currentTimeMillis())
-          {
-            list.add(memberId);
-          }
-        });
-        
-        return list;
+        return listMembers(tr);
       }
     });
   }
+
+  /**
+   * Same as {@link #listMembers()}, within the given transaction.
+   */
+  public List<String> listMembers(Transaction tr)
+  {
+    List<String> list = new ArrayList<>();
+    tr.snapshot().getRange(_membersSpace.range()).forEach(kv -> 
+    {
+      // the last field of the key is the member id
+      Tuple keyTuple = Tuple.fromBytes(kv.getKey());
+      String memberId = keyTuple.getString(keyTuple.size()-1);
+
+      // enforce TTL if any
+      GroupMember member = GroupMember.fromBytes(kv.getValue());
+      if (_ttl <= 0 || member.getTimestamp() + _ttl > _clock.currentTimeMillis())
+      {
+        list.add(memberId);
+      }
+    });
+
+    return list;
+  }
   
   public void join(String memberId)
   {
@@ -101,12 +109,20 @@ public class DistributedGroup
       @Override
       public Void apply(Transaction tr)
       {
-        tr.set(_membersSpace.pack(memberId), new GroupMember(_clock.currentTimeMillis()).toBytes());
-        FdbUtils.signalWatch(tr, _membershipWatchKey);
+        join(tr, memberId);
         return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #join(String)}, within the given transaction.
+   */
+  public void join(Transaction tr, String memberId)
+  {
+    tr.set(_membersSpace.pack(memberId), new GroupMember(_clock.currentTimeMillis()).toBytes());
+    FdbUtils.signalWatch(tr, _membershipWatchKey);
+  }
   
   public void leave(String memberId)
   {
@@ -115,12 +131,20 @@ public class DistributedGroup
       @Override
       public Void apply(Transaction tr)
       {
-        tr.clear(_membersSpace.pack(memberId));
-        FdbUtils.signalWatch(tr, _membershipWatchKey);
+        leave(tr, memberId);
         return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #leave(String)}, within the given transaction.
+   */
+  public void leave(Transaction tr, String memberId)
+  {
+    tr.clear(_membersSpace.pack(memberId));
+    FdbUtils.signalWatch(tr, _membershipWatchKey);
+  }
   
   public void registerMembershipListener(GroupMembershipListener listener)
   {
@@ -3,12 +3,13 @@ package com.weikai77.fdb.util.concurrent;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.foundationdb.Database;
 import com.weikai77.fdb.util.DirectoryBasedSpace;
 import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
 import com.weikai77.util.SystemClock;
 
 /**
@@ -19,6 +20,8 @@ import com.weikai77.util.SystemClock;
  *   /conditions/{id}   -> {@link DistributedCondition}
  *   /rwl/{id}          -> {@link DistributedReadWriteLock}
  *   /countdown/{id}    -> {@link DistributedCountDownLatch}
+ *   /biased/{id}       -> {@link DistributedBiasedLock}
+ *   /fair/{id}         -> {@link DistributedFairLock}
  * </pre>
  * 
  * @author kwei
@@ -31,6 +34,10 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
   private static final String PREFIX_CONDITIONS = "conditions";
   private static final String PREFIX_READWRITELOCKS = "rwl";
   private static final String PREFIX_COUNTDOWN = "countdown";
+  private static final String PREFIX_BIASED = "biased";
+  private static final String PREFIX_FAIR = "fair";
+
+  public static final int DEFAULT_MAX_HANDOFFS = 16;
 
   private final Database _fdb;
   private final DirectoryBasedSpace _space;
@@ -39,9 +46,15 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
   private final DirectoryBasedSpace _conditionsSpace;
   private final DirectoryBasedSpace _rwlSpace;
   private final DirectoryBasedSpace _countDownSpace;
-  private final ScheduledExecutorService _timer;
+  private final DirectoryBasedSpace _biasedSpace;
+  private final DirectoryBasedSpace _fairSpace;
+  private final HashedWheelTimer _timer;
   private final Clock _clock;
 
+  // shared by the threads using this manager, which form one cohort per id
+  private final ConcurrentMap<String,DistributedCohortLock> _cohortLocks;
+  private final ConcurrentMap<String,DistributedCohortLock> _reentrantCohortLocks;
+
   public DistributedLockMgr(Database fdb, DirectoryBasedSpace space)
   {
     this(fdb, space, SystemClock.getInstance());
@@ -56,8 +69,12 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
     _conditionsSpace = _space.subspace(PREFIX_CONDITIONS);
     _rwlSpace = _space.subspace(PREFIX_READWRITELOCKS);
     _countDownSpace = _space.subspace(PREFIX_COUNTDOWN);
-    _timer = Executors.newSingleThreadScheduledExecutor();
+    _biasedSpace = _space.subspace(PREFIX_BIASED);
+    _fairSpace = _space.subspace(PREFIX_FAIR);
+    _timer = HashedWheelTimer.getInstance();
     _clock = clock;
+    _cohortLocks = new ConcurrentHashMap<>();
+    _reentrantCohortLocks = new ConcurrentHashMap<>();
   }
  
   public List<DistributedSimpleLock> listSimpleLocks()
@@ -82,9 +99,38 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
   
   public void deleteSimpleLock(String id)
   {
+    _cohortLocks.remove(id);
     _locksSpace.delete(id);
   }
 
+  /**
+   * Same as {@link #getCohortLock(String, int)}, with the default max number
+   * of handoffs.
+   */
+  public DistributedCohortLock getCohortLock(String id)
+  {
+    return getCohortLock(id, DEFAULT_MAX_HANDOFFS);
+  }
+
+  /**
+   * The cohort lock is cached by this manager, not process-wide: threads
+   * going through different managers form different cohorts, which compete
+   * on FDB like different processes.
+   * 
+   * @return the cohort lock of this manager over the simple lock of the
+   *         given id, created with the given max number of handoffs if it
+   *         does not exist yet
+   * @throws IllegalArgumentException if it exists with a different max
+   *         number of handoffs
+   */
+  public DistributedCohortLock getCohortLock(String id, int maxHandoffs)
+  {
+    DistributedCohortLock lock = _cohortLocks.computeIfAbsent(id, 
+        key -> new DistributedCohortLock(newSimpleLock(key), maxHandoffs));
+    checkMaxHandoffs(lock, maxHandoffs);
+    return lock;
+  }
+
   public List<DistributedReentrantLock> listReentrantLocks()
   {
     List<String> ids = _reentrantSpace.listChildren();
@@ -107,9 +153,40 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
   
   public void deleteReentrantLock(String id)
   {
+    _reentrantCohortLocks.remove(id);
     _reentrantSpace.delete(id);
   }
 
+  /**
+   * Same as {@link #getReentrantCohortLock(String, int)}, with the default
+   * max number of handoffs.
+   */
+  public DistributedCohortLock getReentrantCohortLock(String id)
+  {
+    return getReentrantCohortLock(id, DEFAULT_MAX_HANDOFFS);
+  }
+
+  /**
+   * Same as {@link #getCohortLock(String, int)}, over the reentrant lock of
+   * the given id.
+   */
+  public DistributedCohortLock getReentrantCohortLock(String id, int maxHandoffs)
+  {
+    DistributedCohortLock lock = _reentrantCohortLocks.computeIfAbsent(id, 
+        key -> new DistributedCohortLock(newReentrantLock(key), maxHandoffs));
+    checkMaxHandoffs(lock, maxHandoffs);
+    return lock;
+  }
+
+  private static void checkMaxHandoffs(DistributedCohortLock lock, int maxHandoffs)
+  {
+    if (lock.getMaxHandoffs() != maxHandoffs)
+    {
+      throw new IllegalArgumentException("Cohort lock " + lock.getId() + 
+          " already exists with max handoffs " + lock.getMaxHandoffs() + ": " + maxHandoffs);
+    }
+  }
+
   public List<DistributedReadWriteLock> listReadWriteLocks()
   {
     List<String> ids = _rwlSpace.listChildren();
@@ -124,7 +201,7 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
   @Override
   public DistributedReadWriteLock newReadWriteLock(String id)
   {
-    return new DistributedReadWriteLock(_fdb, _rwlSpace.subspace(id).rawSubspace(), _timer, this, id);
+    return new DistributedReadWriteLock(_fdb, _rwlSpace.subspace(id).rawSubspace(), _timer, id);
   }
 
   public void deleteReadWriteLock(String id)
@@ -176,4 +253,42 @@ public class DistributedLockMgr implements DistributedLockFactory, DistributedCo
     _countDownSpace.delete(id);
   }
 
+  /**
+   * @param ttlMillis TTL of the ownership on FDB, 0 for no TTL
+   */
+  public DistributedBiasedLock newBiasedLock(String id, long ttlMillis)
+  {
+    String owner = UUID.randomUUID().toString();
+    return new DistributedBiasedLock(_fdb, _biasedSpace.subspace(id).rawSubspace(), _timer, 
+        id, owner, ttlMillis, _clock);
+  }
+
+  public void deleteBiasedLock(String id)
+  {
+    _biasedSpace.delete(id);
+  }
+
+  public List<DistributedFairLock> listFairLocks()
+  {
+    List<String> ids = _fairSpace.listChildren();
+    List<DistributedFairLock> locks = new ArrayList<>(ids.size());
+    for (String id : ids)
+    {
+      locks.add(newFairLock(id));
+    }
+    return locks;
+  }
+
+  public DistributedFairLock newFairLock(String id)
+  {
+    String owner = UUID.randomUUID().toString();
+    return new DistributedFairLock(_fdb, _fairSpace.subspace(id).rawSubspace(), _timer, 
+        id, owner, _clock);
+  }
+
+  public void deleteFairLock(String id)
+  {
+    _fairSpace.delete(id);
+  }
+
 }
@@ -1,13 +1,29 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
 import com.foundationdb.Database;
 import com.foundationdb.KeySelector;
+import com.foundationdb.KeyValue;
+import com.foundationdb.MutationType;
 import com.foundationdb.Range;
+import com.foundationdb.ReadTransaction;
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
+import com.foundationdb.async.Future;
 import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.ByteArrayUtil;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.util.Clock;
+import com.weikai77.util.SystemClock;
 
 /**
  * A distributed queue implementation on FDB.
@@ -17,30 +33,96 @@ import com.foundationdb.tuple.Tuple;
  *    /items/0      -> {@link QueueItem}
  *          /1      -> {@link QueueItem}
  *          /...    -> {@link QueueItem}
+ *    /expiry/{expireTime}/{offset} -> item size
+ *    /lastOffset   -> offset of the last item offered
  * </pre>
+ * Items may expire, after the queue's TTL or their own (see {@link
+ * #offer(byte[], long, TimeUnit)}). Expired items are skipped, and
+ * removed, by polls, and the expiry index lets {@link #purgeExpired()}
+ * remove them in bulk. A poll drops at most {@link #MAX_DROPPED_PER_POLL}
+ * expired items per transaction, so that it stays within FDB's limits;
+ * the transactional polls may then return nothing while the queue is not
+ * empty, and the other polls simply run another transaction. Purged items
+ * may leave holes, which {@link #size()} still counts until the head has
+ * moved past them.
+ * <p>
+ * Items can also be read in place by offset, see {@link #get(long)},
+ * {@link #range(long, long)} and {@link #cursor(long)}. Offsets are never
+ * reused, even once the queue is drained, so that a cursor picks up the
+ * items offered after it caught up.
+ * <p>
+ * Items are also accepted and returned as {@link ByteBuffer}s, see {@link
+ * #offer(ByteBuffer)} and {@link #pollBuffer()}. A buffer is copied once
+ * into the stored item, and a polled buffer is a view of the item read,
+ * with no copy at all.
+ * <p>
+ * Given a stats space, the queue also maintains its telemetry there, in
+ * the same transactions, see {@link QueueStats}. Depth, age and rates can
+ * then be read without scanning the items.
  * 
  * @author kwei
  *
  */
-public class DistributedQueue implements Queue
+public class DistributedQueue implements TransactionalQueue
 {
   protected static final String KEY_ITEMS = "items";
+  protected static final String KEY_LAST_OFFSET = "lastOffset";
+  protected static final String KEY_EXPIRY = "expiry";
+
+  private static final int PURGE_BATCH_SIZE = 10000;
+
+  /**
+   * Max number of expired items removed by a single poll transaction.
+   */
+  public static final int MAX_DROPPED_PER_POLL = 1000;
+
+  /**
+   * Number of items read at once when skipping expired items.
+   */
+  protected static final int SKIP_BATCH_SIZE = 100;
 
   protected final Database _fdb;
   protected final Subspace _space;
   protected final String _id;
+  protected final long _ttl;
+  protected final Clock _clock;
+  private final Subspace _statsSpace;
 
   // derived and cached
   protected final Subspace _itemsSpace;
   private final Range _itemsRange;
+  private final byte[] _lastOffsetKey;
+  private final Subspace _expirySpace;
   
   protected DistributedQueue(Database db, Subspace space, String id)
+  {
+    this(db, space, id, 0, SystemClock.getInstance());
+  }
+
+  /**
+   * @param ttl time-to-live of the items in milliseconds, 0 for none
+   */
+  protected DistributedQueue(Database db, Subspace space, String id, long ttl, Clock clock)
+  {
+    this(db, space, id, ttl, clock, null);
+  }
+
+  /**
+   * @param statsSpace where to maintain the telemetry, null for none
+   */
+  protected DistributedQueue(Database db, Subspace space, String id, long ttl, Clock clock,
+      Subspace statsSpace)
   {
     _fdb = db;
     _space = space;
     _id = id;
+    _ttl = ttl;
+    _clock = clock;
+    _statsSpace = statsSpace;
     _itemsSpace = _space.subspace(Tuple.from(KEY_ITEMS));
     _itemsRange = _itemsSpace.range();
+    _lastOffsetKey = _space.subspace(Tuple.from(KEY_LAST_OFFSET)).pack();
+    _expirySpace = _space.subspace(Tuple.from(KEY_EXPIRY));
   }
   
   protected Subspace getSpace()
@@ -57,35 +139,178 @@ public class DistributedQueue implements Queue
   @Override
   public byte[] poll()
   {
-    return _fdb.run(new Function<Transaction,byte[]>()
+    return toArray(pollBuffer());
+  }
+  
+  @Override
+  public byte[] poll(Transaction tr)
+  {
+    return toArray(pollBuffer(tr));
+  }
+
+  @Override
+  public ByteBuffer pollBuffer()
+  {
+    while (true)
     {
-      @Override
-      public byte[] apply(Transaction tr)
+      List<ByteBuffer> res = _fdb.run(new Function<Transaction,List<ByteBuffer>>()
+      {
+        @Override
+        public List<ByteBuffer> apply(Transaction tr)
+        {
+          ByteBuffer item = pollBuffer(tr);
+
+          // null if only expired items were found so far
+          return item != null || size(tr) <= 0 ? Collections.singletonList(item) : null;
+        }
+      });
+
+      if (res != null)
       {
-        return poll(tr);
+        return res.get(0);
       }
-    });
+    }
+  }
+
+  /**
+   * Reads the head item with a single range read, and then expired items
+   * in batches, up to {@link #MAX_DROPPED_PER_POLL} of them.
+   * 
+   * @return null if the queue is empty, or if only expired items were found
+   */
+  @Override
+  public ByteBuffer pollBuffer(Transaction tr)
+  {
+    long now = _clock.currentTimeMillis();
+    ByteBuffer res = null;
+    int dropped = 0;
+    long bytes = 0;
+    byte[] begin = _itemsRange.begin;
+    byte[] firstKey = null;
+    byte[] lastKey = null;
+    int limit = 1;
+    while (res == null && dropped < MAX_DROPPED_PER_POLL)
+    {
+      List<KeyValue> kvs = tr.getRange(begin, _itemsRange.end, limit).asList().get();
+      for (KeyValue kv : kvs)
+      {
+        if (firstKey == null)
+        {
+          firstKey = kv.getKey();
+        }
+        lastKey = kv.getKey();
+
+        QueueItem item = QueueItem.fromBytes(kv.getValue());
+        clearExpiry(tr, item);
+        bytes += item.getValueSize();
+        if (!item.isExpired(now))
+        {
+          res = item.getValueBuffer();
+          break;
+        }
+        else if (++dropped >= MAX_DROPPED_PER_POLL)
+        {
+          break;
+        }
+      }
+
+      if (kvs.size() < limit)
+      {
+        // no more items
+        break;
+      }
+      begin = ByteArrayUtil.join(lastKey, new byte[] {0});
+      limit = SKIP_BATCH_SIZE;
+    }
+
+    if (firstKey != null)
+    {
+      tr.clear(firstKey, ByteArrayUtil.join(lastKey, new byte[] {0}));
+    }
+    recordRemove(tr, res == null ? 0 : 1, dropped, bytes);
+    return res;
   }
   
-  protected byte[] poll(Transaction tr)
+  @Override
+  public List<byte[]> poll(int maxItems)
   {
-    byte[] headKey = getHeadKey(tr);
-    if (headKey == null)
+    while (true)
     {
-      return null;
+      List<byte[]> items = _fdb.run(new Function<Transaction,List<byte[]>>()
+      {
+        @Override
+        public List<byte[]> apply(Transaction tr)
+        {
+          List<byte[]> items = poll(tr, maxItems);
+
+          // null if only expired items were found so far
+          return !items.isEmpty() || size(tr) <= 0 ? items : null;
+        }
+      });
+
+      if (items != null)
+      {
+        return items;
+      }
     }
-    
-    byte[] headValue = tr.get(headKey).get();
-    QueueItem item = QueueItem.fromBytes(headValue);
-    if (item == null)
+  }
+
+  /**
+   * Reads the head items with a single range read, and removes them with
+   * a single range clear. Only reads again if expired items were skipped,
+   * up to {@link #MAX_DROPPED_PER_POLL} of them.
+   * 
+   * @return the items polled, possibly fewer than available, or none, if
+   *         expired items were found
+   */
+  @Override
+  public List<byte[]> poll(Transaction tr, int maxItems)
+  {
+    if (maxItems <= 0)
     {
-      return null;
+      throw new IllegalArgumentException("Invalid max items: " + maxItems);
     }
 
-    tr.clear(headKey);
-    return item.getValue();
+    long now = _clock.currentTimeMillis();
+    List<byte[]> items = new ArrayList<>(maxItems);
+    int dropped = 0;
+    long bytes = 0;
+    while (items.size() < maxItems && dropped < MAX_DROPPED_PER_POLL)
+    {
+      int limit = Math.min(maxItems - items.size(), MAX_DROPPED_PER_POLL - dropped);
+      List<KeyValue> kvs = tr.getRange(_itemsRange, limit).asList().get();
+      for (KeyValue kv : kvs)
+      {
+        QueueItem item = QueueItem.fromBytes(kv.getValue());
+        clearExpiry(tr, item);
+        bytes += item.getValueSize();
+        if (item.isExpired(now))
+        {
+          ++dropped;
+        }
+        else
+        {
+          items.add(item.getValue());
+        }
+      }
+
+      if (!kvs.isEmpty())
+      {
+        byte[] lastKey = kvs.get(kvs.size()-1).getKey();
+        tr.clear(kvs.get(0).getKey(), ByteArrayUtil.join(lastKey, new byte[] {0}));
+      }
+
+      if (kvs.size() < limit)
+      {
+        // no more items
+        break;
+      }
+    }
+
+    recordRemove(tr, items.size(), dropped, bytes);
+    return items;
   }
-  
+
   private byte[] getHeadKey(Transaction tr)
   {
     KeySelector head = KeySelector.firstGreaterThan(_itemsRange.begin);
@@ -103,6 +328,83 @@ public class DistributedQueue implements Queue
     }
   }
   
+  /**
+   * Reads an item in place, without removing it.
+   * 
+   * @return the item at the given offset, or null if it has not been
+   *         offered yet, or has been polled already
+   */
+  public byte[] get(long offset)
+  {
+    return _fdb.run(new Function<Transaction,byte[]>()
+    {
+      @Override
+      public byte[] apply(Transaction tr)
+      {
+        QueueItem item = QueueItem.fromBytes(tr.get(_itemsSpace.pack(offset)).get());
+        return item == null ? null : item.getValue();
+      }
+    });
+  }
+
+  /**
+   * Reads the items in the given range of offsets in place, with a single
+   * range read.
+   * 
+   * @param fromOffset inclusive
+   * @param toOffset exclusive
+   * @return the items still in the queue, by offset
+   */
+  public NavigableMap<Long,byte[]> range(long fromOffset, long toOffset)
+  {
+    return range(fromOffset, toOffset, 0);
+  }
+
+  /**
+   * Same as {@link #range(long, long)}, but reads at most the given number
+   * of items.
+   * 
+   * @param limit 0 for no limit
+   */
+  public NavigableMap<Long,byte[]> range(long fromOffset, long toOffset, int limit)
+  {
+    return _fdb.run(new Function<Transaction,NavigableMap<Long,byte[]>>()
+    {
+      @Override
+      public NavigableMap<Long,byte[]> apply(Transaction tr)
+      {
+        return range(tr, fromOffset, toOffset, limit);
+      }
+    });
+  }
+
+  protected NavigableMap<Long,byte[]> range(Transaction tr, long fromOffset, long toOffset,
+      int limit)
+  {
+    NavigableMap<Long,byte[]> items = new TreeMap<>();
+    if (fromOffset >= toOffset)
+    {
+      return items;
+    }
+
+    byte[] begin = _itemsSpace.pack(fromOffset);
+    byte[] end = _itemsSpace.pack(toOffset);
+    for (KeyValue kv : tr.getRange(begin, end, limit).asList().get())
+    {
+      QueueItem item = QueueItem.fromBytes(kv.getValue());
+      items.put(item.getOffset(), item.getValue());
+    }
+    return items;
+  }
+
+  /**
+   * @return a cursor replaying the items in place, from the given offset
+   */
+  public QueueCursor cursor(long fromOffset)
+  {
+    return new QueueCursor(this, fromOffset);
+  }
+
   @Override
   public boolean offer(byte[] itemValue)
   {
@@ -116,25 +418,411 @@ public class DistributedQueue implements Queue
     });
   }
   
-  protected boolean offer(Transaction tr, byte[] itemValue)
+  @Override
+  public boolean offer(Transaction tr, byte[] itemValue)
+  {
+    return offer(tr, ByteBuffer.wrap(itemValue));
+  }
+
+  /**
+   * Offers the remaining bytes of the given buffer, which is left
+   * untouched.
+   */
+  @Override
+  public boolean offer(ByteBuffer itemValue)
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        return offer(tr, itemValue);
+      }
+    });
+  }
+
+  @Override
+  public boolean offer(Transaction tr, ByteBuffer itemValue)
+  {
+    return offer(tr, itemValue, getExpireTime(_ttl));
+  }
+
+  /**
+   * Offers an item with its own time-to-live, instead of the queue's.
+   *
+   * @param ttl 0 for an item that never expires
+   */
+  public boolean offer(byte[] itemValue, long ttl, TimeUnit unit)
+  {
+    return _fdb.run(new Function<Transaction,Boolean>()
+    {
+      @Override
+      public Boolean apply(Transaction tr)
+      {
+        return offer(tr, itemValue, getExpireTime(unit.toMillis(ttl)));
+      }
+    });
+  }
+
+  /**
+   * @param expireTime 0 for an item that never expires
+   */
+  protected boolean offer(Transaction tr, byte[] itemValue, long expireTime)
+  {
+    return offer(tr, ByteBuffer.wrap(itemValue), expireTime);
+  }
+
+  protected boolean offer(Transaction tr, ByteBuffer itemValue, long expireTime)
+  {
+    byte[] tailKey = getTailKey(tr);
+    long newOffset = getNextOffset(tr, tailKey);
+
+    writeItem(tr, newOffset, itemValue, expireTime);
+    tr.set(_lastOffsetKey, FdbUtils.encode(newOffset));
+    recordEnqueue(tr, 1, itemValue.remaining(), tailKey == null);
+    return true;
+  }
+
+  protected long getExpireTime(long ttl)
+  {
+    return ttl > 0 ? _clock.currentTimeMillis() + ttl : 0;
+  }
+
+  /**
+   * Writes an item, stamped with the current time, and its entry in the
+   * expiry index if it expires.
+   */
+  protected void writeItem(Transaction tr, long offset, ByteBuffer itemValue, long expireTime)
+  {
+    QueueItem newItem = new QueueItem(offset, itemValue, expireTime, _clock.currentTimeMillis());
+    tr.set(_itemsSpace.pack(offset), newItem.toBytes());
+    if (expireTime > 0)
+    {
+      // the size lets purges maintain the byte count without reading items
+      tr.set(getExpiryKey(expireTime, offset), FdbUtils.encode((long) itemValue.remaining()));
+    }
+  }
+
+  /**
+   * Removes the entry of an item being removed from the expiry index.
+   */
+  protected void clearExpiry(Transaction tr, QueueItem item)
+  {
+    if (item.getExpireTime() > 0)
+    {
+      tr.clear(getExpiryKey(item.getExpireTime(), item.getOffset()));
+    }
+  }
+
+  private byte[] getExpiryKey(long expireTime, long offset)
+  {
+    return _expirySpace.pack(Tuple.from(expireTime, offset));
+  }
+
+  /**
+   * Removes every expired item, in transactions of up to 10,000 items
+   * each. The expiry index is read in order, and contiguous offsets are
+   * removed with a single range clear.
+   *
+   * @return the number of items removed
+   */
+  public long purgeExpired()
+  {
+    long total = 0;
+    while (true)
+    {
+      int purged = _fdb.run(new Function<Transaction,Integer>()
+      {
+        @Override
+        public Integer apply(Transaction tr)
+        {
+          return purgeExpired(tr, PURGE_BATCH_SIZE);
+        }
+      });
+
+      total += purged;
+      if (purged < PURGE_BATCH_SIZE)
+      {
+        return total;
+      }
+    }
+  }
+
+  protected int purgeExpired(Transaction tr, int limit)
+  {
+    byte[] begin = _expirySpace.range().begin;
+    byte[] end = _expirySpace.pack(Tuple.from(_clock.currentTimeMillis()));
+    List<KeyValue> kvs = tr.getRange(begin, end, limit).asList().get();
+    if (kvs.isEmpty())
+    {
+      return 0;
+    }
+
+    List<Long> offsets = new ArrayList<>(kvs.size());
+    long bytes = 0;
+    for (KeyValue kv : kvs)
+    {
+      offsets.add(_expirySpace.unpack(kv.getKey()).getLong(1));
+
+      // empty for entries written before sizes were recorded
+      if (kv.getValue().length > 0)
+      {
+        bytes += FdbUtils.decodeLong(kv.getValue());
+      }
+    }
+    Collections.sort(offsets);
+
+    byte[] lastKey = kvs.get(kvs.size()-1).getKey();
+    tr.clear(begin, ByteArrayUtil.join(lastKey, new byte[] {0}));
+    purge(tr, offsets);
+    recordRemove(tr, 0, kvs.size(), bytes);
+    return kvs.size();
+  }
+
+  /**
+   * Removes the items at the given offsets, one range clear per run of
+   * contiguous offsets.
+   *
+   * @param offsets sorted
+   */
+  protected void purge(Transaction tr, List<Long> offsets)
+  {
+    int start = 0;
+    for (int i=1; i<=offsets.size(); i++)
+    {
+      if (i == offsets.size() || offsets.get(i) != offsets.get(i-1) + 1)
+      {
+        tr.clear(_itemsSpace.pack(offsets.get(start)), _itemsSpace.pack(offsets.get(i-1) + 1));
+        start = i;
+      }
+    }
+  }
+
+  @Override
+  public Database getDatabase()
+  {
+    return _fdb;
+  }
+
+  @Override
+  public byte[] transfer(TransactionalQueue target)
+  {
+    return transfer(target, UnaryOperator.identity());
+  }
+
+  @Override
+  public byte[] transfer(TransactionalQueue target, UnaryOperator<byte[]> transformer)
+  {
+    return _fdb.run(new Function<Transaction,byte[]>()
+    {
+      @Override
+      public byte[] apply(Transaction tr)
+      {
+        return QueueUtils.transfer(tr, DistributedQueue.this, target, transformer);
+      }
+    });
+  }
+
+  @Override
+  public int offer(List<byte[]> itemValues)
   {
+    return _fdb.run(new Function<Transaction,Integer>()
+    {
+      @Override
+      public Integer apply(Transaction tr)
+      {
+        return offer(tr, itemValues);
+      }
+    });
+  }
+
+  /**
+   * Appends the items after a single read of the tail, instead of
+   * looking up the tail once per item.
+   */
+  @Override
+  public int offer(Transaction tr, List<byte[]> itemValues)
+  {
+    if (itemValues.isEmpty())
+    {
+      return 0;
+    }
+
     byte[] tailKey = getTailKey(tr);
-    long newOffset = 0;
+    long newOffset = getNextOffset(tr, tailKey);
+
+    long expireTime = getExpireTime(_ttl);
+    long bytes = 0;
+    for (byte[] itemValue : itemValues)
+    {
+      writeItem(tr, newOffset, ByteBuffer.wrap(itemValue), expireTime);
+      bytes += itemValue.length;
+      ++newOffset;
+    }
+    tr.set(_lastOffsetKey, FdbUtils.encode(newOffset-1));
+
+    recordEnqueue(tr, itemValues.size(), bytes, tailKey == null);
+    return itemValues.size();
+  }
 
+  /**
+   * @param tailKey key of the tail item, null if the queue is empty
+   * @return the offset of the next item offered, past the last one ever
+   *         offered, so that offsets are not reused once drained
+   */
+  private long getNextOffset(Transaction tr, byte[] tailKey)
+  {
     if (tailKey != null)
     {
       // the queue is not empty
       byte[] tailValue = tr.get(tailKey).get();
       QueueItem item = QueueItem.fromBytes(tailValue);
-      newOffset = item == null ? 0 : item.getOffset()+1;
+      if (item != null)
+      {
+        return item.getOffset()+1;
+      }
     }
 
-    QueueItem newItem = new QueueItem(newOffset, itemValue);
-    byte[] newTailKey = _itemsSpace.pack(newOffset);
-    tr.set(newTailKey, newItem.toBytes());
-    return true;
+    byte[] lastOffset = tr.get(_lastOffsetKey).get();
+    return lastOffset == null ? 0 : FdbUtils.decodeLong(lastOffset)+1;
   }
-  
+
+  /**
+   * Counts items offered in the transaction.
+   *
+   * @param wasEmpty true if the queue was empty before, so the oldest
+   *        enqueue time has to be set
+   */
+  protected void recordEnqueue(Transaction tr, int count, long bytes, boolean wasEmpty)
+  {
+    if (_statsSpace == null || count == 0)
+    {
+      return;
+    }
+
+    add(tr, QueueStats.KEY_ENQUEUED, count);
+    add(tr, QueueStats.KEY_ENQUEUED_BYTES, bytes);
+    addRate(tr, QueueStats.RATE_ENQUEUED, count);
+    if (wasEmpty)
+    {
+      refreshOldest(tr);
+    }
+  }
+
+  /**
+   * Counts items removed in the transaction, and refreshes the oldest
+   * enqueue time since the head has moved.
+   *
+   * @param dequeued the number of items returned to the caller
+   * @param dropped the number of items expired, purged or overwritten
+   * @param bytes the total size of all the items removed
+   */
+  protected void recordRemove(Transaction tr, int dequeued, int dropped, long bytes)
+  {
+    if (_statsSpace == null || dequeued + dropped == 0)
+    {
+      return;
+    }
+
+    if (dequeued > 0)
+    {
+      add(tr, QueueStats.KEY_DEQUEUED, dequeued);
+      addRate(tr, QueueStats.RATE_DEQUEUED, dequeued);
+    }
+    if (dropped > 0)
+    {
+      add(tr, QueueStats.KEY_DROPPED, dropped);
+    }
+    add(tr, QueueStats.KEY_REMOVED_BYTES, bytes);
+    refreshOldest(tr);
+  }
+
+  private void add(Transaction tr, String counter, long delta)
+  {
+    tr.mutate(MutationType.ADD, _statsSpace.pack(Tuple.from(counter)), FdbUtils.encode(delta));
+  }
+
+  /**
+   * Adds to the bucket of the current second, and clears the buckets that
+   * have left the retention window, with a blind range clear.
+   */
+  private void addRate(Transaction tr, String rate, long delta)
+  {
+    long second = _clock.currentTimeMillis() / 1000;
+    Subspace ratesSpace = _statsSpace.subspace(Tuple.from(QueueStats.KEY_RATES));
+    tr.mutate(MutationType.ADD, ratesSpace.pack(Tuple.from(second, rate)),
+        FdbUtils.encode(delta));
+    tr.clear(ratesSpace.range().begin,
+        ratesSpace.pack(Tuple.from(second - QueueStats.RATE_RETENTION_SECONDS)));
+  }
+
+  /**
+   * Records the enqueue time of the current head item. The head is read on
+   * a snapshot, so that consumers do not conflict on the next item.
+   */
+  private void refreshOldest(Transaction tr)
+  {
+    byte[] oldestKey = _statsSpace.pack(Tuple.from(QueueStats.KEY_OLDEST));
+    List<KeyValue> kvs = tr.snapshot().getRange(_itemsRange, 1).asList().get();
+    QueueItem head = kvs.isEmpty() ? null : QueueItem.fromBytes(kvs.get(0).getValue());
+    if (head == null || head.getEnqueueTime() == 0)
+    {
+      tr.clear(oldestKey);
+    }
+    else
+    {
+      tr.set(oldestKey, Tuple.from(head.getEnqueueTime()).pack());
+    }
+  }
+
+  /**
+   * Reads the telemetry of the queue with a single range read.
+   *
+   * @throws IllegalStateException if the queue has no stats space, i.e.
+   *         was not created by a {@link DistributedQueueMgr}
+   */
+  public QueueStats getStats()
+  {
+    if (_statsSpace == null)
+    {
+      throw new IllegalStateException("No telemetry for queue: " + _id);
+    }
+
+    List<KeyValue> kvs = _fdb.run(new Function<Transaction,List<KeyValue>>()
+    {
+      @Override
+      public List<KeyValue> apply(Transaction tr)
+      {
+        return tr.getRange(_statsSpace.range()).asList().get();
+      }
+    });
+    return QueueStats.fromKeyValues(_id, _statsSpace, kvs, _clock.currentTimeMillis());
+  }
+
+  /**
+   * @return age of the oldest item in milliseconds, see {@link #getStats()}
+   */
+  public long oldestItemAge()
+  {
+    return getStats().oldestItemAge();
+  }
+
+  /**
+   * @return items offered per second, see {@link #getStats()}
+   */
+  public double enqueueRate()
+  {
+    return getStats().enqueueRate();
+  }
+
+  /**
+   * @return items polled per second, see {@link #getStats()}
+   */
+  public double dequeueRate()
+  {
+    return getStats().dequeueRate();
+  }
+
   private byte[] getTailKey(Transaction tr)
   {
     KeySelector tail = KeySelector.lastLessThan(_itemsRange.end);
@@ -165,7 +853,8 @@ public class DistributedQueue implements Queue
     });
   }
   
-  protected long size(Transaction tr)
+  @Override
+  public long size(Transaction tr)
   {
     byte[] headKey = getHeadKey(tr);
     if (headKey == null)
@@ -183,6 +872,22 @@ public class DistributedQueue implements Queue
     return tailItem.getOffset() - headItem.getOffset() + 1;
   }
   
+  /**
+   * Checks for items with a single range read, without adding a read
+   * conflict when called on a snapshot.
+   */
+  protected Future<Boolean> hasItems(ReadTransaction tr)
+  {
+    return tr.getRange(_itemsRange, 1).asList().map(new Function<List<KeyValue>,Boolean>()
+    {
+      @Override
+      public Boolean apply(List<KeyValue> kvs)
+      {
+        return !kvs.isEmpty();
+      }
+    });
+  }
+  
   @Override
   public long capacity()
   {
@@ -202,35 +907,93 @@ public class DistributedQueue implements Queue
     return false;
   }
   
-  protected boolean isFull(Transaction tr)
+  @Override
+  public boolean isFull(Transaction tr)
   {
     return false;
   }
   
+  /**
+   * @return the remaining bytes of the buffer, without a copy if they
+   *         span its whole backing array
+   */
+  protected static byte[] toArray(ByteBuffer buffer)
+  {
+    if (buffer == null)
+    {
+      return null;
+    }
+    else if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0 &&
+        buffer.remaining() == buffer.array().length)
+    {
+      return buffer.array();
+    }
+
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Version 4 is a raw header followed by the value, so that values are
+   * written with a single copy and read with none. Version 1 was a packed
+   * tuple, which never starts with the raw marker, and is still read.
+   */
   protected static class QueueItem
   {
-    private static final int VERSION = 1;
+    private static final int VERSION = 4;
+    private static final byte RAW_MARKER = (byte) 0xff;
+    private static final int RAW_HEADER_SIZE = 2 + 3 * 8;
     private static final int IDX_VERSION = 0;
     private static final int IDX_OFFSET = 1;
     private static final int IDX_VALUE = 2;
 
     private final int _version;
     private final long _offset;
-    private final byte[] _value;
+    private final ByteBuffer _value;
+    private final long _expireTime;
+    private final long _enqueueTime;
     
     public QueueItem(long offset, byte[] value)
+    {
+      this(offset, value, 0, 0);
+    }
+
+    /**
+     * @param enqueueTime 0 if unknown
+     */
+    public QueueItem(long offset, byte[] value, long expireTime, long enqueueTime)
+    {
+      this(offset, ByteBuffer.wrap(value), expireTime, enqueueTime);
+    }
+
+    /**
+     * @param value its remaining bytes, which must not change afterwards
+     */
+    public QueueItem(long offset, ByteBuffer value, long expireTime, long enqueueTime)
     {
       this._version = VERSION;
       this._offset = offset;
-      this._value = value;
+      this._value = value.slice();
+      this._expireTime = expireTime;
+      this._enqueueTime = enqueueTime;
     }
     
     public long getOffset() { return _offset; }
-    public byte[] getValue() { return _value; }
+    public byte[] getValue() { return toArray(_value); }
+    public ByteBuffer getValueBuffer() { return _value.duplicate(); }
+    public int getValueSize() { return _value.remaining(); }
+    public long getExpireTime() { return _expireTime; }
+    public long getEnqueueTime() { return _enqueueTime; }
+    public boolean isExpired(long now) { return _expireTime > 0 && _expireTime <= now; }
     
     public byte[] toBytes()
     {
-      return Tuple.from(_version, _offset, _value).pack();
+      ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + _value.remaining());
+      buffer.put(RAW_MARKER).put((byte) _version);
+      buffer.putLong(_offset).putLong(_expireTime).putLong(_enqueueTime);
+      buffer.put(_value.duplicate());
+      return buffer.array();
     }
     
     public static QueueItem fromBytes(byte[] bytes)
@@ -240,10 +1003,27 @@ public class DistributedQueue implements Queue
         return null;
       }
       
+      if (bytes.length > 0 && bytes[0] == RAW_MARKER)
+      {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.get();
+        int version = buffer.get();
+        if (version != VERSION)
+        {
+          throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+
+        long offset = buffer.getLong();
+        long expireTime = buffer.getLong();
+        long enqueueTime = buffer.getLong();
+        return new QueueItem(offset, buffer, expireTime, enqueueTime);
+      }
+
       Tuple tuple = Tuple.fromBytes(bytes);
       int version = (int) tuple.getLong(IDX_VERSION);
-      if (version == VERSION)
+      if (version == 1)
       {
+        // written before TTLs
         long offset = tuple.getLong(IDX_OFFSET);
         byte[] value = tuple.getBytes(IDX_VALUE);
         return new QueueItem(offset, value);
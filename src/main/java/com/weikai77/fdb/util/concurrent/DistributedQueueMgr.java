@@ -1,24 +1,34 @@
 package com.weikai77.fdb.util.concurrent;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.ChangeMonitor;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Space;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.SystemClock;
 
 /**
  * Layout on FDB:
  * <pre>
  *    /meta/id   -> {@link QueueDef}
  *    /data/id   -> {@link DistributedQueue} | {@link DistributedBoundedQueue} | {@link DistributedBlockingQueue}
+ *    /stats/id  -> {@link QueueStats}
  * </pre>
+ * The stats of all queues are kept together, so that {@link #getStats()}
+ * reads them with a single range read.
  * 
  * @author kwei
  *
@@ -27,17 +37,37 @@ public class DistributedQueueMgr implements DistributedQueueFactory
 {
   private static final String KEY_META = "meta";
   private static final String KEY_DATA = "data";
+  private static final String KEY_STATS = "stats";
 
   private final Database _fdb;
   private final Space _space;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
+  private final Clock _clock;
+  private final ChangeMonitor _changeMonitor;
 
   public DistributedQueueMgr(Database fdb, Space space, 
       DistributedLockMgr lockProvider)
+  {
+    this(fdb, space, lockProvider, SystemClock.getInstance());
+  }
+
+  public DistributedQueueMgr(Database fdb, Space space,
+      DistributedLockMgr lockProvider, Clock clock)
   {
     this._fdb = fdb;
     this._space = space;
-    this._timer = Executors.newSingleThreadScheduledExecutor();
+    this._timer = HashedWheelTimer.getInstance();
+    this._clock = clock;
+    this._changeMonitor = new ChangeMonitor(_fdb);
+  }
+
+  /**
+   * Lifecycle method. Stops the change monitoring behind the queue
+   * subscriptions.
+   */
+  public void shutdown()
+  {
+    _changeMonitor.shutdown();
   }
   
   private Subspace getMetaSpace(String id)
@@ -49,6 +79,11 @@ public class DistributedQueueMgr implements DistributedQueueFactory
   {
     return _space.rawSubspace(KEY_DATA, id);
   }
+
+  private Subspace getStatsSpace(String id)
+  {
+    return _space.rawSubspace(KEY_STATS, id);
+  }
   
   @Override
   public List<Queue> listQueues()
@@ -62,8 +97,7 @@ public class DistributedQueueMgr implements DistributedQueueFactory
   @Override
   public DistributedQueue createQueue(String id)
   {
-    doCreateQueue(id, -1);
-    return new DistributedQueue(_fdb, getDataSpace(id), id);
+    return doCreateQueue(id, new QueueDef(-1));
   }
   
   private QueueDef getQueueDef(Transaction tr, String id)
@@ -76,11 +110,60 @@ public class DistributedQueueMgr implements DistributedQueueFactory
   @Override
   public DistributedQueue createQueue(String id, long capacity)
   {
-    doCreateQueue(id, capacity);
-    return new DistributedBoundedQueue(_fdb, getDataSpace(id), id, capacity);
+    return doCreateQueue(id, new QueueDef(capacity));
+  }
+
+  /**
+   * Creates a queue whose items expire after the given time-to-live, see
+   * {@link DistributedQueue}.
+   * 
+   * @param capacity 0 for an unbounded queue
+   */
+  public DistributedQueue createQueue(String id, long capacity, long ttl, TimeUnit unit)
+  {
+    if (ttl <= 0)
+    {
+      throw new IllegalArgumentException("Invalid TTL: " + ttl);
+    }
+
+    return doCreateQueue(id, new QueueDef(capacity, false, unit.toMillis(ttl)));
+  }
+
+  /**
+   * Same as {@link #createQueue(String, long, long, TimeUnit)}, with
+   * blocking takes.
+   */
+  public DistributedBlockingQueueLockFree createBlockingQueue(String id, long capacity, long ttl,
+      TimeUnit unit)
+  {
+    return new DistributedBlockingQueueLockFree(_fdb, createQueue(id, capacity, ttl, unit), _timer,
+        _changeMonitor);
   }
   
-  private void doCreateQueue(String id, long capacity)
+  /**
+   * Creates a bounded queue in ring-buffer mode, where an offer to a full
+   * queue overwrites the oldest item instead of failing.
+   */
+  public DistributedBoundedQueue createRingBuffer(String id, long capacity)
+  {
+    if (capacity <= 0)
+    {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+
+    return (DistributedBoundedQueue) doCreateQueue(id, new QueueDef(capacity, true));
+  }
+
+  /**
+   * Same as {@link #createRingBuffer(String, long)}, with blocking takes.
+   */
+  public DistributedBlockingQueueLockFree createBlockingRingBuffer(String id, long capacity)
+  {
+    return new DistributedBlockingQueueLockFree(_fdb, createRingBuffer(id, capacity), _timer,
+        _changeMonitor);
+  }
+
+  private DistributedQueue doCreateQueue(String id, QueueDef newDef)
   {
     _fdb.run(new Function<Transaction,Void>()
     {
@@ -93,7 +176,105 @@ public class DistributedQueueMgr implements DistributedQueueFactory
           throw new IllegalArgumentException("Queue already exists: " + id);
         }
 
-        tr.set(getMetaSpace(id).pack(), new QueueDef(capacity).toBytes());
+        tr.set(getMetaSpace(id).pack(), newDef.toBytes());
+        return null;
+      }
+    });
+    return newQueue(id, newDef);
+  }
+
+  private DistributedQueue newQueue(String id, QueueDef def)
+  {
+    if (def.isBounded())
+    {
+      return new DistributedBoundedQueue(_fdb, getDataSpace(id), id, def.getCapacity(),
+          def.isOverwrite(), def.getTtl(), _clock, getStatsSpace(id));
+    }
+    else
+    {
+      return new DistributedQueue(_fdb, getDataSpace(id), id, def.getTtl(), _clock,
+          getStatsSpace(id));
+    }
+  }
+
+  /**
+   * Reads the telemetry of every queue with a single range read, e.g. for
+   * an autoscaler to poll every few seconds. Queues that have never been
+   * offered to are left out.
+   *
+   * @return the stats by queue id
+   */
+  public Map<String,QueueStats> getStats()
+  {
+    Subspace statsSpace = _space.rawSubspace(KEY_STATS);
+    List<KeyValue> kvs = _fdb.run(new Function<Transaction,List<KeyValue>>()
+    {
+      @Override
+      public List<KeyValue> apply(Transaction tr)
+      {
+        return tr.getRange(statsSpace.range()).asList().get();
+      }
+    });
+
+    // keys are grouped by queue id
+    Map<String,List<KeyValue>> kvsById = new LinkedHashMap<>();
+    for (KeyValue kv : kvs)
+    {
+      String id = statsSpace.unpack(kv.getKey()).getString(0);
+      kvsById.computeIfAbsent(id, k -> new ArrayList<>()).add(kv);
+    }
+
+    long now = _clock.currentTimeMillis();
+    Map<String,QueueStats> stats = new LinkedHashMap<>();
+    kvsById.forEach((id, idKvs) ->
+        stats.put(id, QueueStats.fromKeyValues(id, getStatsSpace(id), idKvs, now)));
+    return stats;
+  }
+
+  /**
+   * Changes the capacity of a bounded queue, in a single transaction that
+   * producers and consumers simply conflict with, see {@link
+   * DistributedBoundedQueue#resize(Transaction, long)}. Instances created
+   * before the resize see the new capacity too, and producers blocked on a
+   * full lock-free blocking queue are woken up when the capacity grows.
+   */
+  public void resize(String id, long newCapacity)
+  {
+    if (newCapacity <= 0)
+    {
+      throw new IllegalArgumentException("Invalid capacity: " + newCapacity);
+    }
+
+    // the capacity of a queue being migrated cannot change
+    getQueue(id);
+
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        QueueDef def = getQueueDef(tr, id);
+        if (def == null)
+        {
+          throw new IllegalArgumentException("Queue does not exist: " + id);
+        }
+        else if (!def.isBounded())
+        {
+          throw new IllegalArgumentException("Cannot resize unbounded queue: " + id);
+        }
+
+        QueueDef newDef = new QueueDef(newCapacity, def.isOverwrite(), def.getTtl());
+        tr.set(getMetaSpace(id).pack(), newDef.toBytes());
+        DistributedQueue queue = newQueue(id, def);
+        ((DistributedBoundedQueue) queue).resize(tr, newCapacity);
+
+        if (newCapacity > def.getCapacity())
+        {
+          // room for the blocked producers
+          DistributedBlockingQueueLockFree blockingQueue = new DistributedBlockingQueueLockFree(
+              _fdb, queue, _timer, _changeMonitor);
+          FdbUtils.signalWatch(tr, blockingQueue.getNotFullKey());
+        }
         return null;
       }
     });
@@ -115,20 +296,20 @@ public class DistributedQueueMgr implements DistributedQueueFactory
     {
       return null;
     }
-    else if (def.isBounded())
-    {
-      return new DistributedBoundedQueue(_fdb, getDataSpace(id), id, def.getCapacity());
-    }
-    else
+
+    DistributedQueue queue = newQueue(id, def);
+    if (queue instanceof DistributedBoundedQueue)
     {
-      return new DistributedQueue(_fdb, getDataSpace(id), id);
+      // queues written by older versions are migrated before any use
+      ((DistributedBoundedQueue) queue).migrate();
     }
+    return queue;
   }
 
   @Override
   public DistributedBlockingQueueLockFree createBlockingQueue(String id)
   {
-    return new DistributedBlockingQueueLockFree(_fdb, createQueue(id), _timer);
+    return new DistributedBlockingQueueLockFree(_fdb, createQueue(id), _timer, _changeMonitor);
   }
   
   public DistributedBlockingQueue createBlockingQueueWithLocking(String id)
@@ -139,7 +320,7 @@ public class DistributedQueueMgr implements DistributedQueueFactory
   @Override
   public DistributedBlockingQueueLockFree createBlockingQueue(String id, long capacity)
   {
-    return new DistributedBlockingQueueLockFree(_fdb, createQueue(id, capacity), _timer);
+    return new DistributedBlockingQueueLockFree(_fdb, createQueue(id, capacity), _timer, _changeMonitor);
   }
   
   public DistributedBlockingQueue createBlockingQueueWithLocking(String id, long capacity)
@@ -157,7 +338,7 @@ public class DistributedQueueMgr implements DistributedQueueFactory
     }
     else
     {
-      return new DistributedBlockingQueueLockFree(_fdb, getQueue(id), _timer);
+      return new DistributedBlockingQueueLockFree(_fdb, getQueue(id), _timer, _changeMonitor);
     }
   }
 
@@ -174,6 +355,113 @@ public class DistributedQueueMgr implements DistributedQueueFactory
     }
   }
 
+  public MultiQueueConsumer newMultiQueueConsumer()
+  {
+    return new MultiQueueConsumer(_fdb, _timer);
+  }
+
+  /**
+   * Starts a pool of handlers on the given queue, which must have been
+   * created by this manager.
+   *
+   * @param prefetch max number of items fetched ahead of the handlers
+   * @param leaseMillis time after which an item not yet handled is
+   *        redelivered
+   * @param maxAttempts number of attempts before an item is moved to the
+   *        dead-letter queue
+   */
+  public QueueWorkerPool newQueueWorkerPool(TransactionalQueue queue, Consumer<byte[]> handler,
+      int workerThreads, int prefetch, long leaseMillis, int maxAttempts)
+  {
+    QueueWorkerPool pool = new QueueWorkerPool(_fdb, getDataSpace(queue.getId()), queue, handler,
+        _timer, _clock, workerThreads, prefetch, leaseMillis, maxAttempts);
+    pool.start();
+    return pool;
+  }
+
+  /**
+   * Creates the task queue of a new distributed executor, and starts
+   * the given number of local workers on it.
+   *
+   * @param workerThreads 0 for a client that only submits tasks
+   */
+  public DistributedExecutorService createExecutorService(String id, int workerThreads)
+  {
+    checkWorkerThreads(workerThreads);
+    return newExecutorService(createBlockingQueue(id), workerThreads);
+  }
+
+  /**
+   * Joins an existing distributed executor, starting the given number of
+   * local workers on it.
+   *
+   * @param workerThreads 0 for a client that only submits tasks
+   */
+  public DistributedExecutorService getExecutorService(String id, int workerThreads)
+  {
+    checkWorkerThreads(workerThreads);
+    DistributedBlockingQueueLockFree queue = getBlockingQueue(id);
+    if (queue == null)
+    {
+      return null;
+    }
+    else
+    {
+      return newExecutorService(queue, workerThreads);
+    }
+  }
+
+  /**
+   * Same as {@link #createExecutorService(String, int)}, but the executor
+   * also runs delayed and periodic tasks.
+   */
+  public DistributedScheduledExecutorService createScheduledExecutorService(String id,
+      int workerThreads)
+  {
+    checkWorkerThreads(workerThreads);
+    DistributedScheduledExecutorService executor = new DistributedScheduledExecutorService(_fdb,
+        createBlockingQueue(id), _timer, _clock, workerThreads);
+    executor.start();
+    return executor;
+  }
+
+  /**
+   * Same as {@link #getExecutorService(String, int)}, but the executor
+   * also runs delayed and periodic tasks.
+   */
+  public DistributedScheduledExecutorService getScheduledExecutorService(String id,
+      int workerThreads)
+  {
+    checkWorkerThreads(workerThreads);
+    DistributedBlockingQueueLockFree queue = getBlockingQueue(id);
+    if (queue == null)
+    {
+      return null;
+    }
+
+    DistributedScheduledExecutorService executor = new DistributedScheduledExecutorService(_fdb,
+        queue, _timer, _clock, workerThreads);
+    executor.start();
+    return executor;
+  }
+
+  private static void checkWorkerThreads(int workerThreads)
+  {
+    if (workerThreads < 0)
+    {
+      throw new IllegalArgumentException("Invalid number of worker threads: " + workerThreads);
+    }
+  }
+
+  private DistributedExecutorService newExecutorService(DistributedBlockingQueueLockFree queue,
+      int workerThreads)
+  {
+    DistributedExecutorService executor = new DistributedExecutorService(_fdb, queue, _timer,
+        _clock, workerThreads);
+    executor.start();
+    return executor;
+  }
+
   @Override
   public void deleteQueue(String id)
   {
@@ -189,6 +477,8 @@ public class DistributedQueueMgr implements DistributedQueueFactory
         Subspace dataSpace = getDataSpace(id);
         tr.clear(dataSpace.range());
         tr.clear(dataSpace.pack());
+
+        tr.clear(getStatsSpace(id).range());
         return null;
       }
     });
@@ -196,25 +486,43 @@ public class DistributedQueueMgr implements DistributedQueueFactory
 
   private static class QueueDef
   {
-    private static final int VERSION = 0;
+    private static final int VERSION = 2;
     private static final int IDX_VERSION = 0;
     private static final int IDX_CAPACITY = 1;
+    private static final int IDX_OVERWRITE = 2;
+    private static final int IDX_TTL = 3;
 
     private final int _version;
     private final long _capacity;
+    private final boolean _overwrite;
+    private final long _ttl;
     
     public QueueDef(long capacity)
+    {
+      this(capacity, false);
+    }
+
+    public QueueDef(long capacity, boolean overwrite)
+    {
+      this(capacity, overwrite, 0);
+    }
+
+    public QueueDef(long capacity, boolean overwrite, long ttl)
     {
       this._version = VERSION;
       this._capacity = capacity;
+      this._overwrite = overwrite;
+      this._ttl = ttl;
     }
     
     public boolean isBounded() { return _capacity > 0; }
     public long getCapacity() { return _capacity; }
+    public boolean isOverwrite() { return _overwrite; }
+    public long getTtl() { return _ttl; }
     
     public byte[] toBytes()
     {
-      return Tuple.from(_version, _capacity).pack();
+      return Tuple.from(_version, _capacity, _overwrite ? 1 : 0, _ttl).pack();
     }
     
     public static QueueDef fromBytes(byte[] bytes)
@@ -228,6 +536,21 @@ public class DistributedQueueMgr implements DistributedQueueFactory
       int version = (int) tuple.getLong(IDX_VERSION);
       if (version == VERSION)
       {
+        long capacity = tuple.getLong(IDX_CAPACITY);
+        boolean overwrite = tuple.getLong(IDX_OVERWRITE) != 0;
+        long ttl = tuple.getLong(IDX_TTL);
+        return new QueueDef(capacity, overwrite, ttl);
+      }
+      else if (version == 1)
+      {
+        // written before TTLs
+        long capacity = tuple.getLong(IDX_CAPACITY);
+        boolean overwrite = tuple.getLong(IDX_OVERWRITE) != 0;
+        return new QueueDef(capacity, overwrite);
+      }
+      else if (version == 0)
+      {
+        // written before ring buffers
         long capacity = tuple.getLong(IDX_CAPACITY);
         return new QueueDef(capacity);
       }
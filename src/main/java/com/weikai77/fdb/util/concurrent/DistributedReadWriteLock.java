@@ -1,60 +1,88 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.UUID;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.foundationdb.Database;
+import com.foundationdb.MutationType;
+import com.foundationdb.ReadTransaction;
 import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * A distributed read-write lock implementation on FDB.
  * <p>
- * This implementation is not reentrant.
+ * This implementation is not reentrant. Readers are admitted as long as
+ * there is no writer, and a writer once there are neither readers nor
+ * writers.
+ * <p>
+ * Admission is decided and recorded in a single transaction, which sets a
+ * watch if the lock is not available, in the style of {@link
+ * DistributedBlockingQueueLockFree}. Releases signal the watch keys that
+ * the waiters are interested in.
+ * <p>
+ * The reader count has its own key, updated with atomic adds. Readers
+ * only read the writer count, and writers the reader count, so that
+ * readers never conflict with each other, only with writers. Readers thus
+ * also signal the waiting writers blindly on every release, and the
+ * writers check again whether the readers are gone.
  * <p>
  * Layout on FDB:
  * <pre>
- *    /data    -> {@link RwlData}
- *    /lock    -> {@link DistributedSimpleLock}
+ *    /readers                    -> reader count
+ *    /writers                    -> writer count
+ *    /waitingReaders             -> waiting reader count
+ *    /waitingWriters             -> waiting writer count
+ *    /watches/zeroWriters        -> [RANDOM BYTES]
+ *    /watches/zeroReaderWriters  -> [COUNTER]
  * </pre>
+ * The counts are little-endian, as required by atomic adds.
  * 
  * @author kwei
  *
  */
 public class DistributedReadWriteLock
 {
-  private static final String KEY_DATA = "data";
-  private static final String KEY_LOCK = "lock";
+  private static final String KEY_READERS = "readers";
+  private static final String KEY_WRITERS = "writers";
+  private static final String KEY_WAITING_READERS = "waitingReaders";
+  private static final String KEY_WAITING_WRITERS = "waitingWriters";
+  private static final String KEY_WATCHES = "watches";
   private static final String KEY_ZERO_WRITERS = "zeroWriters";
   private static final String KEY_ZERO_READER_WRITERS = "zeroReaderWriters";
   
   private final Database _fdb;
   private final Subspace _space;
+  private final HashedWheelTimer _timer;
   private final String _id;
-  private final DistributedSimpleLock _lock;
-  private final DistributedCondition _zeroWriters;
-  private final DistributedCondition _zeroReaderWriters;
 
   // derived and cached
-  private final byte[] _dataKey;
+  private final byte[] _readersKey;
+  private final byte[] _writersKey;
+  private final byte[] _waitingReadersKey;
+  private final byte[] _waitingWritersKey;
+  private final byte[] _zeroWriters;
+  private final byte[] _zeroReaderWriters;
   
-  protected DistributedReadWriteLock(Database fdb, Subspace space, ScheduledExecutorService timer,
-      DistributedLockFactory lockFactory, String id)
+  protected DistributedReadWriteLock(Database fdb, Subspace space, HashedWheelTimer timer,
+      String id)
   {
     _fdb = fdb;
     _space = space;
+    _timer = timer;
     _id = id;
-    _lock = new DistributedSimpleLock(_fdb, _space.subspace(Tuple.from(KEY_LOCK)), timer, KEY_LOCK, 
-        UUID.randomUUID().toString());
-    _zeroWriters = _lock.newCondition(KEY_ZERO_WRITERS);
-    _zeroReaderWriters = _lock.newCondition(KEY_ZERO_READER_WRITERS);
-    _dataKey = _space.pack(KEY_DATA);
+    _readersKey = _space.pack(KEY_READERS);
+    _writersKey = _space.pack(KEY_WRITERS);
+    _waitingReadersKey = _space.pack(KEY_WAITING_READERS);
+    _waitingWritersKey = _space.pack(KEY_WAITING_WRITERS);
+    _zeroWriters = _space.pack(Tuple.from(KEY_WATCHES, KEY_ZERO_WRITERS));
+    _zeroReaderWriters = _space.pack(Tuple.from(KEY_WATCHES, KEY_ZERO_READER_WRITERS));
   }
   
   public String getId()
@@ -74,223 +102,185 @@ public class DistributedReadWriteLock
   
   public int getReaderCount()
   {
-    return getLockData().getReaderCount();
+    return getCount(_readersKey);
   }
   
   public int getWriterCount()
   {
-    return getLockData().getWriterCount();
+    return getCount(_writersKey);
   }
   
   public int getWaitingReaderCount()
   {
-    return getLockData().getWaitingReaderCount();
+    return getCount(_waitingReadersKey);
   }
   
   public int getWaitingWriterCount()
   {
-    return getLockData().getWaitingWriterCount();
+    return getCount(_waitingWritersKey);
   }
   
-  private RwlData getLockData()
+  private int getCount(byte[] key)
   {
-    RwlData data = RwlData.fromBytes(FdbUtils.get(_fdb, _dataKey));
-    return data == null ? new RwlData() : data;
+    return decodeCount(FdbUtils.get(_fdb, key));
   }
-  
-  private RwlData updateLockData(java.util.function.Function<RwlData,RwlData> modifier)
+
+  private static int getCount(ReadTransaction tr, byte[] key)
   {
-    return _fdb.run(new Function<Transaction, RwlData>()
-    {
-      @Override
-      public RwlData apply(Transaction tr)
-      {
-        RwlData data = RwlData.fromBytes(tr.get(_dataKey).get());
-        if (data == null)
-        {
-          data = new RwlData();
-        }
-        modifier.apply(data);
-        tr.set(_dataKey, data.toBytes());
-        return data;
-      }
-    });
+    return decodeCount(tr.get(key).get());
   }
 
-  /**
-   * Increments the reader count and decrements the waiting reader count.
-   */
-  private RwlData onReaderAdmission()
+  private static int decodeCount(byte[] value)
   {
-    return updateLockData(data -> data.incrReaderCount().decrWaitingReaderCount());
+    return value == null ? 0 : (int) FdbUtils.decodeLong(value);
   }
-  
-  private RwlData decrReaderCount()
+
+  private static void add(Transaction tr, byte[] key, long delta)
   {
-    return updateLockData(data -> data.decrReaderCount());
+    tr.mutate(MutationType.ADD, key, FdbUtils.encode(delta));
   }
-  
+
   /**
-   * Increments the writer count and decrements the waiting writer count.
+   * Waits for the watch to fire, and cancels it in any case, interrupt
+   * included, as the caller sets a new one on its next attempt.
    */
-  private RwlData onWriterAdmission()
-  {
-    return updateLockData(data -> data.incrWriterCount().decrWaitingWriterCount());
-  }
-  
-  private RwlData decrWriterCount()
+  private static void await(Watch watch) throws InterruptedException
   {
-    return updateLockData(data -> data.decrWriterCount());
-  }
-  
-  private RwlData incrWaitingReaderCount()
-  {
-    return updateLockData(data -> data.incrWaitingReaderCount());
-  }
-  
-  private RwlData decrWaitingReaderCount()
-  {
-    return updateLockData(data -> data.decrWaitingReaderCount());
-  }
-  
-  private RwlData incrWaitingWriterCount()
-  {
-    return updateLockData(data -> data.incrWaitingWriterCount());
-  }
-  
-  private RwlData decrWaitingWriterCount()
-  {
-    return updateLockData(data -> data.decrWaitingWriterCount());
-  }
-  
-  private static class RwlData
-  {
-    private static final int VERSION = 1;
-    private static final int IDX_VERSION = 0;
-    private static final int IDX_READER_COUNT = 1;
-    private static final int IDX_WRITER_COUNT = 2;
-    private static final int IDX_WAITING_READER_COUNT = 3;
-    private static final int IDX_WAITING_WRITER_COUNT = 4;
-
-    private final int _version;
-    private int _readerCount;
-    private int _writerCount;
-    private int _waitingReaderCount;
-    private int _waitingWriterCount;
-    
-    public RwlData()
+    try
     {
-      this(0, 0, 0, 0);
+      watch.awaitInterruptibly();
     }
-
-    public RwlData(int readerCount, int writerCount,
-                    int waitingReaderCount, int waitingWriterCount)
+    finally
     {
-      this._version = VERSION;
-      this._readerCount = readerCount;
-      this._writerCount = writerCount;
-      this._waitingReaderCount = waitingReaderCount;
-      this._waitingWriterCount = waitingWriterCount;
+      watch.cancel();
     }
-    
-    public int getReaderCount() { return _readerCount; }
-    public int getWriterCount() { return _writerCount; }
-    public int getWaitingReaderCount() { return _waitingReaderCount; }
-    public int getWaitingWriterCount() { return _waitingWriterCount; }
-    public RwlData incrReaderCount() { ++_readerCount; return this; }
-    public RwlData decrReaderCount() { --_readerCount; return this; }
-    public RwlData incrWriterCount() { ++_writerCount; return this; }
-    public RwlData decrWriterCount() { --_writerCount; return this; }
-    public RwlData incrWaitingReaderCount() { ++_waitingReaderCount; return this; }
-    public RwlData decrWaitingReaderCount() { --_waitingReaderCount; return this; }
-    public RwlData incrWaitingWriterCount() { ++_waitingWriterCount; return this; }
-    public RwlData decrWaitingWriterCount() { --_waitingWriterCount; return this; }
-    
-    public byte[] toBytes()
-    {
-      return Tuple.from(_version, _readerCount, _writerCount, 
-          _waitingReaderCount, _waitingWriterCount).pack();
-    }
-    
-    public static RwlData fromBytes(byte[] bytes)
+  }
+
+  /**
+   * Gives up waiting, after an interrupt or an error.
+   */
+  private void onWaitAborted(byte[] waitingKey)
+  {
+    _fdb.run(new Function<Transaction, Void>()
     {
-      if (bytes == null)
+      @Override
+      public Void apply(Transaction tr)
       {
+        add(tr, waitingKey, -1);
         return null;
       }
-      
-      Tuple tuple = Tuple.fromBytes(bytes);
-      int version = (int) tuple.getLong(IDX_VERSION);
-      if (version == VERSION)
-      {
-        int readerCount = (int) tuple.getLong(IDX_READER_COUNT);
-        int writerCount = (int) tuple.getLong(IDX_WRITER_COUNT);
-        int waitingReaderCount = (int) tuple.getLong(IDX_WAITING_READER_COUNT);
-        int waitingWriterCount = (int) tuple.getLong(IDX_WAITING_WRITER_COUNT);
-        return new RwlData(readerCount, writerCount, 
-            waitingReaderCount, waitingWriterCount);
-      }
-      else
-      {
-        throw new IllegalArgumentException("Unsupported version: " + version);
-      }
-    }
+    });
   }
   
   public class ReadLock
   {
     public void lock() throws InterruptedException
     {
-      _lock.acquire();
-      try
+      boolean waiting = false;
+      while (true)
       {
-        incrWaitingReaderCount();
-
-        boolean success = false;
-        try
+        final boolean registered = waiting;
+        Watch watch = _fdb.run(new Function<Transaction,Watch>()
         {
-          while (getLockData().getWriterCount() > 0)
+          @Override
+          public Watch apply(Transaction tr)
           {
-            _zeroWriters.await();
+            if (getCount(tr, _writersKey) <= 0)
+            {
+              add(tr, _readersKey, 1);
+              if (registered)
+              {
+                add(tr, _waitingReadersKey, -1);
+              }
+              return null;
+            }
+            else
+            {
+              if (!registered)
+              {
+                add(tr, _waitingReadersKey, 1);
+              }
+              return FdbUtils.getAndWatch(tr, _timer, _zeroWriters);
+            }
           }
-          success = true;
+        });
+
+        if (watch == null)
+        {
+          // admitted
+          return;
         }
-        finally
+
+        waiting = true;
+        try
         {
-          if (success)
-          {
-            onReaderAdmission();
-          }
-          else // some exception has occurred
-          {
-            decrWaitingReaderCount();
-          }
+          await(watch);
+        }
+        catch (RuntimeException | InterruptedException ex)
+        {
+          onWaitAborted(_waitingReadersKey);
+          throw ex;
         }
       }
-      finally
+    }
+
+    /**
+     * Acquires the read lock only if there is no writer.
+     */
+    public boolean tryLock()
+    {
+      return _fdb.run(new Function<Transaction,Boolean>()
+      {
+        @Override
+        public Boolean apply(Transaction tr)
+        {
+          return tryLock(tr);
+        }
+      });
+    }
+
+    /**
+     * Same as {@link #tryLock()}, within the given transaction.
+     */
+    public boolean tryLock(Transaction tr)
+    {
+      if (getCount(tr, _writersKey) > 0)
       {
-        _lock.release();
+        return false;
       }
+      add(tr, _readersKey, 1);
+      return true;
     }
     
     public void unlock() throws InterruptedException
     {
-      _lock.acquire();
-      try
+      _fdb.run(new Function<Transaction,Void>()
       {
-        RwlData data = decrReaderCount();
-        if (data.getReaderCount() <= 0 && data.getWriterCount() <= 0)
+        @Override
+        public Void apply(Transaction tr)
         {
-          // no more readers or writers, good opportunity to clean up
-          FdbUtils.clear(_fdb, _dataKey);
-
-          _zeroReaderWriters.signalAll();
+          unlock(tr);
+          return null;
         }
-      }
-      finally
+      });
+    }
+
+    /**
+     * Same as {@link #unlock()}, within the given transaction.
+     * <p>
+     * The reader count is only checked on a snapshot, and the waiting
+     * writers signaled with an atomic add, so that concurrent releases do
+     * not conflict.
+     */
+    public void unlock(Transaction tr)
+    {
+      if (getCount(tr.snapshot(), _readersKey) <= 0)
       {
-        _lock.release();
+        throw new IllegalMonitorStateException("Trying to release a read lock not held");
       }
+
+      add(tr, _readersKey, -1);
+      add(tr, _zeroReaderWriters, 1);
     }
   }
   
@@ -298,68 +288,123 @@ public class DistributedReadWriteLock
   {
     public void lock() throws InterruptedException
     {
-      _lock.acquire();
-      try
+      boolean waiting = false;
+      while (true)
       {
-        incrWaitingWriterCount();
-
-        boolean success = false;
-        try
+        final boolean registered = waiting;
+        Watch watch = _fdb.run(new Function<Transaction,Watch>()
         {
-          RwlData data = getLockData();
-          while (data.getWriterCount() > 0 || data.getReaderCount() > 0)
+          @Override
+          public Watch apply(Transaction tr)
           {
-            _zeroReaderWriters.await();
-            data = getLockData();
+            if (isFree(tr))
+            {
+              tr.set(_writersKey, FdbUtils.encode(1));
+              if (registered)
+              {
+                add(tr, _waitingWritersKey, -1);
+              }
+              return null;
+            }
+            else
+            {
+              if (!registered)
+              {
+                add(tr, _waitingWritersKey, 1);
+              }
+              return FdbUtils.getAndWatch(tr, _timer, _zeroReaderWriters);
+            }
           }
-          success = true;
+        });
+
+        if (watch == null)
+        {
+          // admitted
+          return;
         }
-        finally
+
+        waiting = true;
+        try
         {
-          if (success)
-          {
-            onWriterAdmission();
-          }
-          else // some exception has occurred
-          {
-            decrWaitingWriterCount();
-          }
+          await(watch);
+        }
+        catch (RuntimeException | InterruptedException ex)
+        {
+          onWaitAborted(_waitingWritersKey);
+          throw ex;
         }
       }
-      finally
+    }
+
+    /**
+     * Acquires the write lock only if there are neither readers nor writers.
+     */
+    public boolean tryLock()
+    {
+      return _fdb.run(new Function<Transaction,Boolean>()
+      {
+        @Override
+        public Boolean apply(Transaction tr)
+        {
+          return tryLock(tr);
+        }
+      });
+    }
+
+    /**
+     * Same as {@link #tryLock()}, within the given transaction.
+     */
+    public boolean tryLock(Transaction tr)
+    {
+      if (!isFree(tr))
       {
-        _lock.release();
+        return false;
       }
+      tr.set(_writersKey, FdbUtils.encode(1));
+      return true;
     }
     
     public void unlock() throws InterruptedException
     {
-      _lock.acquire();
-      try
+      _fdb.run(new Function<Transaction,Void>()
       {
-        RwlData data = decrWriterCount();
-        
-        // TODO use the waiting reader/writer counts to determine
-        //      whether to favor readers or writers
-        
-        // favor the writers
-        if (data.getWriterCount() <= 0 && data.getReaderCount() <= 0)
-        {
-          // no more readers or writers, good opportunity to clean up
-          FdbUtils.clear(_fdb, _dataKey);
-
-          _zeroReaderWriters.signalAll();
-        }
-        
-        if (data.getWriterCount() <= 0)
+        @Override
+        public Void apply(Transaction tr)
         {
-          _zeroWriters.signalAll();
+          unlock(tr);
+          return null;
         }
-      }
-      finally
+      });
+    }
+
+    /**
+     * Same as {@link #unlock()}, within the given transaction.
+     */
+    public void unlock(Transaction tr)
+    {
+      if (getCount(tr, _writersKey) <= 0)
       {
-        _lock.release();
+        throw new IllegalMonitorStateException("Trying to release a write lock not held");
       }
+
+      // no reader can be admitted while the writer holds the lock
+      tr.clear(_writersKey);
+
+      // TODO use the waiting reader/writer counts to determine
+      //      whether to favor readers or writers
+
+      // favor the writers
+      add(tr, _zeroReaderWriters, 1);
+      FdbUtils.signalWatch(tr, _zeroWriters);
+    }
+
+    /**
+     * Reads both counts, so that a writer conflicts with any reader or
+     * writer admitted concurrently.
+     */
+    private boolean isFree(Transaction tr)
+    {
+      return getCount(tr, _writersKey) <= 0 && getCount(tr, _readersKey) <= 0;
     }
   }
 
@@ -1,6 +1,5 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -13,6 +12,7 @@ import com.foundationdb.subspace.Subspace;
 import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * A distributed, reentrant lock implementation on FDB.
@@ -37,14 +37,14 @@ public class DistributedReentrantLock
 
   private final Database _fdb;
   private final Subspace _space;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
   private final String _id;
   private final String _owner;
 
   // derived and cached
   private final byte[] _dataKey;
   
-  protected DistributedReentrantLock(Database db, Subspace space, ScheduledExecutorService timer, 
+  protected DistributedReentrantLock(Database db, Subspace space, HashedWheelTimer timer, 
       String id, String owner)
   {
     this._fdb = db;
@@ -76,7 +76,7 @@ public class DistributedReentrantLock
         @Override
         public Watch apply(Transaction tr)
         {
-          if (acquireIfAvailable(tr))
+          if (tryAcquire(tr))
           {
             return null;
           }
@@ -128,7 +128,7 @@ public class DistributedReentrantLock
         @Override
         public Watch apply(Transaction tr)
         {
-          if (acquireIfAvailable(tr))
+          if (tryAcquire(tr))
           {
             return null;
           }
@@ -164,12 +164,15 @@ public class DistributedReentrantLock
     {
       public Boolean apply(Transaction tr)
       {
-        return acquireIfAvailable(tr);
+        return tryAcquire(tr);
       }
     });
   }
   
-  private boolean acquireIfAvailable(Transaction tr)
+  /**
+   * Same as {@link #tryAcquire()}, within the given transaction.
+   */
+  public boolean tryAcquire(Transaction tr)
   {
     LockData lock = getLock(tr);
     if (lock == null)
@@ -213,7 +216,10 @@ public class DistributedReentrantLock
     return hasLock(_fdb.createTransaction());
   }
   
-  private boolean hasLock(Transaction tr)
+  /**
+   * Same as {@link #hasLock()}, within the given transaction.
+   */
+  public boolean hasLock(Transaction tr)
   {
     LockData lock = getLock(tr);
     return hasLock(lock);
@@ -238,18 +244,26 @@ public class DistributedReentrantLock
     {
       public Void apply(Transaction tr)
       {
-        if (hasLock(tr))
-        {
-          decrementHoldCountInFdb(tr);
-          return null;
-        }
-        else
-        {
-          throw new IllegalMonitorStateException("Trying to release a lock not owned");
-        }
+        release(tr);
+        return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #release()}, within the given transaction.
+   */
+  public void release(Transaction tr)
+  {
+    if (hasLock(tr))
+    {
+      decrementHoldCountInFdb(tr);
+    }
+    else
+    {
+      throw new IllegalMonitorStateException("Trying to release a lock not owned");
+    }
+  }
   
   private void decrementHoldCountInFdb(Transaction tr)
   {
@@ -282,11 +296,19 @@ public class DistributedReentrantLock
       @Override
       public Integer apply(Transaction tr)
       {
-        LockData lock = getLock(tr);
-        return hasLock(lock) ? lock.getHoldCount() : 0;
+        return getHoldCount(tr);
       }
     });
   }
+
+  /**
+   * Same as {@link #getHoldCount()}, within the given transaction.
+   */
+  public int getHoldCount(Transaction tr)
+  {
+    LockData lock = getLock(tr);
+    return hasLock(lock) ? lock.getHoldCount() : 0;
+  }
   
   public long getLastAcquired()
   {
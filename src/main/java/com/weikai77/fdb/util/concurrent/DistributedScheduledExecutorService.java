@@ -0,0 +1,613 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
+import com.foundationdb.Range;
+import com.foundationdb.ReadTransaction;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.foundationdb.async.Future;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * A {@link DistributedExecutorService} that also runs delayed and periodic
+ * tasks.
+ * <p>
+ * Scheduled tasks are kept in a time-indexed subspace. A dispatcher on each
+ * node with workers reads the earliest entries and, once they are due,
+ * moves them to the task queue in the same transaction that removes them
+ * from the schedule, so each firing is dispatched by exactly one node.
+ * Between deadlines the dispatcher sleeps on a watch, which is signalled
+ * whenever a task with an earlier deadline is scheduled; the schedule is
+ * never scanned.
+ * <p>
+ * Deadlines are computed from the clocks of the nodes, so clock skew
+ * between nodes shifts firing times accordingly. A periodic task is only
+ * rescheduled once its current firing completes, so it never runs
+ * concurrently with itself: a fixed-rate firing that overruns its period
+ * delays the next one, and the firings missed meanwhile, or while no
+ * dispatcher was running, are coalesced into one. A periodic task that
+ * throws is not rescheduled, and its future completes with the error.
+ * <p>
+ * While a periodic firing is queued or running, the schedule holds a lease
+ * for it, {@link #RUNNING_LEASE_MILLIS} ahead. If the firing has not
+ * completed by then, e.g. because its worker died, the lease falls due and
+ * the task is fired again, so it is never silently lost. A firing running
+ * longer than the lease may therefore overlap with the next one.
+ * <p>
+ * Layout on FDB (within the task queue's space):
+ * <pre>
+ *    /schedule/{fireTime}/{taskId}   -> {@link TaskData}, also for the leases
+ *    /tasks/{taskId}                 -> {@link TaskEntry}
+ *    /watches/schedule               -> random bytes, signalled on earlier deadlines
+ * </pre>
+ *
+ * @author kwei
+ *
+ */
+public class DistributedScheduledExecutorService extends DistributedExecutorService
+    implements ScheduledExecutorService
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(DistributedScheduledExecutorService.class);
+
+  private static final String KEY_SCHEDULE = "schedule";
+  private static final String KEY_TASKS = "tasks";
+  private static final String KEY_WATCHES = "watches";
+  private static final String KEY_SCHEDULE_WATCH = "schedule";
+
+  private static final int DISPATCH_BATCH_SIZE = 100;
+  private static final long MAX_DISPATCH_WAIT_MILLIS = 60000;
+
+  /**
+   * How long a periodic firing may be queued or running before it is
+   * assumed lost and fired again.
+   */
+  public static final long RUNNING_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final ExecutorService _dispatcher;
+  private volatile Watch _dispatcherWatch;
+
+  // derived and cached
+  private final Subspace _scheduleSpace;
+  private final Range _scheduleRange;
+  private final Subspace _tasksSpace;
+  private final byte[] _scheduleWatchKey;
+
+  protected DistributedScheduledExecutorService(Database fdb, DistributedBlockingQueueLockFree queue,
+      HashedWheelTimer timer, Clock clock, int workerThreads)
+  {
+    super(fdb, queue, timer, clock, workerThreads);
+    _dispatcher = workerThreads > 0 ? Executors.newSingleThreadExecutor() : null;
+
+    Subspace space = queue.getFifo().getSpace();
+    _scheduleSpace = space.subspace(Tuple.from(KEY_SCHEDULE));
+    _scheduleRange = _scheduleSpace.range();
+    _tasksSpace = space.subspace(Tuple.from(KEY_TASKS));
+    _scheduleWatchKey = space.subspace(Tuple.from(KEY_WATCHES, KEY_SCHEDULE_WATCH)).pack();
+  }
+
+  /**
+   * Lifecycle method. Starts the local workers and, if there are any,
+   * the dispatcher.
+   */
+  @Override
+  public void start()
+  {
+    super.start();
+    if (_dispatcher != null)
+    {
+      _dispatcher.submit(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          dispatchLoop();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void shutdown()
+  {
+    super.shutdown();
+    stopDispatcher(false);
+  }
+
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    List<Runnable> tasks = super.shutdownNow();
+    stopDispatcher(true);
+    return tasks;
+  }
+
+  private void stopDispatcher(boolean interrupt)
+  {
+    if (_dispatcher != null)
+    {
+      if (interrupt)
+      {
+        _dispatcher.shutdownNow();
+      }
+      else
+      {
+        _dispatcher.shutdown();
+      }
+
+      Watch watch = _dispatcherWatch;
+      if (watch != null)
+      {
+        watch.cancel();
+      }
+    }
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return super.isTerminated() && (_dispatcher == null || _dispatcher.isTerminated());
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    if (!super.awaitTermination(timeout, unit))
+    {
+      return false;
+    }
+
+    long remainingTime = unit.toMillis(timeout) - (System.currentTimeMillis() - startTime);
+    return _dispatcher == null ||
+        _dispatcher.awaitTermination(Math.max(remainingTime, 0), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+  {
+    return schedule(new RunnableCallable<Void>(command, null), delay, unit);
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+  {
+    return doSchedule(callable, unit.toMillis(delay), TaskEntry.MODE_ONE_SHOT, 0);
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+      long period, TimeUnit unit)
+  {
+    if (period <= 0)
+    {
+      throw new IllegalArgumentException("Period must be positive: " + period);
+    }
+    return doSchedule(new RunnableCallable<Void>(command, null), unit.toMillis(initialDelay),
+        TaskEntry.MODE_FIXED_RATE, unit.toMillis(period));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+      long delay, TimeUnit unit)
+  {
+    if (delay <= 0)
+    {
+      throw new IllegalArgumentException("Delay must be positive: " + delay);
+    }
+    return doSchedule(new RunnableCallable<Void>(command, null), unit.toMillis(initialDelay),
+        TaskEntry.MODE_FIXED_DELAY, unit.toMillis(delay));
+  }
+
+  private <V> ScheduledFuture<V> doSchedule(Callable<V> callable, long delayMillis, int mode,
+      long period)
+  {
+    if (isShutdown())
+    {
+      throw new RejectedExecutionException("Executor has been shut down: " + getId());
+    }
+
+    DistributedScheduledTask<V> future = new DistributedScheduledTask<V>(newTaskId(), callable);
+    // periodic tasks only report failures, see onTaskCompleted()
+    TaskData task = new TaskData(future.getTaskId(), mode == TaskEntry.MODE_ONE_SHOT,
+        serialize(callable));
+    long fireTime = _clock.currentTimeMillis() + Math.max(delayMillis, 0);
+
+    _fdb.run(new Function<Transaction,Void>()
+    {
+      @Override
+      public Void apply(Transaction tr)
+      {
+        scheduleTask(tr, task, fireTime, mode, period);
+        return null;
+      }
+    });
+    return future;
+  }
+
+  private void scheduleTask(Transaction tr, TaskData task, long fireTime, int mode, long period)
+  {
+    // read the head before our own write; a snapshot read is enough since
+    // the dispatchers re-read the schedule after every transaction
+    Long headFireTime = getHeadFireTime(tr.snapshot()).get();
+
+    tr.set(getScheduleKey(fireTime, task.getTaskId()), task.toBytes());
+    tr.set(getTaskKey(task.getTaskId()), new TaskEntry(fireTime, mode, period).toBytes());
+
+    if (headFireTime == null || fireTime < headFireTime)
+    {
+      // new earliest deadline, wake up the dispatchers
+      FdbUtils.signalWatch(tr, _scheduleWatchKey);
+    }
+  }
+
+  private Future<Long> getHeadFireTime(ReadTransaction tr)
+  {
+    return tr.getRange(_scheduleRange, 1).asList().map(new Function<List<KeyValue>,Long>()
+    {
+      @Override
+      public Long apply(List<KeyValue> kvs)
+      {
+        return kvs.isEmpty() ? null : _scheduleSpace.unpack(kvs.get(0).getKey()).getLong(0);
+      }
+    });
+  }
+
+  private byte[] getScheduleKey(long fireTime, String taskId)
+  {
+    return _scheduleSpace.pack(Tuple.from(fireTime, taskId));
+  }
+
+  private byte[] getTaskKey(String taskId)
+  {
+    return _tasksSpace.pack(taskId);
+  }
+
+  private TaskEntry getTaskEntry(Transaction tr, String taskId)
+  {
+    return TaskEntry.fromBytes(tr.get(getTaskKey(taskId)).get());
+  }
+
+  private void removeTask(Transaction tr, String taskId, TaskEntry entry)
+  {
+    tr.clear(getScheduleKey(entry.getFireTime(), taskId));
+    tr.clear(getTaskKey(taskId));
+  }
+
+  private void dispatchLoop()
+  {
+    while (!isShutdown())
+    {
+      try
+      {
+        Dispatch dispatch = dispatch();
+        if (dispatch.getWatch() == null)
+        {
+          // dispatched a batch, there may be more due
+          continue;
+        }
+
+        Watch watch = dispatch.getWatch();
+        _dispatcherWatch = watch;
+        try
+        {
+          if (!isShutdown())
+          {
+            long waitTime = MAX_DISPATCH_WAIT_MILLIS;
+            if (dispatch.getNextFireTime() != null)
+            {
+              waitTime = Math.min(waitTime, dispatch.getNextFireTime() - _clock.currentTimeMillis());
+            }
+            if (waitTime > 0)
+            {
+              watch.await(waitTime, TimeUnit.MILLISECONDS);
+            }
+          }
+        }
+        finally
+        {
+          _dispatcherWatch = null;
+          watch.cancel();
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.info("Dispatcher interrupted for executor " + getId());
+        break;
+      }
+      catch (Exception ex)
+      {
+        LOGGER.error("Error dispatching tasks for executor " + getId(), ex);
+      }
+    }
+  }
+
+  /**
+   * Moves the due tasks at the head of the schedule to the task queue.
+   */
+  private Dispatch dispatch()
+  {
+    return _fdb.run(new Function<Transaction,Dispatch>()
+    {
+      @Override
+      public Dispatch apply(Transaction tr)
+      {
+        long now = _clock.currentTimeMillis();
+
+        // snapshot read, so that schedule() calls inserting later deadlines
+        // do not conflict with us; we add conflicts only on what we dispatch
+        List<KeyValue> kvs = tr.snapshot().getRange(_scheduleRange, DISPATCH_BATCH_SIZE).asList().get();
+        List<KeyValue> due = new ArrayList<>();
+        Long nextFireTime = null;
+        for (KeyValue kv : kvs)
+        {
+          long fireTime = _scheduleSpace.unpack(kv.getKey()).getLong(0);
+          if (fireTime > now)
+          {
+            nextFireTime = fireTime;
+            break;
+          }
+          due.add(kv);
+        }
+
+        if (due.isEmpty())
+        {
+          return new Dispatch(FdbUtils.getAndWatch(tr, _timer, _scheduleWatchKey), nextFireTime);
+        }
+
+        // look up all the entries in parallel
+        List<Future<byte[]>> entries = new ArrayList<>(due.size());
+        for (KeyValue kv : due)
+        {
+          tr.addReadConflictKey(kv.getKey());
+          String taskId = _scheduleSpace.unpack(kv.getKey()).getString(1);
+          entries.add(tr.get(getTaskKey(taskId)));
+        }
+
+        for (int i=0; i<due.size(); i++)
+        {
+          KeyValue kv = due.get(i);
+          Tuple tuple = _scheduleSpace.unpack(kv.getKey());
+          long fireTime = tuple.getLong(0);
+          String taskId = tuple.getString(1);
+          TaskEntry entry = TaskEntry.fromBytes(entries.get(i).get());
+
+          tr.clear(kv.getKey());
+          if (entry == null)
+          {
+            // cancelled in the meantime
+            continue;
+          }
+
+          if (entry.isRunning())
+          {
+            LOGGER.warn("Firing of task " + taskId + " not completed within its lease, firing again");
+          }
+
+          if (entry.getMode() == TaskEntry.MODE_ONE_SHOT)
+          {
+            tr.clear(getTaskKey(taskId));
+          }
+          else
+          {
+            // rescheduled once it completes, or once the lease falls due;
+            // fixed-rate tasks resume from the latest firing due, which
+            // coalesces the firings we missed
+            long lastFireTime = entry.isRunning() ? entry.getLastFireTime() : fireTime;
+            lastFireTime += (now - lastFireTime) / entry.getPeriod() * entry.getPeriod();
+            long leaseTime = now + RUNNING_LEASE_MILLIS;
+            tr.set(getScheduleKey(leaseTime, taskId), kv.getValue());
+            tr.set(getTaskKey(taskId), new TaskEntry(leaseTime, entry.getMode(),
+                entry.getPeriod(), lastFireTime, true).toBytes());
+          }
+
+          enqueue(tr, TaskData.fromBytes(kv.getValue()));
+        }
+        return new Dispatch(null, null);
+      }
+    });
+  }
+
+  @Override
+  protected void onTaskCompleted(Transaction tr, TaskData task, TaskResult result)
+  {
+    TaskEntry entry = getTaskEntry(tr, task.getTaskId());
+    if (entry == null || entry.getMode() == TaskEntry.MODE_ONE_SHOT || !entry.isRunning())
+    {
+      // not a periodic task, cancelled, or already rescheduled
+      return;
+    }
+
+    // release the lease
+    tr.clear(getScheduleKey(entry.getFireTime(), task.getTaskId()));
+    if (result.isFailure())
+    {
+      // stop the task and report the failure to its future
+      removeTask(tr, task.getTaskId(), entry);
+      setResult(tr, task.getTaskId(), result);
+    }
+    else if (entry.getMode() == TaskEntry.MODE_FIXED_RATE)
+    {
+      // next firing on the original schedule, right away if it overran
+      long now = _clock.currentTimeMillis();
+      long periods = Math.max((now - entry.getLastFireTime()) / entry.getPeriod(), 1);
+      scheduleTask(tr, task, entry.getLastFireTime() + periods * entry.getPeriod(),
+          entry.getMode(), entry.getPeriod());
+    }
+    else if (entry.getMode() == TaskEntry.MODE_FIXED_DELAY)
+    {
+      scheduleTask(tr, task, _clock.currentTimeMillis() + entry.getPeriod(), entry.getMode(),
+          entry.getPeriod());
+    }
+  }
+
+  protected class DistributedScheduledTask<V> extends DistributedTask<V> implements ScheduledFuture<V>
+  {
+    public DistributedScheduledTask(String taskId, Callable<V> callable)
+    {
+      super(taskId, callable);
+    }
+
+    /**
+     * @return the delay until the next firing, or 0 if the task is not
+     *         scheduled anymore
+     */
+    @Override
+    public long getDelay(TimeUnit unit)
+    {
+      TaskEntry entry = _fdb.run(new Function<Transaction,TaskEntry>()
+      {
+        @Override
+        public TaskEntry apply(Transaction tr)
+        {
+          return TaskEntry.fromBytes(tr.snapshot().get(getTaskKey(getTaskId())).get());
+        }
+      });
+
+      if (entry == null || entry.isRunning())
+      {
+        return 0;
+      }
+      return unit.convert(entry.getFireTime() - _clock.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other)
+    {
+      return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Removes the task from the schedule. A firing already dispatched to
+     * the task queue may still run, but its result is discarded.
+     */
+    @Override
+    protected boolean cancel(Transaction tr)
+    {
+      TaskEntry entry = getTaskEntry(tr, getTaskId());
+      if (entry != null)
+      {
+        removeTask(tr, getTaskId(), entry);
+        if (!entry.isRunning())
+        {
+          return true;
+        }
+      }
+
+      // already dispatched
+      return super.cancel(tr);
+    }
+  }
+
+  private static class Dispatch
+  {
+    private final Watch _watch;
+    private final Long _nextFireTime;
+
+    public Dispatch(Watch watch, Long nextFireTime)
+    {
+      _watch = watch;
+      _nextFireTime = nextFireTime;
+    }
+
+    public Watch getWatch() { return _watch; }
+    public Long getNextFireTime() { return _nextFireTime; }
+  }
+
+  protected static class TaskEntry
+  {
+    public static final int MODE_ONE_SHOT = 0;
+    public static final int MODE_FIXED_RATE = 1;
+    public static final int MODE_FIXED_DELAY = 2;
+
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_FIRE_TIME = 1;
+    private static final int IDX_MODE = 2;
+    private static final int IDX_PERIOD = 3;
+    private static final int IDX_LAST_FIRE_TIME = 4;
+    private static final int IDX_RUNNING = 5;
+
+    private final int _version;
+    private final long _fireTime;
+    private final int _mode;
+    private final long _period;
+    private final long _lastFireTime;
+    private final boolean _running;
+
+    public TaskEntry(long fireTime, int mode, long period)
+    {
+      this(fireTime, mode, period, 0, false);
+    }
+
+    /**
+     * @param fireTime the time of the entry in the schedule, i.e. the
+     *        lease deadline of a running firing
+     * @param lastFireTime the fire time of the firing running, for fixed-rate
+     *        tasks
+     */
+    public TaskEntry(long fireTime, int mode, long period, long lastFireTime, boolean running)
+    {
+      this._version = VERSION;
+      this._fireTime = fireTime;
+      this._mode = mode;
+      this._period = period;
+      this._lastFireTime = lastFireTime;
+      this._running = running;
+    }
+
+    public long getFireTime() { return _fireTime; }
+    public int getMode() { return _mode; }
+    public long getPeriod() { return _period; }
+    public long getLastFireTime() { return _lastFireTime; }
+    public boolean isRunning() { return _running; }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _fireTime, _mode, _period, _lastFireTime, _running ? 1 : 0).pack();
+    }
+
+    public static TaskEntry fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        long fireTime = tuple.getLong(IDX_FIRE_TIME);
+        int mode = (int) tuple.getLong(IDX_MODE);
+        long period = tuple.getLong(IDX_PERIOD);
+        long lastFireTime = tuple.getLong(IDX_LAST_FIRE_TIME);
+        boolean running = tuple.getLong(IDX_RUNNING) != 0;
+        return new TaskEntry(fireTime, mode, period, lastFireTime, running);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package com.weikai77.fdb.util.concurrent;
 
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -14,20 +13,25 @@ import com.foundationdb.tuple.Tuple;
 import com.weikai77.fdb.util.FdbUtils;
 import com.weikai77.fdb.util.Watch;
 import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.HashedWheelTimer.Timeout;
 import com.weikai77.util.SystemClock;
 
 /**
  * A distributed, non-reentrant lock implementation on FDB.
  * <p>
- * Note that we need an external process to fully enforce the TTL's.
- * Without that external process to periodically release expired 
- * locks, threads calling the blocking acquire() method may get
- * blocked indefinitely even after the lock becomes available due
- * to the prior holder expiring.
+ * A lock acquired with a TTL is free once the TTL expires. Waiters watch
+ * a separate key that only changes when the lock is taken or released, so
+ * renewing the TTL does not wake them up. They also arm a local timer for
+ * the expire time of the current holder, so they take over an expired lock
+ * without waiting for another write, or look again if it was renewed.
+ * Holders of long critical sections can have their TTL renewed by a
+ * {@link LockKeepalive}.
  * <p>
  * Layout on FDB:
  * <pre>
  *    /data         -> {@link LockData}
+ *    /watch        -> changed when the lock is taken or released
  *    /conditions/  -> {@link DistributedCondition}
  * </pre>
  * 
@@ -40,19 +44,21 @@ public class DistributedSimpleLock
   private static final Logger LOGGER = LoggerFactory.getLogger(DistributedSimpleLock.class);
 
   private static final String KEY_DATA = "data";
+  private static final String KEY_WATCH = "watch";
   private static final String KEY_CONDITIONS = "conditions";
 
   private final Database _fdb;
   private final Subspace _space;
-  private final ScheduledExecutorService _timer;
+  private final HashedWheelTimer _timer;
   private final String _id;
   private final String _owner;
   private final Clock _clock;
 
   // derived and cached
   private final byte[] _dataKey;
+  private final byte[] _watchKey;
   
-  protected DistributedSimpleLock(Database db, Subspace space, ScheduledExecutorService timer, 
+  protected DistributedSimpleLock(Database db, Subspace space, HashedWheelTimer timer, 
       String id, String owner, Clock clock)
   {
     this._fdb = db;
@@ -62,9 +68,10 @@ public class DistributedSimpleLock
     this._owner = owner;
     this._clock = clock;
     this._dataKey = _space.pack(Tuple.from(KEY_DATA));
+    this._watchKey = _space.pack(Tuple.from(KEY_WATCH));
   }
 
-  protected DistributedSimpleLock(Database db, Subspace space, ScheduledExecutorService timer, 
+  protected DistributedSimpleLock(Database db, Subspace space, HashedWheelTimer timer, 
       String id, String owner)
   {
     this(db, space, timer, id, owner, SystemClock.getInstance());
@@ -85,6 +92,14 @@ public class DistributedSimpleLock
   {
     return acquireIfAvailable(0);
   }
+
+  /**
+   * Same as {@link #tryAcquire()}, within the given transaction.
+   */
+  public boolean tryAcquire(Transaction tr)
+  {
+    return acquireIfAvailable(tr, 0);
+  }
   
   public boolean tryAcquire(long timeoutMillis) throws InterruptedException
   {
@@ -96,29 +111,15 @@ public class DistributedSimpleLock
     long startTime = System.currentTimeMillis();
     while (true)
     {
-      Watch watch = _fdb.run(new Function<Transaction,Watch>()
-      {
-        @Override
-        public Watch apply(Transaction tr)
-        {
-          if (acquireIfAvailable(tr, ttlMillis))
-          {
-            return null;
-          }
-          else
-          {
-            return FdbUtils.getAndWatch(tr, _timer, _dataKey);
-          }
-        }
-      });
-
-      if (watch == null)
+      Wait wait = acquireOrWatch(ttlMillis);
+      if (wait == null)
       {
         // acquired the lock
         return true;
       }
       else
       {
+        Watch watch = wait.getWatch();
         try
         {
           long elapsedTime = System.currentTimeMillis() - startTime;
@@ -129,8 +130,12 @@ public class DistributedSimpleLock
             return false;
           }
 
-          boolean timedOut = !watch.await(remainingTime, TimeUnit.MILLISECONDS);
-          if (timedOut)
+          // the holder may expire before the timeout, then try again
+          long expiryDelay = getExpiryDelay(wait.getHolderExpireTime());
+          boolean expiring = expiryDelay >= 0 && expiryDelay < remainingTime;
+          boolean timedOut = !watch.await(expiring ? expiryDelay : remainingTime, 
+              TimeUnit.MILLISECONDS);
+          if (timedOut && !expiring)
           {
             // timed out
             return false;
@@ -153,41 +158,76 @@ public class DistributedSimpleLock
   {
     while (true)
     {
-      Watch watch = _fdb.run(new Function<Transaction,Watch>()
-      {
-        @Override
-        public Watch apply(Transaction tr)
-        {
-          if (acquireIfAvailable(tr, ttlMillis))
-          {
-            return null;
-          }
-          else
-          {
-            return FdbUtils.getAndWatch(tr, _timer, _dataKey);
-          }
-        }
-      });
-
-      if (watch == null)
+      Wait wait = acquireOrWatch(ttlMillis);
+      if (wait == null)
       {
         // acquired the lock
         return;
       }
       else
       {
+        // wake up when the holder expires, if nothing else happens
+        Watch watch = wait.getWatch();
+        long expiryDelay = getExpiryDelay(wait.getHolderExpireTime());
+        Timeout expiry = expiryDelay < 0 ? null 
+            : _timer.newTimeout(watch::cancel, expiryDelay, TimeUnit.MILLISECONDS);
         try
         {
           watch.await();
         }
         finally
         {
+          if (expiry != null)
+          {
+            expiry.cancel();
+          }
           watch.cancel();
         }
       }
     }
   }
   
+  /**
+   * Acquires the lock if available, or watches for it to be taken or
+   * released otherwise.
+   * 
+   * @return null if acquired
+   */
+  private Wait acquireOrWatch(long ttlMillis)
+  {
+    return _fdb.run(new Function<Transaction,Wait>()
+    {
+      @Override
+      public Wait apply(Transaction tr)
+      {
+        if (acquireIfAvailable(tr, ttlMillis))
+        {
+          return null;
+        }
+        else
+        {
+          LockData lock = getLock(tr);
+          Watch watch = FdbUtils.getAndWatch(tr, _timer, _watchKey);
+          return new Wait(watch, lock.getExpireTime());
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the delay until the given expire time has passed, or -1 if none
+   */
+  private long getExpiryDelay(long expireTime)
+  {
+    if (expireTime <= 0)
+    {
+      return -1;
+    }
+
+    // expired only once past the expire time
+    return Math.max(expireTime + 1 - _clock.currentTimeMillis(), 0);
+  }
+
   private boolean acquireIfAvailable(long ttlMillis)
   {
     return _fdb.run(new Function<Transaction, Boolean>()
@@ -199,7 +239,13 @@ public class DistributedSimpleLock
     });
   }
   
-  private boolean acquireIfAvailable(Transaction tr, long ttlMillis)
+  /**
+   * Acquires, or renews, the lock if available, within the given
+   * transaction.
+   * 
+   * @param ttlMillis 0 for no TTL
+   */
+  public boolean acquireIfAvailable(Transaction tr, long ttlMillis)
   {
     LockData lock = getLock(tr);
     if (lock == null || lock.hasExpired(_clock))
@@ -228,13 +274,50 @@ public class DistributedSimpleLock
     long now = _clock.currentTimeMillis();
     LockData lock = new LockData(_owner, now, now, ttlMillis > 0 ? now+ttlMillis : 0);
     tr.set(_dataKey, lock.toBytes());
+    FdbUtils.signalWatch(tr, _watchKey);
+  }
+  
+  /**
+   * Extends the TTL of the lock, if still held.
+   * 
+   * @param ttlMillis 0 for no TTL
+   * @return false if the lock is not held anymore, e.g., it expired
+   */
+  public boolean renew(long ttlMillis)
+  {
+    return _fdb.run(new Function<Transaction, Boolean>()
+    {
+      public Boolean apply(Transaction tr)
+      {
+        return renew(tr, ttlMillis);
+      }
+    });
+  }
+
+  /**
+   * Same as {@link #renew(long)}, within the given transaction.
+   */
+  public boolean renew(Transaction tr, long ttlMillis)
+  {
+    LockData lock = getLock(tr);
+    if (hasLock(lock))
+    {
+      renewLockInFdb(tr, lock, ttlMillis);
+      return true;
+    }
+    else
+    {
+      return false;
+    }
   }
   
   private void renewLockInFdb(Transaction tr, LockData lock, long ttlMillis)
   {
     long now = _clock.currentTimeMillis();
     lock.setLastLockTime(now);
-    lock.setExpireTime(ttlMillis > 0 ? now+ttlMillis : 0);;
+    lock.setExpireTime(ttlMillis > 0 ? now+ttlMillis : 0);
+
+    // waiters only watch for the lock to be taken or released
     tr.set(_dataKey, lock.toBytes());
   }
   
@@ -250,7 +333,10 @@ public class DistributedSimpleLock
     });
   }
   
-  private boolean hasLock(Transaction tr)
+  /**
+   * Same as {@link #hasLock()}, within the given transaction.
+   */
+  public boolean hasLock(Transaction tr)
   {
     LockData lock = getLock(tr);
     return hasLock(lock);
@@ -276,19 +362,27 @@ public class DistributedSimpleLock
     {
       public Void apply(Transaction tr)
       {
-        LockData lock = getLock(tr);
-        if (hasLock(lock))
-        {
-          deleteFromFdb(tr, lock);
-          return null;
-        }
-        else
-        {
-          throw new IllegalMonitorStateException("Trying to release a lock not owned");
-        }
+        release(tr);
+        return null;
       }
     });
   }
+
+  /**
+   * Same as {@link #release()}, within the given transaction.
+   */
+  public void release(Transaction tr)
+  {
+    LockData lock = getLock(tr);
+    if (hasLock(lock))
+    {
+      deleteFromFdb(tr, lock);
+    }
+    else
+    {
+      throw new IllegalMonitorStateException("Trying to release a lock not owned");
+    }
+  }
   
   public long getInitialLockTime()
   {
@@ -346,6 +440,7 @@ public class DistributedSimpleLock
   private void deleteFromFdb(Transaction tr, LockData lock)
   {
     tr.clear(_dataKey);
+    FdbUtils.signalWatch(tr, _watchKey);
   }
   
   private LockData getLock(Transaction tr)
@@ -354,6 +449,21 @@ public class DistributedSimpleLock
     return bytes == null ? null : LockData.fromBytes(bytes);
   }
   
+  private static class Wait
+  {
+    private final Watch _watch;
+    private final long _holderExpireTime;
+
+    public Wait(Watch watch, long holderExpireTime)
+    {
+      _watch = watch;
+      _holderExpireTime = holderExpireTime;
+    }
+
+    public Watch getWatch() { return _watch; }
+    public long getHolderExpireTime() { return _holderExpireTime; }
+  }
+
   private static class LockData
   {
     private static final int VERSION = 1;
@@ -382,6 +492,7 @@ public class DistributedSimpleLock
     public long getInitialLockTime() { return _initialLockTime; }
     public long getLastLockTime() { return _lastLockTime; }
     public void setLastLockTime(long millis) { _lastLockTime = millis; }
+    public long getExpireTime() { return _expireTime; }
     public void setExpireTime(long millis) { _expireTime = millis; }
     public boolean hasExpired(Clock clock) { return _expireTime > 0 && _expireTime < clock.currentTimeMillis(); }
     
@@ -1,5 +1,7 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -28,6 +30,7 @@ public class GroupKeyMapper extends GroupMembershipListener implements KeyMapper
   private final AtomicReference<ConsistentKeyMapper<String,String>> _mapperHolder;
   private final long _pollingIntervalMillis;
   private final ScheduledExecutorService _timer;
+  private final List<RefreshListener> _refreshListeners;
   private volatile ScheduledFuture<?> _timerTask;
   
   public GroupKeyMapper(DistributedGroup group, int replicationFactor, long pollingIntervalMillis,
@@ -38,6 +41,7 @@ public class GroupKeyMapper extends GroupMembershipListener implements KeyMapper
     _mapperHolder = new AtomicReference<>();
     _pollingIntervalMillis = pollingIntervalMillis;
     _timer = timer;
+    _refreshListeners = new CopyOnWriteArrayList<>();
   }
 
   public GroupKeyMapper(DistributedGroup group, int replicationFactor, long pollingIntervalMillis)
@@ -77,6 +81,33 @@ public class GroupKeyMapper extends GroupMembershipListener implements KeyMapper
     ConsistentKeyMapper<String,String> mapper = new ConsistentKeyMapper<>(_group.listMembers(), 
         XXHasher.getInstance(), XXHasher.getInstance(), _replicationFactor);
     _mapperHolder.set(mapper);
+
+    for (RefreshListener listener : _refreshListeners)
+    {
+      try
+      {
+        listener.onRefresh();
+      }
+      catch (Exception ex)
+      {
+        LOGGER.error("Error notifying refresh listener for group " + _group.getId(), ex);
+      }
+    }
+  }
+
+  /**
+   * Registers a listener to be notified after every refresh, i.e. on every
+   * membership change and every polling interval, whether or not the
+   * mapping has changed.
+   */
+  public void registerRefreshListener(RefreshListener listener)
+  {
+    _refreshListeners.add(listener);
+  }
+
+  public void unregisterRefreshListener(RefreshListener listener)
+  {
+    _refreshListeners.remove(listener);
   }
 
   @Override
@@ -96,4 +127,9 @@ public class GroupKeyMapper extends GroupMembershipListener implements KeyMapper
     refresh();
   }
 
+  public static interface RefreshListener
+  {
+    void onRefresh();
+  }
+
 }
@@ -0,0 +1,273 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foundationdb.Database;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.weikai77.util.HashedWheelTimer;
+import com.weikai77.util.HashedWheelTimer.Timeout;
+
+/**
+ * Keeps held {@link DistributedSimpleLock}'s alive by renewing their TTL
+ * periodically, so that a lock held by a live process does not expire,
+ * while the lock of a dead process still does.
+ * <p>
+ * Locks are renewed in batches, one transaction per batch, rather than one
+ * transaction per lock. A lock found not held anymore, e.g., expired
+ * because of a long pause, is dropped and its {@link LeaseListener}, if
+ * any, is notified.
+ * <p>
+ * Renewals are timed by the shared {@link HashedWheelTimer} and run on the
+ * given executor, since they block on FDB.
+ *
+ * @author kwei
+ *
+ */
+public class LockKeepalive
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(LockKeepalive.class);
+
+  public static interface LeaseListener
+  {
+    /**
+     * Called when a registered lock was found not held anymore.
+     */
+    void onLeaseLost(DistributedSimpleLock lock);
+  }
+
+  private final Database _fdb;
+  private final long _intervalMillis;
+  private final int _maxBatchSize;
+  private final Executor _executor;
+  private final HashedWheelTimer _timer;
+  private final Map<DistributedSimpleLock,Lease> _leases;
+  private final CountDownLatch _terminated = new CountDownLatch(1);
+
+  // guarded by this
+  private Timeout _renewal;
+  private boolean _shutdown = false;
+
+  /**
+   * Same as {@link #LockKeepalive(Database, long, TimeUnit, int, Executor)},
+   * renewing on the common pool.
+   */
+  public LockKeepalive(Database fdb, long interval, TimeUnit unit, int maxBatchSize)
+  {
+    this(fdb, interval, unit, maxBatchSize, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param interval time between renewals, which must be well below the TTL
+   *        of the locks
+   * @param maxBatchSize max number of locks renewed per transaction
+   * @param executor runs the renewals
+   */
+  public LockKeepalive(Database fdb, long interval, TimeUnit unit, int maxBatchSize,
+      Executor executor)
+  {
+    if (interval <= 0)
+    {
+      throw new IllegalArgumentException("Invalid interval: " + interval);
+    }
+    if (maxBatchSize <= 0)
+    {
+      throw new IllegalArgumentException("Invalid max batch size: " + maxBatchSize);
+    }
+
+    _fdb = fdb;
+    _intervalMillis = unit.toMillis(interval);
+    _maxBatchSize = maxBatchSize;
+    _executor = executor;
+    _timer = HashedWheelTimer.getInstance();
+    _leases = new ConcurrentHashMap<>();
+  }
+
+  public synchronized void start()
+  {
+    if (_renewal == null && !_shutdown)
+    {
+      schedule();
+    }
+  }
+
+  /**
+   * Stops renewing. The locks are left to expire.
+   */
+  public synchronized void shutdown()
+  {
+    if (_shutdown)
+    {
+      return;
+    }
+
+    // a renewal already handed to the executor terminates once done
+    _shutdown = true;
+    if (_renewal == null || _renewal.cancel())
+    {
+      _terminated.countDown();
+    }
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _terminated.await(timeout, unit);
+  }
+
+  /**
+   * Renews the given lock, which must have been acquired with a TTL, until
+   * unregistered.
+   *
+   * @param ttlMillis TTL set on each renewal, at least twice the interval
+   * @param listener notified if the lock is lost, may be null
+   */
+  public void register(DistributedSimpleLock lock, long ttlMillis, LeaseListener listener)
+  {
+    if (ttlMillis < 2 * _intervalMillis)
+    {
+      throw new IllegalArgumentException("TTL too short for an interval of "
+          + _intervalMillis + "ms: " + ttlMillis);
+    }
+
+    _leases.put(lock, new Lease(lock, ttlMillis, listener));
+  }
+
+  /**
+   * Stops renewing the given lock, typically before releasing it.
+   *
+   * @return false if not registered
+   */
+  public boolean unregister(DistributedSimpleLock lock)
+  {
+    return _leases.remove(lock) != null;
+  }
+
+  /**
+   * @return the number of locks being renewed
+   */
+  public int size()
+  {
+    return _leases.size();
+  }
+
+  /**
+   * Arms the timer for the next renewal, which runs on the executor since
+   * timer tasks must not block.
+   */
+  private synchronized void schedule()
+  {
+    _renewal = _timer.newTimeout(() -> _executor.execute(() -> run()), _intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void run()
+  {
+    try
+    {
+      if (!isShutdown())
+      {
+        renewAll();
+      }
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        if (_shutdown)
+        {
+          _terminated.countDown();
+        }
+        else
+        {
+          schedule();
+        }
+      }
+    }
+  }
+
+  private synchronized boolean isShutdown()
+  {
+    return _shutdown;
+  }
+
+  private void renewAll()
+  {
+    List<Lease> leases = new ArrayList<>(_leases.values());
+    for (int i=0; i<leases.size(); i+=_maxBatchSize)
+    {
+      List<Lease> batch = leases.subList(i, Math.min(i+_maxBatchSize, leases.size()));
+      try
+      {
+        List<Lease> lost = renew(batch);
+        for (Lease lease : lost)
+        {
+          // not lost if unregistered, and possibly released, in the meantime
+          if (_leases.remove(lease.getLock(), lease))
+          {
+            LOGGER.warn("Lost lock " + lease.getLock().getId());
+            if (lease.getListener() != null)
+            {
+              lease.getListener().onLeaseLost(lease.getLock());
+            }
+          }
+        }
+      }
+      catch (Exception ex)
+      {
+        // try again next time, hopefully before the TTL's expire
+        LOGGER.error("Failed to renew locks", ex);
+      }
+    }
+  }
+
+  /**
+   * @return the leases lost
+   */
+  private List<Lease> renew(List<Lease> batch)
+  {
+    return _fdb.run(new Function<Transaction,List<Lease>>()
+    {
+      @Override
+      public List<Lease> apply(Transaction tr)
+      {
+        List<Lease> lost = new ArrayList<>();
+        for (Lease lease : batch)
+        {
+          if (!lease.getLock().renew(tr, lease.getTtlMillis()))
+          {
+            lost.add(lease);
+          }
+        }
+        return lost;
+      }
+    });
+  }
+
+  private static class Lease
+  {
+    private final DistributedSimpleLock _lock;
+    private final long _ttlMillis;
+    private final LeaseListener _listener;
+
+    public Lease(DistributedSimpleLock lock, long ttlMillis, LeaseListener listener)
+    {
+      _lock = lock;
+      _ttlMillis = ttlMillis;
+      _listener = listener;
+    }
+
+    public DistributedSimpleLock getLock() { return _lock; }
+    public long getTtlMillis() { return _ttlMillis; }
+    public LeaseListener getListener() { return _listener; }
+  }
+}
@@ -0,0 +1,334 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.foundationdb.Database;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.AsyncUtil;
+import com.foundationdb.async.Function;
+import com.foundationdb.async.Future;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * Consumes from a set of {@link DistributedBlockingQueueLockFree} queues
+ * (e.g., one per tenant) with weighted fair scheduling.
+ * <p>
+ * Every attempt is a single transaction: the emptiness of all queues is
+ * checked with parallel snapshot reads, and an item is polled from the
+ * non-empty queue picked by smooth weighted round-robin. A queue with
+ * weight 3 gets three items for every item taken from a queue with weight
+ * 1, as long as both have items.
+ * <p>
+ * When every queue is empty, the same transaction sets a watch on each
+ * queue's notEmpty key, and the consumer sleeps until any one of them
+ * fires. An idle consumer thus costs one transaction per wake-up, rather
+ * than one per queue per polling interval. Note that FDB caps the number
+ * of outstanding watches per database (10,000 by default).
+ *
+ * @author kwei
+ *
+ */
+public class MultiQueueConsumer
+{
+  private final Database _fdb;
+  private final HashedWheelTimer _timer;
+  private final List<Member> _members;
+
+  protected MultiQueueConsumer(Database fdb, HashedWheelTimer timer)
+  {
+    _fdb = fdb;
+    _timer = timer;
+    _members = new CopyOnWriteArrayList<>();
+  }
+
+  public void addQueue(DistributedBlockingQueueLockFree queue, int weight)
+  {
+    if (weight <= 0)
+    {
+      throw new IllegalArgumentException("Weight must be positive: " + weight);
+    }
+
+    synchronized (this)
+    {
+      if (findMember(queue.getId()) != null)
+      {
+        throw new IllegalArgumentException("Queue already added: " + queue.getId());
+      }
+      _members.add(new Member(queue, weight));
+    }
+  }
+
+  public synchronized boolean removeQueue(String id)
+  {
+    Member member = findMember(id);
+    return member != null && _members.remove(member);
+  }
+
+  public List<String> listQueueIds()
+  {
+    List<String> ids = new ArrayList<>();
+    for (Member member : _members)
+    {
+      ids.add(member.getQueue().getId());
+    }
+    return ids;
+  }
+
+  private Member findMember(String id)
+  {
+    for (Member member : _members)
+    {
+      if (member.getQueue().getId().equals(id))
+      {
+        return member;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the next item, or null if all queues are empty
+   */
+  public Item poll()
+  {
+    Selection selection = select(false);
+    return selection.getItem();
+  }
+
+  public Item take() throws InterruptedException
+  {
+    while (true)
+    {
+      Selection selection = select(true);
+      if (selection.getItem() != null)
+      {
+        return selection.getItem();
+      }
+
+      Watch watch = selection.getWatch();
+      try
+      {
+        watch.awaitInterruptibly();
+      }
+      finally
+      {
+        selection.cancelWatches();
+      }
+    }
+  }
+
+  public Item take(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    long timeoutMillis = unit.toMillis(timeout);
+    while (true)
+    {
+      Selection selection = select(true);
+      if (selection.getItem() != null)
+      {
+        return selection.getItem();
+      }
+
+      Watch watch = selection.getWatch();
+      try
+      {
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        long remainingTime = timeoutMillis - elapsedTime;
+        if (remainingTime <= 0)
+        {
+          // timed out
+          return null;
+        }
+
+        boolean timedOut = !watch.await(remainingTime, TimeUnit.MILLISECONDS);
+        if (timedOut)
+        {
+          // timed out
+          return null;
+        }
+      }
+      finally
+      {
+        selection.cancelWatches();
+      }
+    }
+  }
+
+  private Selection select(boolean watchIfEmpty)
+  {
+    List<Member> members = new ArrayList<>(_members);
+    if (members.isEmpty() && watchIfEmpty)
+    {
+      throw new IllegalStateException("No queues to consume from");
+    }
+
+    Selection selection = _fdb.run(new Function<Transaction,Selection>()
+    {
+      @Override
+      public Selection apply(Transaction tr)
+      {
+        // check all the queues in parallel
+        List<Future<Boolean>> hasItems = new ArrayList<>(members.size());
+        for (Member member : members)
+        {
+          hasItems.add(member.getQueue().getFifo().hasItems(tr.snapshot()));
+        }
+
+        List<Member> eligible = new ArrayList<>();
+        for (int i=0; i<members.size(); i++)
+        {
+          if (hasItems.get(i).get())
+          {
+            eligible.add(members.get(i));
+          }
+        }
+
+        for (Member member : rank(eligible))
+        {
+          byte[] value = member.getQueue().poll(tr);
+          if (value != null)
+          {
+            return new Selection(member, eligible, new Item(member.getQueue().getId(), value));
+          }
+        }
+
+        if (!watchIfEmpty)
+        {
+          return new Selection(null, null, null);
+        }
+
+        // all empty, watch every notEmpty key in this same transaction
+        List<Future<Void>> watches = new ArrayList<>(members.size());
+        for (Member member : members)
+        {
+          byte[] key = member.getQueue().getNotEmptyKey();
+          tr.get(key);
+          watches.add(tr.watch(key));
+        }
+        return new Selection(watches);
+      }
+    });
+
+    if (selection.getItem() != null)
+    {
+      charge(selection.getMember(), selection.getEligible());
+    }
+    return selection;
+  }
+
+  /**
+   * Orders the candidates by their smooth weighted round-robin priority.
+   */
+  private synchronized List<Member> rank(List<Member> eligible)
+  {
+    List<Member> ranked = new ArrayList<>(eligible);
+    Collections.sort(ranked, new Comparator<Member>()
+    {
+      @Override
+      public int compare(Member m1, Member m2)
+      {
+        return Long.compare(m2.getCurrentWeight() + m2.getWeight(),
+            m1.getCurrentWeight() + m1.getWeight());
+      }
+    });
+    return ranked;
+  }
+
+  /**
+   * Updates the smooth weighted round-robin state once a selection has
+   * been committed.
+   */
+  private synchronized void charge(Member selected, List<Member> eligible)
+  {
+    long totalWeight = 0;
+    for (Member member : eligible)
+    {
+      member.addCurrentWeight(member.getWeight());
+      totalWeight += member.getWeight();
+    }
+    selected.addCurrentWeight(-totalWeight);
+  }
+
+  public static class Item
+  {
+    private final String _queueId;
+    private final byte[] _value;
+
+    public Item(String queueId, byte[] value)
+    {
+      _queueId = queueId;
+      _value = value;
+    }
+
+    public String getQueueId() { return _queueId; }
+    public byte[] getValue() { return _value; }
+  }
+
+  private static class Member
+  {
+    private final DistributedBlockingQueueLockFree _queue;
+    private final int _weight;
+    private long _currentWeight;
+
+    public Member(DistributedBlockingQueueLockFree queue, int weight)
+    {
+      _queue = queue;
+      _weight = weight;
+    }
+
+    public DistributedBlockingQueueLockFree getQueue() { return _queue; }
+    public int getWeight() { return _weight; }
+    public long getCurrentWeight() { return _currentWeight; }
+    public void addCurrentWeight(long delta) { _currentWeight += delta; }
+  }
+
+  private class Selection
+  {
+    private final Member _member;
+    private final List<Member> _eligible;
+    private final Item _item;
+    private final List<Future<Void>> _watches;
+
+    public Selection(Member member, List<Member> eligible, Item item)
+    {
+      _member = member;
+      _eligible = eligible;
+      _item = item;
+      _watches = Collections.emptyList();
+    }
+
+    public Selection(List<Future<Void>> watches)
+    {
+      _member = null;
+      _eligible = null;
+      _item = null;
+      _watches = watches;
+    }
+
+    public Member getMember() { return _member; }
+    public List<Member> getEligible() { return _eligible; }
+    public Item getItem() { return _item; }
+
+    /**
+     * @return a single watch that fires when any of the queues changes
+     */
+    public Watch getWatch()
+    {
+      return new Watch(null, null, AsyncUtil.whenAny(_watches), _timer);
+    }
+
+    public void cancelWatches()
+    {
+      for (Future<Void> watch : _watches)
+      {
+        watch.cancel();
+      }
+    }
+  }
+}
@@ -1,6 +1,12 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 /**
+ * A distributed queue of byte arrays. See {@link TransactionalQueue} for
+ * the queues whose operations can also run within the caller's
+ * transaction.
  * 
  * @author kwei
  *
@@ -13,5 +19,31 @@ public interface Queue
   boolean isEmpty();
   boolean isFull();
   boolean offer(byte[] item);
+
+  /**
+   * Same as {@link #offer(byte[])}, for the remaining bytes of the given
+   * buffer, without consuming them.
+   */
+  boolean offer(ByteBuffer item);
+  
+  /**
+   * Offers the given items in a single transaction.
+   * 
+   * @return number of items accepted, always a prefix of the given list
+   */
+  int offer(List<byte[]> items);
   byte[] poll();
+
+  /**
+   * Same as {@link #poll()}, but returns a view of the item as read, without
+   * copying it out.
+   */
+  ByteBuffer pollBuffer();
+
+  /**
+   * Polls up to the given number of items in a single transaction.
+   * 
+   * @return the items polled, in order; empty if the queue is empty
+   */
+  List<byte[]> poll(int maxItems);
 }
@@ -0,0 +1,245 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.weikai77.fdb.util.concurrent.GroupKeyMapper.RefreshListener;
+
+/**
+ * Assigns each of a set of queues to exactly one member of a consumer
+ * {@link DistributedGroup}, through a {@link GroupKeyMapper} over that
+ * group, and runs a local consumer for each queue owned by the local
+ * member.
+ * <p>
+ * Ownership is re-evaluated on every refresh of the mapper, i.e. on every
+ * membership change and every polling interval of the mapper. Consumers
+ * are started and stopped on a dedicated thread, never on the mapper's.
+ * With single-owner consumption, consumers of different nodes never
+ * conflict on the same queue, and a node polls only the queues it owns.
+ * <p>
+ * Ownership moves as members come and go, and different nodes may see a
+ * change at slightly different times, so a queue can briefly have two
+ * consumers, or none. Since consuming stays transactional, this only
+ * costs conflicts, never correctness.
+ * <p>
+ * The local member must be joined to the group by the caller, and kept
+ * alive if the group has a TTL.
+ *
+ * @author kwei
+ *
+ */
+public class QueueAffinityMgr implements RefreshListener
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueueAffinityMgr.class);
+
+  /**
+   * Starts the local consumer of a queue.
+   */
+  public static interface ConsumerFactory
+  {
+    LocalConsumer start(String queueId);
+  }
+
+  public static interface LocalConsumer
+  {
+    void stop();
+  }
+
+  private final GroupKeyMapper _mapper;
+  private final String _localMember;
+  private final ConsumerFactory _factory;
+  private final ExecutorService _executor;
+
+  // guarded by this
+  private final Set<String> _queueIds;
+  private final Map<String,LocalConsumer> _consumers;
+  private boolean _shutdown = false;
+
+  /**
+   * @param mapper a started mapper over the consumer group
+   * @param localMember id of the local member in the consumer group
+   */
+  public QueueAffinityMgr(GroupKeyMapper mapper, String localMember, ConsumerFactory factory)
+  {
+    _mapper = mapper;
+    _localMember = localMember;
+    _factory = factory;
+    _executor = Executors.newSingleThreadExecutor();
+    _queueIds = new LinkedHashSet<>();
+    _consumers = new HashMap<>();
+  }
+
+  public void start()
+  {
+    _mapper.registerRefreshListener(this);
+    onRefresh();
+  }
+
+  /**
+   * Stops every local consumer. The queues themselves are left alone.
+   */
+  public void shutdown()
+  {
+    _mapper.unregisterRefreshListener(this);
+    synchronized (this)
+    {
+      if (_shutdown)
+      {
+        return;
+      }
+      _shutdown = true;
+    }
+    _executor.execute(() -> rebalance());
+    _executor.shutdown();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _executor.awaitTermination(timeout, unit);
+  }
+
+  public void addQueue(String queueId)
+  {
+    synchronized (this)
+    {
+      if (!_queueIds.add(queueId))
+      {
+        throw new IllegalArgumentException("Queue already added: " + queueId);
+      }
+    }
+    onRefresh();
+  }
+
+  public void addQueues(Collection<String> queueIds)
+  {
+    synchronized (this)
+    {
+      for (String queueId : queueIds)
+      {
+        if (_queueIds.contains(queueId))
+        {
+          throw new IllegalArgumentException("Queue already added: " + queueId);
+        }
+      }
+      _queueIds.addAll(queueIds);
+    }
+    onRefresh();
+  }
+
+  /**
+   * Stops the local consumer of the given queue, if any.
+   */
+  public boolean removeQueue(String queueId)
+  {
+    boolean removed;
+    synchronized (this)
+    {
+      removed = _queueIds.remove(queueId);
+    }
+    onRefresh();
+    return removed;
+  }
+
+  /**
+   * @return ids of the queues currently consumed locally
+   */
+  public synchronized List<String> listLocalQueueIds()
+  {
+    return new ArrayList<>(_consumers.keySet());
+  }
+
+  public boolean isLocal(String queueId)
+  {
+    return _localMember.equals(_mapper.map(queueId));
+  }
+
+  @Override
+  public void onRefresh()
+  {
+    try
+    {
+      _executor.execute(() -> rebalance());
+    }
+    catch (RuntimeException ex)
+    {
+      // shut down in the meantime
+    }
+  }
+
+  /**
+   * Works out the consumers to stop and start under the lock, and stops and
+   * starts them outside of it, so that a slow consumer does not block the
+   * callers of this manager. Only ever runs on the executor thread.
+   */
+  private void rebalance()
+  {
+    // stop first, so a consumer never outlives its ownership longer than needed
+    Map<String,LocalConsumer> toStop = new HashMap<>();
+    List<String> toStart = new ArrayList<>();
+    synchronized (this)
+    {
+      for (String queueId : _consumers.keySet())
+      {
+        if (_shutdown || !_queueIds.contains(queueId) || !isLocal(queueId))
+        {
+          toStop.put(queueId, _consumers.get(queueId));
+        }
+      }
+      _consumers.keySet().removeAll(toStop.keySet());
+
+      if (!_shutdown)
+      {
+        for (String queueId : _queueIds)
+        {
+          if (!_consumers.containsKey(queueId) && isLocal(queueId))
+          {
+            toStart.add(queueId);
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<String,LocalConsumer> entry : toStop.entrySet())
+    {
+      LOGGER.info("Stopping local consumer of queue " + entry.getKey());
+      try
+      {
+        entry.getValue().stop();
+      }
+      catch (Exception ex)
+      {
+        LOGGER.error("Error stopping local consumer of queue " + entry.getKey(), ex);
+      }
+    }
+
+    for (String queueId : toStart)
+    {
+      LOGGER.info("Starting local consumer of queue " + queueId);
+      try
+      {
+        LocalConsumer consumer = _factory.start(queueId);
+        synchronized (this)
+        {
+          // stopped by the next rebalance if no longer wanted by now
+          _consumers.put(queueId, consumer);
+        }
+      }
+      catch (Exception ex)
+      {
+        // retried on the next refresh
+        LOGGER.error("Error starting local consumer of queue " + queueId, ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.NavigableMap;
+
+/**
+ * Replays the items of a {@link DistributedQueue} in place, in offset
+ * order, one range read per page. Nothing is removed from the queue, and
+ * items polled in the meantime are simply skipped.
+ * <p>
+ * A cursor is not thread-safe.
+ *
+ * @author kwei
+ *
+ */
+public class QueueCursor
+{
+  private final DistributedQueue _queue;
+  private long _position;
+
+  protected QueueCursor(DistributedQueue queue, long fromOffset)
+  {
+    _queue = queue;
+    _position = fromOffset;
+  }
+
+  /**
+   * @return the offset the next page starts from
+   */
+  public long getPosition()
+  {
+    return _position;
+  }
+
+  public void seek(long offset)
+  {
+    _position = offset;
+  }
+
+  /**
+   * Reads the next page and moves past it.
+   *
+   * @return up to the given number of items, by offset; empty if the
+   *         cursor has caught up with the tail, in which case it can be
+   *         called again later for the items offered since
+   */
+  public NavigableMap<Long,byte[]> next(int maxItems)
+  {
+    if (maxItems <= 0)
+    {
+      throw new IllegalArgumentException("Invalid max items: " + maxItems);
+    }
+
+    NavigableMap<Long,byte[]> items = _queue.range(_position, Long.MAX_VALUE, maxItems);
+    if (!items.isEmpty())
+    {
+      _position = items.lastKey() + 1;
+    }
+    return items;
+  }
+}
@@ -0,0 +1,25 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An asynchronous producer in front of a {@link Queue}.
+ *
+ * @author kwei
+ *
+ */
+public interface QueueProducer
+{
+  String getQueueId();
+
+  /**
+   * @return a future completed with true once the item has been accepted,
+   *         or false if the queue rejected it (e.g., the queue is full)
+   */
+  CompletableFuture<Boolean> offer(byte[] item);
+
+  /**
+   * Lifecycle method.
+   */
+  void shutdown();
+}
@@ -0,0 +1,214 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.weikai77.fdb.util.Watch;
+
+/**
+ * A Reactive Streams {@link Publisher} over a {@link DistributedBlockingQueueLockFree}.
+ * <p>
+ * Subscriber demand is turned into batched polls: each transaction polls
+ * up to the outstanding demand, capped at the max batch size. When the
+ * queue is empty, the same transaction sets a watch on the queue's
+ * notEmpty key, and polling resumes once it fires; no thread is held
+ * while waiting.
+ * <p>
+ * Items are removed from the queue as they are polled, so the items of a
+ * batch are still delivered if the subscription is cancelled halfway
+ * through. Each subscription is an independent competing consumer, and
+ * the stream never completes on its own.
+ *
+ * @author kwei
+ *
+ */
+public class QueuePublisher implements Publisher<byte[]>
+{
+  private final DistributedBlockingQueueLockFree _queue;
+  private final int _maxBatchSize;
+  private final Executor _executor;
+
+  /**
+   * @param executor runs the polls and the subscriber's onNext calls
+   */
+  public QueuePublisher(DistributedBlockingQueueLockFree queue, int maxBatchSize, Executor executor)
+  {
+    if (maxBatchSize <= 0)
+    {
+      throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+    }
+
+    _queue = queue;
+    _maxBatchSize = maxBatchSize;
+    _executor = executor;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super byte[]> subscriber)
+  {
+    if (subscriber == null)
+    {
+      throw new NullPointerException("Subscriber must not be null");
+    }
+
+    QueueSubscription subscription = new QueueSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+  }
+
+  private class QueueSubscription implements Subscription, Runnable
+  {
+    private final Subscriber<? super byte[]> _subscriber;
+    private final AtomicLong _demand = new AtomicLong();
+    private final AtomicInteger _wip = new AtomicInteger();
+    private volatile boolean _cancelled = false;
+    private volatile Watch _watch;
+    private volatile Throwable _invalidRequest;
+
+    public QueueSubscription(Subscriber<? super byte[]> subscriber)
+    {
+      _subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n)
+    {
+      if (n <= 0)
+      {
+        _invalidRequest = new IllegalArgumentException("Request must be positive: " + n);
+      }
+      else
+      {
+        addDemand(n);
+      }
+      schedule();
+    }
+
+    private void addDemand(long n)
+    {
+      while (true)
+      {
+        long demand = _demand.get();
+        long newDemand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        if (_demand.compareAndSet(demand, newDemand))
+        {
+          return;
+        }
+      }
+    }
+
+    @Override
+    public void cancel()
+    {
+      _cancelled = true;
+      Watch watch = _watch;
+      if (watch != null)
+      {
+        watch.cancel();
+      }
+    }
+
+    private void schedule()
+    {
+      // only one drain runs at any time, which keeps onNext calls serial
+      if (_wip.getAndIncrement() == 0)
+      {
+        _executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run()
+    {
+      int missed = 1;
+      while (true)
+      {
+        drain();
+        missed = _wip.addAndGet(-missed);
+        if (missed == 0)
+        {
+          return;
+        }
+      }
+    }
+
+    private void drain()
+    {
+      while (!_cancelled)
+      {
+        if (_invalidRequest != null)
+        {
+          _cancelled = true;
+          _subscriber.onError(_invalidRequest);
+          return;
+        }
+
+        long demand = _demand.get();
+        if (demand <= 0)
+        {
+          return;
+        }
+
+        if (_watch != null)
+        {
+          // already waiting for items, polling resumes once the watch fires
+          return;
+        }
+
+        Object res;
+        try
+        {
+          res = _queue.pollOrWatch((int) Math.min(demand, _maxBatchSize));
+        }
+        catch (RuntimeException ex)
+        {
+          _cancelled = true;
+          _subscriber.onError(ex);
+          return;
+        }
+
+        if (res instanceof Watch)
+        {
+          // wait for items without holding a thread
+          Watch watch = (Watch) res;
+          _watch = watch;
+          if (_cancelled)
+          {
+            watch.cancel();
+          }
+
+          watch.onFire().whenCompleteAsync((result, ex) ->
+          {
+            if (ex instanceof CancellationException)
+            {
+              // the subscription was cancelled
+              return;
+            }
+
+            // fired, or failed in which case polling again sets a new watch
+            _watch = null;
+            schedule();
+          }, _executor);
+          return;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<byte[]> items = (List<byte[]>) res;
+        if (demand != Long.MAX_VALUE)
+        {
+          _demand.addAndGet(-items.size());
+        }
+        for (byte[] item : items)
+        {
+          _subscriber.onNext(item);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.List;
+
+import com.foundationdb.KeyValue;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ * A snapshot of the telemetry of a {@link DistributedQueue}, read with a
+ * single range read.
+ * <p>
+ * Layout on FDB, maintained by the queue in the transactions that change
+ * it, with atomic adds so that producers and consumers never conflict on
+ * the counters:
+ * <pre>
+ *    /enqueued             -> long
+ *    /dequeued             -> long
+ *    /dropped              -> long
+ *    /enqueuedBytes        -> long
+ *    /removedBytes         -> long
+ *    /oldest               -> enqueue time of the head item
+ *    /rates/{second}/enq   -> long
+ *                   /deq   -> long
+ * </pre>
+ * Dropped items are the expired, purged and overwritten ones. Rates are
+ * kept per second, over a short sliding window. The oldest enqueue time is
+ * refreshed with a snapshot read whenever the head moves, so it is only
+ * approximate under concurrent updates.
+ *
+ * @author kwei
+ *
+ */
+public class QueueStats
+{
+  static final String KEY_ENQUEUED = "enqueued";
+  static final String KEY_DEQUEUED = "dequeued";
+  static final String KEY_DROPPED = "dropped";
+  static final String KEY_ENQUEUED_BYTES = "enqueuedBytes";
+  static final String KEY_REMOVED_BYTES = "removedBytes";
+  static final String KEY_OLDEST = "oldest";
+  static final String KEY_RATES = "rates";
+  static final String RATE_ENQUEUED = "enq";
+  static final String RATE_DEQUEUED = "deq";
+
+  /**
+   * Rates are averaged over the last complete seconds of this window.
+   */
+  static final int RATE_WINDOW_SECONDS = 10;
+
+  /**
+   * Rate buckets older than this are cleared by the writers.
+   */
+  static final int RATE_RETENTION_SECONDS = 2 * RATE_WINDOW_SECONDS;
+
+  private final String _queueId;
+  private final long _time;
+  private final long _enqueued;
+  private final long _dequeued;
+  private final long _dropped;
+  private final long _enqueuedBytes;
+  private final long _removedBytes;
+  private final long _oldestEnqueueTime;
+  private final long _recentEnqueued;
+  private final long _recentDequeued;
+
+  protected QueueStats(String queueId, long time, long enqueued, long dequeued, long dropped,
+      long enqueuedBytes, long removedBytes, long oldestEnqueueTime, long recentEnqueued,
+      long recentDequeued)
+  {
+    _queueId = queueId;
+    _time = time;
+    _enqueued = enqueued;
+    _dequeued = dequeued;
+    _dropped = dropped;
+    _enqueuedBytes = enqueuedBytes;
+    _removedBytes = removedBytes;
+    _oldestEnqueueTime = oldestEnqueueTime;
+    _recentEnqueued = recentEnqueued;
+    _recentDequeued = recentDequeued;
+  }
+
+  public String getQueueId()
+  {
+    return _queueId;
+  }
+
+  /**
+   * @return the time the snapshot was taken at
+   */
+  public long getTime()
+  {
+    return _time;
+  }
+
+  public long getEnqueued()
+  {
+    return _enqueued;
+  }
+
+  public long getDequeued()
+  {
+    return _dequeued;
+  }
+
+  public long getDropped()
+  {
+    return _dropped;
+  }
+
+  /**
+   * @return the number of items in the queue, holes included
+   */
+  public long getDepth()
+  {
+    return _enqueued - _dequeued - _dropped;
+  }
+
+  /**
+   * @return the total size of the item values in the queue
+   */
+  public long getBytes()
+  {
+    return _enqueuedBytes - _removedBytes;
+  }
+
+  /**
+   * @return age of the oldest item in milliseconds, 0 if the queue is empty
+   *         or its head was written before enqueue times were recorded
+   */
+  public long oldestItemAge()
+  {
+    return _oldestEnqueueTime > 0 ? Math.max(0, _time - _oldestEnqueueTime) : 0;
+  }
+
+  /**
+   * @return items offered per second, over the last complete seconds
+   */
+  public double enqueueRate()
+  {
+    return (double) _recentEnqueued / RATE_WINDOW_SECONDS;
+  }
+
+  /**
+   * @return items polled per second, over the last complete seconds
+   */
+  public double dequeueRate()
+  {
+    return (double) _recentDequeued / RATE_WINDOW_SECONDS;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "QueueStats [queueId=" + _queueId + ", depth=" + getDepth() + ", bytes=" + getBytes()
+        + ", oldestItemAge=" + oldestItemAge() + ", enqueueRate=" + enqueueRate()
+        + ", dequeueRate=" + dequeueRate() + "]";
+  }
+
+  /**
+   * @param statsSpace the stats space of the queue
+   * @param kvs the content of the stats space
+   * @param now the current time in milliseconds
+   */
+  static QueueStats fromKeyValues(String queueId, Subspace statsSpace, List<KeyValue> kvs,
+      long now)
+  {
+    long enqueued = 0;
+    long dequeued = 0;
+    long dropped = 0;
+    long enqueuedBytes = 0;
+    long removedBytes = 0;
+    long oldestEnqueueTime = 0;
+    long recentEnqueued = 0;
+    long recentDequeued = 0;
+
+    long currentSecond = now / 1000;
+    for (KeyValue kv : kvs)
+    {
+      Tuple key = statsSpace.unpack(kv.getKey());
+      String name = key.getString(0);
+      if (KEY_RATES.equals(name))
+      {
+        // only the complete seconds of the window
+        long second = key.getLong(1);
+        if (second >= currentSecond - RATE_WINDOW_SECONDS && second < currentSecond)
+        {
+          if (RATE_ENQUEUED.equals(key.getString(2)))
+          {
+            recentEnqueued += FdbUtils.decodeLong(kv.getValue());
+          }
+          else
+          {
+            recentDequeued += FdbUtils.decodeLong(kv.getValue());
+          }
+        }
+      }
+      else if (KEY_OLDEST.equals(name))
+      {
+        oldestEnqueueTime = Tuple.fromBytes(kv.getValue()).getLong(0);
+      }
+      else if (KEY_ENQUEUED.equals(name))
+      {
+        enqueued = FdbUtils.decodeLong(kv.getValue());
+      }
+      else if (KEY_DEQUEUED.equals(name))
+      {
+        dequeued = FdbUtils.decodeLong(kv.getValue());
+      }
+      else if (KEY_DROPPED.equals(name))
+      {
+        dropped = FdbUtils.decodeLong(kv.getValue());
+      }
+      else if (KEY_ENQUEUED_BYTES.equals(name))
+      {
+        enqueuedBytes = FdbUtils.decodeLong(kv.getValue());
+      }
+      else if (KEY_REMOVED_BYTES.equals(name))
+      {
+        removedBytes = FdbUtils.decodeLong(kv.getValue());
+      }
+    }
+
+    return new QueueStats(queueId, now, enqueued, dequeued, dropped, enqueuedBytes, removedBytes,
+        oldestEnqueueTime, recentEnqueued, recentDequeued);
+  }
+}
@@ -0,0 +1,227 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * A Reactive Streams {@link Subscriber} that writes to a {@link Queue}
+ * through batched offers.
+ * <p>
+ * At most one batch is requested from upstream at a time, and more is only
+ * requested once the items received have been committed, so a slow queue
+ * pushes back all the way to the source. A partial batch is written once
+ * it has lingered for the given time. Items a bounded queue rejects for
+ * being full are retried after the linger time, before anything new is
+ * requested.
+ *
+ * @author kwei
+ *
+ */
+public class QueueSubscriber implements Subscriber<byte[]>
+{
+  private final Queue _queue;
+  private final int _batchSize;
+  private final long _lingerMillis;
+  private final Executor _executor;
+  private final HashedWheelTimer _timer;
+  private final CompletableFuture<Void> _completion = new CompletableFuture<>();
+  private final AtomicInteger _wip = new AtomicInteger();
+
+  // guarded by this
+  private final List<byte[]> _buffer = new ArrayList<>();
+  private HashedWheelTimer.Timeout _linger;
+  private boolean _done = false;
+
+  private volatile Subscription _subscription;
+  private volatile Throwable _error;
+
+  /**
+   * @param executor runs the offers, so that onNext never blocks upstream
+   */
+  public QueueSubscriber(Queue queue, int batchSize, long lingerMillis, Executor executor)
+  {
+    if (batchSize <= 0)
+    {
+      throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+    }
+
+    _queue = queue;
+    _batchSize = batchSize;
+    _lingerMillis = lingerMillis;
+    _executor = executor;
+    _timer = HashedWheelTimer.getInstance();
+  }
+
+  /**
+   * @return a future that completes once upstream has completed and every
+   *         item has been committed, or exceptionally on any failure
+   */
+  public CompletableFuture<Void> getCompletion()
+  {
+    return _completion;
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription)
+  {
+    if (subscription == null)
+    {
+      throw new NullPointerException("Subscription must not be null");
+    }
+
+    if (_subscription != null)
+    {
+      // only one upstream is allowed
+      subscription.cancel();
+      return;
+    }
+
+    _subscription = subscription;
+    subscription.request(_batchSize);
+  }
+
+  @Override
+  public void onNext(byte[] item)
+  {
+    if (item == null)
+    {
+      throw new NullPointerException("Item must not be null");
+    }
+
+    boolean full;
+    synchronized (this)
+    {
+      _buffer.add(item);
+      full = _buffer.size() >= _batchSize;
+      if (!full && _linger == null)
+      {
+        _linger = _timer.newTimeout(() -> schedule(), _lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (full)
+    {
+      schedule();
+    }
+  }
+
+  @Override
+  public void onError(Throwable error)
+  {
+    if (error == null)
+    {
+      throw new NullPointerException("Error must not be null");
+    }
+
+    // items received so far are still written
+    _error = error;
+    onComplete();
+  }
+
+  @Override
+  public void onComplete()
+  {
+    synchronized (this)
+    {
+      _done = true;
+    }
+    schedule();
+  }
+
+  private void schedule()
+  {
+    // only one flush runs at any time, which keeps the batches in order
+    if (_wip.getAndIncrement() == 0)
+    {
+      _executor.execute(() -> flushLoop());
+    }
+  }
+
+  private void flushLoop()
+  {
+    int missed = 1;
+    while (true)
+    {
+      flush();
+      missed = _wip.addAndGet(-missed);
+      if (missed == 0)
+      {
+        return;
+      }
+    }
+  }
+
+  private void flush()
+  {
+    if (_completion.isDone())
+    {
+      return;
+    }
+
+    List<byte[]> batch;
+    boolean done;
+    synchronized (this)
+    {
+      if (_linger != null)
+      {
+        _linger.cancel();
+        _linger = null;
+      }
+      batch = new ArrayList<>(_buffer);
+      done = _done;
+    }
+
+    int accepted = 0;
+    if (!batch.isEmpty())
+    {
+      try
+      {
+        accepted = _queue.offer(batch);
+      }
+      catch (RuntimeException ex)
+      {
+        _subscription.cancel();
+        _completion.completeExceptionally(ex);
+        return;
+      }
+    }
+
+    boolean drained;
+    synchronized (this)
+    {
+      _buffer.subList(0, accepted).clear();
+      drained = _buffer.isEmpty();
+      if (!drained && _linger == null)
+      {
+        // the queue is full, retry the rest later
+        _linger = _timer.newTimeout(() -> schedule(), _lingerMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (done && drained)
+    {
+      if (_error != null)
+      {
+        _completion.completeExceptionally(_error);
+      }
+      else
+      {
+        _completion.complete(null);
+      }
+    }
+    else if (accepted > 0 && !done)
+    {
+      // committed, make room for as many new items
+      _subscription.request(accepted);
+    }
+  }
+}
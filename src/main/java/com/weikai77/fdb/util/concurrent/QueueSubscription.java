@@ -0,0 +1,227 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.weikai77.fdb.util.ChangeMonitor;
+import com.weikai77.fdb.util.ChangeMonitor.ChangeListener;
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * A push-based consumer of a {@link DistributedBlockingQueueLockFree}, see
+ * {@link DistributedBlockingQueueLockFree#subscribe(Consumer, int)}.
+ * <p>
+ * The subscription listens on the queue's notEmpty key through a
+ * {@link ChangeMonitor}. On every change it polls as many items as there
+ * are idle handler slots, and keeps polling as handlers finish, until the
+ * queue is empty. An empty queue thus costs no transaction at all, and the
+ * handler threads time out while idle.
+ * <p>
+ * Items are removed from the queue before they are handled, so delivery is
+ * at-most-once: an item whose handler throws, or whose process dies, is
+ * lost.
+ *
+ * @author kwei
+ *
+ */
+public class QueueSubscription
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueueSubscription.class);
+
+  private static final long IDLE_THREAD_MILLIS = 60000;
+  private static final long RETRY_MILLIS = 1000;
+
+  private final DistributedBlockingQueueLockFree _queue;
+  private final Consumer<byte[]> _handler;
+  private final int _concurrency;
+  private final ChangeMonitor _changeMonitor;
+  private final HashedWheelTimer _timer;
+  private final ThreadPoolExecutor _executor;
+  private final ChangeListener _listener;
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final AtomicInteger _wip = new AtomicInteger();
+  private volatile boolean _cancelled = false;
+
+  protected QueueSubscription(DistributedBlockingQueueLockFree queue, Consumer<byte[]> handler,
+      int concurrency, ChangeMonitor changeMonitor, HashedWheelTimer timer)
+  {
+    if (concurrency <= 0)
+    {
+      throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+    }
+
+    _queue = queue;
+    _handler = handler;
+    _concurrency = concurrency;
+    _changeMonitor = changeMonitor;
+    _timer = timer;
+    _executor = new ThreadPoolExecutor(concurrency, concurrency, IDLE_THREAD_MILLIS,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    _executor.allowCoreThreadTimeOut(true);
+    _listener = new ChangeListener()
+    {
+      @Override
+      public void onChange(byte[] key)
+      {
+        drain();
+      }
+    };
+  }
+
+  /**
+   * Lifecycle method. Registers for changes before the initial drain,
+   * so no change can be missed.
+   */
+  protected void start()
+  {
+    _changeMonitor.registerListener(_queue.getNotEmptyKey(), _listener);
+    drain();
+  }
+
+  public String getQueueId()
+  {
+    return _queue.getId();
+  }
+
+  /**
+   * Stops polling. Items already polled are still handled.
+   */
+  public void cancel()
+  {
+    _cancelled = true;
+    _changeMonitor.unregisterListener(_queue.getNotEmptyKey(), _listener);
+    _executor.shutdown();
+  }
+
+  public boolean isCancelled()
+  {
+    return _cancelled;
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _executor.awaitTermination(timeout, unit);
+  }
+
+  private void drain()
+  {
+    // only one drain runs at any time; the others just flag a re-run
+    if (_wip.getAndIncrement() == 0 && !_cancelled)
+    {
+      try
+      {
+        _executor.execute(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            drainLoop();
+          }
+        });
+      }
+      catch (RuntimeException ex)
+      {
+        // cancelled in the meantime
+        _wip.set(0);
+      }
+    }
+  }
+
+  private void drainLoop()
+  {
+    int missed = 1;
+    while (true)
+    {
+      pollAndDispatch();
+      missed = _wip.addAndGet(-missed);
+      if (missed == 0)
+      {
+        return;
+      }
+    }
+  }
+
+  private void pollAndDispatch()
+  {
+    while (!_cancelled)
+    {
+      int idle = _concurrency - _inFlight.get();
+      if (idle <= 0)
+      {
+        // a finishing handler will drain again
+        return;
+      }
+
+      List<byte[]> items;
+      try
+      {
+        items = _queue.poll(idle);
+      }
+      catch (RuntimeException ex)
+      {
+        LOGGER.error("Error polling queue " + _queue.getId() + ", retrying", ex);
+        _timer.newTimeout(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            drain();
+          }
+        }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        return;
+      }
+
+      if (items.isEmpty())
+      {
+        // wait for the next change
+        return;
+      }
+
+      _inFlight.addAndGet(items.size());
+      for (byte[] item : items)
+      {
+        try
+        {
+          _executor.execute(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              handle(item);
+            }
+          });
+        }
+        catch (RejectedExecutionException ex)
+        {
+          // cancelled after the poll, still handle what we took
+          handle(item);
+        }
+      }
+    }
+  }
+
+  private void handle(byte[] item)
+  {
+    try
+    {
+      _handler.accept(item);
+    }
+    catch (Exception ex)
+    {
+      LOGGER.error("Error handling item from queue " + _queue.getId(), ex);
+    }
+    finally
+    {
+      _inFlight.decrementAndGet();
+      drain();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.function.UnaryOperator;
+
+import com.foundationdb.Transaction;
+
+/**
+ * Transactional operations across {@link TransactionalQueue}s.
+ *
+ * @author kwei
+ *
+ */
+class QueueUtils
+{
+  /**
+   * Moves the head item of the source queue to the target queue.
+   *
+   * @return the item moved, or null if nothing was moved
+   */
+  static byte[] transfer(Transaction tr, TransactionalQueue source, TransactionalQueue target,
+      UnaryOperator<byte[]> transformer)
+  {
+    if (source.getDatabase() != target.getDatabase())
+    {
+      throw new IllegalArgumentException("Cannot transfer across databases from queue " +
+          source.getId() + " to queue " + target.getId());
+    }
+
+    // check the target first, so we never need to undo the poll
+    if (target.isFull(tr))
+    {
+      return null;
+    }
+
+    byte[] item = source.poll(tr);
+    if (item == null)
+    {
+      return null;
+    }
+
+    byte[] transformed = transformer.apply(item);
+    if (transformed == null)
+    {
+      throw new IllegalArgumentException("Transformer returned null for item from queue " +
+          source.getId());
+    }
+
+    target.offer(tr, transformed);
+    return transformed;
+  }
+}
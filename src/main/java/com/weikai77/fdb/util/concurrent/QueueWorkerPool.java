@@ -0,0 +1,651 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.foundationdb.Database;
+import com.foundationdb.KeyValue;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.foundationdb.async.Future;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+import com.weikai77.fdb.util.FdbUtils;
+import com.weikai77.fdb.util.Watch;
+import com.weikai77.util.Clock;
+import com.weikai77.util.HashedWheelTimer;
+
+/**
+ * Runs a fixed number of handler threads against a {@link
+ * TransactionalQueue}, with at-least-once delivery, since the leases are
+ * taken in the same transaction as the polls.
+ * <p>
+ * A fetcher thread keeps a local buffer of up to {@code prefetch} items
+ * filled. Each fetch is a single transaction that polls a batch of items
+ * and, in the same transaction, records a lease for each of them. A lease
+ * expires {@code leaseMillis} after it was taken, and is removed once its
+ * item has been handled; the removals of many items are committed
+ * together by an acker thread.
+ * <p>
+ * An item whose handler throws is redelivered after a back-off, and an
+ * item whose lease expires, e.g., because its process died, is
+ * redelivered by whichever pool fetches next. Expired leases are always
+ * fetched before new items. An item is moved to the dead-letter queue
+ * (see {@link #getDeadLetterQueue()}) once it has been attempted
+ * {@code maxAttempts} times. Note that a handler running longer than the
+ * lease may see its item handled twice.
+ * <p>
+ * When the queue is a {@link DistributedBlockingQueueLockFree}, an idle
+ * fetcher waits on the queue's notEmpty key, otherwise it polls once
+ * every second.
+ * <p>
+ * Layout on FDB, next to the items of the queue:
+ * <pre>
+ *    /leases/{deadline}/{leaseId} -> {@link Lease}
+ *    /dead/items/0                -> {@link DistributedQueue.QueueItem}
+ *              /...               -> {@link DistributedQueue.QueueItem}
+ * </pre>
+ *
+ * @author kwei
+ *
+ */
+public class QueueWorkerPool
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueueWorkerPool.class);
+
+  private static final String KEY_LEASES = "leases";
+  private static final String KEY_DEAD = "dead";
+
+  private static final long IDLE_WAIT_MILLIS = 1000;
+  private static final long RETRY_DELAY_MILLIS = 1000;
+  private static final int MAX_ACK_BATCH_SIZE = 1000;
+
+  private final Database _fdb;
+  private final TransactionalQueue _queue;
+  private final Consumer<byte[]> _handler;
+  private final HashedWheelTimer _timer;
+  private final Clock _clock;
+  private final int _workerThreads;
+  private final long _leaseMillis;
+  private final int _maxAttempts;
+  private final DistributedQueue _deadLetterQueue;
+  private final Subspace _leasesSpace;
+
+  private final LinkedBlockingQueue<Delivery> _buffer = new LinkedBlockingQueue<>();
+  private final LinkedBlockingQueue<Ack> _acks = new LinkedBlockingQueue<>();
+  private final Semaphore _credits;
+  private final ExecutorService _fetcher;
+  private final ExecutorService _workers;
+  private final ExecutorService _acker;
+  private volatile boolean _shutdown = false;
+
+  // metrics
+  private final long _startTime;
+  private final LongAdder _fetched = new LongAdder();
+  private final LongAdder _redelivered = new LongAdder();
+  private final LongAdder _succeeded = new LongAdder();
+  private final LongAdder _failed = new LongAdder();
+  private final LongAdder _deadLettered = new LongAdder();
+  private final LongAdder _totalLatencyNanos = new LongAdder();
+  private final AtomicLong _maxLatencyNanos = new AtomicLong();
+
+  protected QueueWorkerPool(Database fdb, Subspace space, TransactionalQueue queue, Consumer<byte[]> handler,
+      HashedWheelTimer timer, Clock clock, int workerThreads, int prefetch, long leaseMillis,
+      int maxAttempts)
+  {
+    if (workerThreads <= 0)
+    {
+      throw new IllegalArgumentException("Invalid number of worker threads: " + workerThreads);
+    }
+    if (prefetch <= 0)
+    {
+      throw new IllegalArgumentException("Prefetch must be positive: " + prefetch);
+    }
+    if (leaseMillis <= 0)
+    {
+      throw new IllegalArgumentException("Lease time must be positive: " + leaseMillis);
+    }
+    if (maxAttempts <= 0)
+    {
+      throw new IllegalArgumentException("Max attempts must be positive: " + maxAttempts);
+    }
+
+    _fdb = fdb;
+    _queue = queue;
+    _handler = handler;
+    _timer = timer;
+    _clock = clock;
+    _workerThreads = workerThreads;
+    _leaseMillis = leaseMillis;
+    _maxAttempts = maxAttempts;
+    _deadLetterQueue = new DistributedQueue(fdb, space.subspace(Tuple.from(KEY_DEAD)),
+        queue.getId() + "/" + KEY_DEAD);
+    _leasesSpace = space.subspace(Tuple.from(KEY_LEASES));
+    _credits = new Semaphore(prefetch);
+    _fetcher = Executors.newSingleThreadExecutor();
+    _workers = Executors.newFixedThreadPool(workerThreads);
+    _acker = Executors.newSingleThreadExecutor();
+    _startTime = System.nanoTime();
+  }
+
+  /**
+   * Lifecycle method.
+   */
+  protected void start()
+  {
+    _fetcher.execute(() -> fetchLoop());
+    for (int i=0; i<_workerThreads; i++)
+    {
+      _workers.execute(() -> workLoop());
+    }
+    _acker.execute(() -> ackLoop());
+  }
+
+  /**
+   * Stops fetching. The items already fetched are still handled, and
+   * their acks committed, before the pool terminates.
+   */
+  public void shutdown()
+  {
+    _shutdown = true;
+    _fetcher.shutdown();
+    _workers.shutdown();
+    _acker.shutdown();
+  }
+
+  public boolean isTerminated()
+  {
+    // the acker is the last to stop
+    return _acker.isTerminated();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _acker.awaitTermination(timeout, unit);
+  }
+
+  public String getQueueId()
+  {
+    return _queue.getId();
+  }
+
+  /**
+   * @return the queue holding the items that failed {@code maxAttempts}
+   *         times, for inspection or for re-offering
+   */
+  public Queue getDeadLetterQueue()
+  {
+    return _deadLetterQueue;
+  }
+
+  public Metrics getMetrics()
+  {
+    long handled = _succeeded.sum() + _failed.sum();
+    double elapsedSeconds = (System.nanoTime() - _startTime) / 1e9;
+    return new Metrics(_fetched.sum(), _redelivered.sum(), _succeeded.sum(), _failed.sum(),
+        _deadLettered.sum(),
+        handled == 0 ? 0 : _totalLatencyNanos.sum() / 1e6 / handled,
+        _maxLatencyNanos.get() / 1e6,
+        elapsedSeconds <= 0 ? 0 : handled / elapsedSeconds);
+  }
+
+  private void fetchLoop()
+  {
+    while (!_shutdown)
+    {
+      try
+      {
+        // wait for room in the buffer, then take all of it
+        if (!_credits.tryAcquire(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+        {
+          continue;
+        }
+        int credits = 1 + _credits.drainPermits();
+
+        Object res;
+        try
+        {
+          res = _fdb.run(new Function<Transaction,Object>()
+          {
+            @Override
+            public Object apply(Transaction tr)
+            {
+              return fetch(tr, credits);
+            }
+          });
+        }
+        catch (RuntimeException ex)
+        {
+          LOGGER.error("Error fetching from queue " + _queue.getId() + ", retrying", ex);
+          _credits.release(credits);
+          Thread.sleep(RETRY_DELAY_MILLIS);
+          continue;
+        }
+
+        if (res instanceof Watch)
+        {
+          _credits.release(credits);
+          Watch watch = (Watch) res;
+          try
+          {
+            // bounded, so that expired leases are still picked up
+            watch.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+          }
+          finally
+          {
+            watch.cancel();
+          }
+          continue;
+        }
+
+        Fetch fetch = (Fetch) res;
+        List<Delivery> deliveries = fetch.getDeliveries();
+        _deadLettered.add(fetch.getDeadLettered());
+        _credits.release(credits - deliveries.size());
+        for (Delivery delivery : deliveries)
+        {
+          _fetched.increment();
+          if (delivery.getLease().getAttempts() > 1)
+          {
+            _redelivered.increment();
+          }
+        }
+        _buffer.addAll(deliveries);
+
+        if (deliveries.isEmpty())
+        {
+          Thread.sleep(IDLE_WAIT_MILLIS);
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.warn("Fetcher interrupted for queue " + _queue.getId());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Takes over expired leases first, then polls new items, and leases
+   * everything taken.
+   *
+   * @return the {@link Fetch}, or a {@link Watch} on the notEmpty key if
+   *         nothing was taken from a blocking queue
+   */
+  private Object fetch(Transaction tr, int maxItems)
+  {
+    long now = _clock.currentTimeMillis();
+    long deadline = now + _leaseMillis;
+    List<Delivery> deliveries = new ArrayList<>();
+    int deadLettered = 0;
+
+    byte[] expiredEnd = _leasesSpace.pack(Tuple.from(now));
+    List<KeyValue> expired = tr.getRange(_leasesSpace.range().begin, expiredEnd, maxItems)
+        .asList().get();
+    for (KeyValue kv : expired)
+    {
+      tr.clear(kv.getKey());
+      Lease lease = Lease.fromBytes(kv.getValue());
+      if (lease.getAttempts() >= _maxAttempts)
+      {
+        _deadLetterQueue.offer(tr, lease.getValue());
+        ++deadLettered;
+      }
+      else
+      {
+        Lease newLease = new Lease(lease.getAttempts() + 1, lease.getValue());
+        byte[] key = getLeaseKey(deadline, _leasesSpace.unpack(kv.getKey()).getString(1));
+        tr.set(key, newLease.toBytes());
+        deliveries.add(new Delivery(key, newLease));
+      }
+    }
+
+    // dead-lettered leases leave room for new items
+    int remaining = maxItems - deliveries.size();
+    if (remaining > 0)
+    {
+      for (byte[] item : _queue.poll(tr, remaining))
+      {
+        Lease lease = new Lease(1, item);
+        byte[] key = getLeaseKey(deadline, UUID.randomUUID().toString());
+        tr.set(key, lease.toBytes());
+        deliveries.add(new Delivery(key, lease));
+      }
+    }
+
+    if (expired.isEmpty() && deliveries.isEmpty() &&
+        _queue instanceof DistributedBlockingQueueLockFree)
+    {
+      byte[] notEmpty = ((DistributedBlockingQueueLockFree) _queue).getNotEmptyKey();
+      return FdbUtils.getAndWatch(tr, _timer, notEmpty);
+    }
+    return new Fetch(deliveries, deadLettered);
+  }
+
+  private byte[] getLeaseKey(long deadline, String leaseId)
+  {
+    return _leasesSpace.pack(Tuple.from(deadline, leaseId));
+  }
+
+  private void workLoop()
+  {
+    while (true)
+    {
+      try
+      {
+        Delivery delivery = _buffer.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (delivery == null)
+        {
+          // nothing is added once the fetcher has stopped
+          if (_fetcher.isTerminated() && _buffer.isEmpty())
+          {
+            return;
+          }
+          continue;
+        }
+
+        _credits.release();
+        handle(delivery);
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.warn("Worker interrupted for queue " + _queue.getId());
+        return;
+      }
+    }
+  }
+
+  private void handle(Delivery delivery)
+  {
+    boolean success = false;
+    long startTime = System.nanoTime();
+    try
+    {
+      _handler.accept(delivery.getLease().getValue());
+      success = true;
+    }
+    catch (Exception ex)
+    {
+      LOGGER.error("Error handling item from queue " + _queue.getId() + " on attempt " +
+          delivery.getLease().getAttempts(), ex);
+    }
+    finally
+    {
+      long latency = System.nanoTime() - startTime;
+      _totalLatencyNanos.add(latency);
+      _maxLatencyNanos.accumulateAndGet(latency, Math::max);
+      _acks.add(new Ack(delivery, success));
+    }
+  }
+
+  private void ackLoop()
+  {
+    List<Ack> batch = new ArrayList<>(MAX_ACK_BATCH_SIZE);
+    while (true)
+    {
+      try
+      {
+        Ack first = _acks.poll(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null)
+        {
+          // nothing is added once the workers have stopped
+          if (_workers.isTerminated() && _acks.isEmpty())
+          {
+            return;
+          }
+          continue;
+        }
+
+        batch.add(first);
+        _acks.drainTo(batch, MAX_ACK_BATCH_SIZE - 1);
+        commit(batch);
+      }
+      catch (InterruptedException ex)
+      {
+        LOGGER.warn("Acker interrupted for queue " + _queue.getId());
+        return;
+      }
+      finally
+      {
+        batch.clear();
+      }
+    }
+  }
+
+  private void commit(List<Ack> batch)
+  {
+    int deadLettered;
+    try
+    {
+      deadLettered = _fdb.run(new Function<Transaction,Integer>()
+      {
+        @Override
+        public Integer apply(Transaction tr)
+        {
+          return commit(tr, batch);
+        }
+      });
+    }
+    catch (RuntimeException ex)
+    {
+      // the leases will expire, and the items be redelivered
+      LOGGER.error("Error committing " + batch.size() + " acks for queue " + _queue.getId(), ex);
+      return;
+    }
+
+    for (Ack ack : batch)
+    {
+      if (ack.isSuccess())
+      {
+        _succeeded.increment();
+      }
+      else
+      {
+        _failed.increment();
+      }
+    }
+    _deadLettered.add(deadLettered);
+  }
+
+  /**
+   * Releases the leases of the items handled, and schedules the failed
+   * ones for redelivery.
+   *
+   * @return the number of items moved to the dead-letter queue
+   */
+  private int commit(Transaction tr, List<Ack> batch)
+  {
+    // a failed item is only rescheduled if its lease has not been taken over
+    List<Future<byte[]>> leases = new ArrayList<>(batch.size());
+    for (Ack ack : batch)
+    {
+      leases.add(ack.isSuccess() ? null : tr.get(ack.getDelivery().getKey()));
+    }
+
+    long now = _clock.currentTimeMillis();
+    int deadLettered = 0;
+    for (int i=0; i<batch.size(); i++)
+    {
+      Delivery delivery = batch.get(i).getDelivery();
+      if (batch.get(i).isSuccess())
+      {
+        tr.clear(delivery.getKey());
+      }
+      else if (leases.get(i).get() != null)
+      {
+        tr.clear(delivery.getKey());
+        Lease lease = delivery.getLease();
+        if (lease.getAttempts() >= _maxAttempts)
+        {
+          _deadLetterQueue.offer(tr, lease.getValue());
+          ++deadLettered;
+        }
+        else
+        {
+          // expires after the back-off, and is then fetched again
+          String leaseId = _leasesSpace.unpack(delivery.getKey()).getString(1);
+          long deadline = now + RETRY_DELAY_MILLIS * lease.getAttempts();
+          tr.set(getLeaseKey(deadline, leaseId), lease.toBytes());
+        }
+      }
+    }
+    return deadLettered;
+  }
+
+  private static class Delivery
+  {
+    private final byte[] _key;
+    private final Lease _lease;
+
+    public Delivery(byte[] key, Lease lease)
+    {
+      _key = key;
+      _lease = lease;
+    }
+
+    public byte[] getKey() { return _key; }
+    public Lease getLease() { return _lease; }
+  }
+
+  private static class Fetch
+  {
+    private final List<Delivery> _deliveries;
+    private final int _deadLettered;
+
+    public Fetch(List<Delivery> deliveries, int deadLettered)
+    {
+      _deliveries = deliveries;
+      _deadLettered = deadLettered;
+    }
+
+    public List<Delivery> getDeliveries() { return _deliveries; }
+    public int getDeadLettered() { return _deadLettered; }
+  }
+
+  private static class Ack
+  {
+    private final Delivery _delivery;
+    private final boolean _success;
+
+    public Ack(Delivery delivery, boolean success)
+    {
+      _delivery = delivery;
+      _success = success;
+    }
+
+    public Delivery getDelivery() { return _delivery; }
+    public boolean isSuccess() { return _success; }
+  }
+
+  /**
+   * A point-in-time snapshot of a pool's counters, since the pool was
+   * created. Latencies are those of the handler alone.
+   */
+  public static class Metrics
+  {
+    private final long _fetched;
+    private final long _redelivered;
+    private final long _succeeded;
+    private final long _failed;
+    private final long _deadLettered;
+    private final double _averageLatencyMillis;
+    private final double _maxLatencyMillis;
+    private final double _throughput;
+
+    public Metrics(long fetched, long redelivered, long succeeded, long failed,
+        long deadLettered, double averageLatencyMillis, double maxLatencyMillis,
+        double throughput)
+    {
+      _fetched = fetched;
+      _redelivered = redelivered;
+      _succeeded = succeeded;
+      _failed = failed;
+      _deadLettered = deadLettered;
+      _averageLatencyMillis = averageLatencyMillis;
+      _maxLatencyMillis = maxLatencyMillis;
+      _throughput = throughput;
+    }
+
+    public long getFetched() { return _fetched; }
+    public long getRedelivered() { return _redelivered; }
+    public long getSucceeded() { return _succeeded; }
+    public long getFailed() { return _failed; }
+    public long getDeadLettered() { return _deadLettered; }
+    public double getAverageLatencyMillis() { return _averageLatencyMillis; }
+    public double getMaxLatencyMillis() { return _maxLatencyMillis; }
+
+    /**
+     * @return items handled per second, successfully or not
+     */
+    public double getThroughput() { return _throughput; }
+
+    @Override
+    public String toString()
+    {
+      return String.format("fetched=%d, redelivered=%d, succeeded=%d, failed=%d, " +
+          "deadLettered=%d, avgLatency=%.2fms, maxLatency=%.2fms, throughput=%.1f/s",
+          _fetched, _redelivered, _succeeded, _failed, _deadLettered, _averageLatencyMillis,
+          _maxLatencyMillis, _throughput);
+    }
+  }
+
+  protected static class Lease
+  {
+    private static final int VERSION = 1;
+    private static final int IDX_VERSION = 0;
+    private static final int IDX_ATTEMPTS = 1;
+    private static final int IDX_VALUE = 2;
+
+    private final int _version;
+    private final int _attempts;
+    private final byte[] _value;
+
+    public Lease(int attempts, byte[] value)
+    {
+      this._version = VERSION;
+      this._attempts = attempts;
+      this._value = value;
+    }
+
+    public int getAttempts() { return _attempts; }
+    public byte[] getValue() { return _value; }
+
+    public byte[] toBytes()
+    {
+      return Tuple.from(_version, _attempts, _value).pack();
+    }
+
+    public static Lease fromBytes(byte[] bytes)
+    {
+      if (bytes == null)
+      {
+        return null;
+      }
+
+      Tuple tuple = Tuple.fromBytes(bytes);
+      int version = (int) tuple.getLong(IDX_VERSION);
+      if (version == VERSION)
+      {
+        int attempts = (int) tuple.getLong(IDX_ATTEMPTS);
+        byte[] value = tuple.getBytes(IDX_VALUE);
+        return new Lease(attempts, value);
+      }
+      else
+      {
+        throw new IllegalArgumentException("Unsupported version: " + version);
+      }
+    }
+  }
+}
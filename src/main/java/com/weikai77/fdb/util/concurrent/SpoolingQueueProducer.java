@@ -0,0 +1,561 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A producer that spools offers to a local file before draining them to
+ * a {@link Queue}, so that offers do not wait on FDB commits, and keep
+ * being accepted through short cluster outages.
+ * <p>
+ * Offers are appended to a memory-mapped spool file, used as a ring, and
+ * acknowledged once the file has been forced to disk; forces are shared
+ * by all the offers appended in the meantime. A background thread drains
+ * the spool in large batches, one transaction per batch, in the order
+ * items were offered, and retries with a back-off while the queue fails
+ * or is full.
+ * <p>
+ * Layout of the spool file:
+ * <pre>
+ *    header: magic (int), version (int), drained mark (long)
+ *    record: length (int), epoch (int), CRC32 (int), item
+ *    wrap:   -1 (int), epoch (int), 0 (int)
+ * </pre>
+ * The epoch counts the laps around the ring, so that records left over
+ * from a previous lap are told apart from current ones. On start, the
+ * records from the drained mark onwards are recovered and drained again.
+ * Since the mark is persisted after each batch commits, an item may be
+ * drained twice after a crash, but never lost once acknowledged.
+ * <p>
+ * Offers complete with false when the spool is full. Should the drainer
+ * fail, e.g. on a corrupt spool, the producer fails as well: the offers
+ * pending and any later ones complete exceptionally with an {@link
+ * IllegalStateException}, and the items already acknowledged are left in
+ * the spool for the next start.
+ *
+ * @author kwei
+ *
+ */
+public class SpoolingQueueProducer implements QueueProducer
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpoolingQueueProducer.class);
+
+  private static final int MAGIC = 0x51535031;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int IDX_DRAINED_MARK = 8;
+  private static final int RECORD_HEADER_SIZE = 12;
+  private static final int WRAP = -1;
+  private static final int FIRST_EPOCH = 1;
+
+  // half the transaction size limit
+  private static final int MAX_BATCH_BYTES = 5_000_000;
+  private static final long IDLE_WAIT_MILLIS = 100;
+  private static final long MIN_RETRY_MILLIS = 100;
+  private static final long MAX_RETRY_MILLIS = 5_000;
+
+  private final Queue _queue;
+  private final File _file;
+  private final int _spoolSize;
+  private final int _maxBatchSize;
+  private final ExecutorService _executor;
+
+  private FileChannel _channel;
+  private MappedByteBuffer _buffer;
+  private int _capacity;
+
+  // guarded by this; marks are an epoch and a position in the file
+  private long _writeMark;
+  private long _syncedMark;
+  private long _drainedMark;
+  private List<CompletableFuture<Boolean>> _unsynced;
+  private boolean _started = false;
+  private boolean _shutdown = false;
+  private boolean _syncerDone = false;
+  private RuntimeException _failure;
+
+  /**
+   * @param file the spool file, created if needed
+   * @param spoolSize size of a new spool file; an existing one keeps its
+   *        size
+   * @param maxBatchSize max number of items drained per transaction
+   */
+  public SpoolingQueueProducer(Queue queue, File file, int spoolSize, int maxBatchSize)
+  {
+    if (spoolSize <= HEADER_SIZE + RECORD_HEADER_SIZE)
+    {
+      throw new IllegalArgumentException("Invalid spool size: " + spoolSize);
+    }
+    if (maxBatchSize <= 0)
+    {
+      throw new IllegalArgumentException("Invalid max batch size: " + maxBatchSize);
+    }
+
+    _queue = queue;
+    _file = file;
+    _spoolSize = spoolSize;
+    _maxBatchSize = maxBatchSize;
+    _executor = Executors.newFixedThreadPool(2);
+    _unsynced = new ArrayList<>();
+  }
+
+  /**
+   * Maps the spool file, recovers the items not drained yet, and starts
+   * the syncing and draining threads.
+   */
+  public void start() throws IOException
+  {
+    synchronized (this)
+    {
+      if (_started)
+      {
+        throw new IllegalStateException("Producer already started: " + _queue.getId());
+      }
+
+      open();
+      _started = true;
+    }
+
+    _executor.submit(() -> syncLoop());
+    _executor.submit(() -> drainLoop());
+  }
+
+  /**
+   * Stops accepting new items. Items already accepted are still drained
+   * before the threads exit, unless the queue fails, in which case they
+   * are left in the spool for the next start.
+   */
+  @Override
+  public void shutdown()
+  {
+    synchronized (this)
+    {
+      _shutdown = true;
+      notifyAll();
+    }
+    _executor.shutdown();
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return _executor.awaitTermination(timeout, unit);
+  }
+
+  @Override
+  public String getQueueId()
+  {
+    return _queue.getId();
+  }
+
+  /**
+   * @return a future completed with true once the item is on disk, or
+   *         false if the spool is full; completed exceptionally if the
+   *         producer has failed
+   */
+  @Override
+  public CompletableFuture<Boolean> offer(byte[] item)
+  {
+    int size = RECORD_HEADER_SIZE + item.length;
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
+    synchronized (this)
+    {
+      if (!_started || _shutdown)
+      {
+        throw new IllegalStateException("Producer is not running: " + _queue.getId());
+      }
+      if (_failure != null)
+      {
+        future.completeExceptionally(
+            new IllegalStateException("Producer failed: " + _queue.getId(), _failure));
+        return future;
+      }
+      if (size > _capacity - HEADER_SIZE)
+      {
+        throw new IllegalArgumentException("Item too large for spool: " + item.length);
+      }
+
+      long mark = allocate(size);
+      if (mark < 0)
+      {
+        future.complete(false);
+        return future;
+      }
+
+      writeRecord(mark, item);
+      _writeMark = advance(mark, item.length);
+      _unsynced.add(future);
+      notifyAll();
+    }
+    return future;
+  }
+
+  private void open() throws IOException
+  {
+    boolean exists = _file.exists() && _file.length() > 0;
+    RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+    if (!exists)
+    {
+      raf.setLength(_spoolSize);
+    }
+    _channel = raf.getChannel();
+    _capacity = (int) _channel.size();
+    _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, 0, _capacity);
+
+    if (!exists || _buffer.getInt(0) != MAGIC)
+    {
+      _buffer.putInt(0, MAGIC);
+      _buffer.putInt(4, VERSION);
+      _buffer.putLong(IDX_DRAINED_MARK, mark(FIRST_EPOCH, HEADER_SIZE));
+      _buffer.force();
+    }
+    else if (_buffer.getInt(4) != VERSION)
+    {
+      throw new IllegalArgumentException("Unsupported version: " + _buffer.getInt(4));
+    }
+
+    // everything past the drained mark is still to be drained
+    _drainedMark = _buffer.getLong(IDX_DRAINED_MARK);
+    long mark = _drainedMark;
+    int recovered = 0;
+    while (true)
+    {
+      long recordMark = seek(mark);
+      byte[] item = readRecord(recordMark);
+      if (item == null)
+      {
+        break;
+      }
+      mark = advance(recordMark, item.length);
+      ++recovered;
+    }
+    _writeMark = mark;
+    _syncedMark = mark;
+
+    if (recovered > 0)
+    {
+      LOGGER.info("Recovered " + recovered + " spooled items for queue " + _queue.getId());
+    }
+  }
+
+  /**
+   * Finds room for a record at the write mark, wrapping around to the
+   * start of the file if needed.
+   *
+   * @return the mark to write the record at, or -1 if the spool is full
+   */
+  private long allocate(int size)
+  {
+    int pos = pos(_writeMark);
+    int epoch = epoch(_writeMark);
+    boolean wrap = pos + size > _capacity;
+    int newPos = wrap ? HEADER_SIZE : pos;
+    int newEpoch = wrap ? epoch + 1 : epoch;
+
+    // past the drained mark, a lap behind is free
+    int drainedPos = pos(_drainedMark);
+    int drainedEpoch = epoch(_drainedMark);
+    boolean fits = newEpoch == drainedEpoch ||
+        (newEpoch == drainedEpoch + 1 && newPos + size <= drainedPos);
+    if (!fits)
+    {
+      return -1;
+    }
+
+    if (wrap && pos + RECORD_HEADER_SIZE <= _capacity)
+    {
+      _buffer.putInt(pos, WRAP);
+      _buffer.putInt(pos + 4, epoch);
+      _buffer.putInt(pos + 8, 0);
+    }
+    return mark(newEpoch, newPos);
+  }
+
+  private void writeRecord(long mark, byte[] item)
+  {
+    int pos = pos(mark);
+    CRC32 crc = new CRC32();
+    crc.update(item);
+
+    ByteBuffer buffer = _buffer.duplicate();
+    buffer.position(pos + RECORD_HEADER_SIZE);
+    buffer.put(item);
+    _buffer.putInt(pos, item.length);
+    _buffer.putInt(pos + 4, epoch(mark));
+    _buffer.putInt(pos + 8, (int) crc.getValue());
+  }
+
+  /**
+   * @return the mark of the record following the given mark, which is the
+   *         start of the next lap if the current one has wrapped there
+   */
+  private long seek(long mark)
+  {
+    int pos = pos(mark);
+    int epoch = epoch(mark);
+    if (pos + RECORD_HEADER_SIZE > _capacity ||
+        (_buffer.getInt(pos) == WRAP && _buffer.getInt(pos + 4) == epoch))
+    {
+      return mark(epoch + 1, HEADER_SIZE);
+    }
+    return mark;
+  }
+
+  /**
+   * @return the item of the record at the given mark, or null if there is
+   *         no valid record of the current lap there
+   */
+  private byte[] readRecord(long mark)
+  {
+    int pos = pos(mark);
+    if (pos + RECORD_HEADER_SIZE > _capacity)
+    {
+      return null;
+    }
+
+    int length = _buffer.getInt(pos);
+    if (length < 0 || pos + RECORD_HEADER_SIZE + length > _capacity ||
+        _buffer.getInt(pos + 4) != epoch(mark))
+    {
+      return null;
+    }
+
+    byte[] item = new byte[length];
+    ByteBuffer buffer = _buffer.duplicate();
+    buffer.position(pos + RECORD_HEADER_SIZE);
+    buffer.get(item);
+
+    CRC32 crc = new CRC32();
+    crc.update(item);
+    return (int) crc.getValue() == _buffer.getInt(pos + 8) ? item : null;
+  }
+
+  private void syncLoop()
+  {
+    try
+    {
+      while (true)
+      {
+        List<CompletableFuture<Boolean>> batch;
+        long mark;
+        synchronized (this)
+        {
+          while (_unsynced.isEmpty() && !_shutdown && _failure == null)
+          {
+            wait(IDLE_WAIT_MILLIS);
+          }
+          if (_unsynced.isEmpty())
+          {
+            // shut down, or failed
+            break;
+          }
+
+          batch = _unsynced;
+          _unsynced = new ArrayList<>();
+          mark = _writeMark;
+        }
+
+        try
+        {
+          _buffer.force();
+        }
+        catch (Exception ex)
+        {
+          LOGGER.error("Error syncing spool of queue " + _queue.getId(), ex);
+          for (CompletableFuture<Boolean> future : batch)
+          {
+            future.completeExceptionally(ex);
+          }
+          continue;
+        }
+
+        synchronized (this)
+        {
+          _syncedMark = mark;
+          notifyAll();
+        }
+        for (CompletableFuture<Boolean> future : batch)
+        {
+          future.complete(true);
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      LOGGER.warn("Syncer interrupted for queue " + _queue.getId());
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        _syncerDone = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void drainLoop()
+  {
+    long retryMillis = MIN_RETRY_MILLIS;
+    try
+    {
+      while (true)
+      {
+        long end;
+        synchronized (this)
+        {
+          while (_drainedMark == _syncedMark && !_syncerDone)
+          {
+            wait(IDLE_WAIT_MILLIS);
+          }
+          if (_drainedMark == _syncedMark)
+          {
+            // shut down, and fully drained
+            break;
+          }
+          end = _syncedMark;
+        }
+
+        // only this thread moves the drained mark
+        List<byte[]> items = new ArrayList<>();
+        List<Long> marks = new ArrayList<>();
+        long mark = _drainedMark;
+        long bytes = 0;
+        while (mark != end && items.size() < _maxBatchSize && bytes < MAX_BATCH_BYTES)
+        {
+          mark = seek(mark);
+          byte[] item = readRecord(mark);
+          if (item == null)
+          {
+            throw new IllegalStateException("Corrupt spool of queue " + _queue.getId() +
+                " at " + pos(mark));
+          }
+          mark = advance(mark, item.length);
+          items.add(item);
+          marks.add(mark);
+          bytes += item.length;
+        }
+
+        int accepted = 0;
+        try
+        {
+          accepted = _queue.offer(items);
+        }
+        catch (Exception ex)
+        {
+          LOGGER.error("Error draining " + items.size() + " spooled items to queue " +
+              _queue.getId(), ex);
+        }
+
+        if (accepted > 0)
+        {
+          long drainedMark = marks.get(accepted - 1);
+          _buffer.putLong(IDX_DRAINED_MARK, drainedMark);
+          _buffer.force();
+          synchronized (this)
+          {
+            _drainedMark = drainedMark;
+          }
+          retryMillis = MIN_RETRY_MILLIS;
+        }
+
+        if (accepted < items.size())
+        {
+          synchronized (this)
+          {
+            if (_shutdown)
+            {
+              LOGGER.warn("Leaving undrained items in spool of queue " + _queue.getId());
+              break;
+            }
+          }
+
+          // failed, or the queue is full
+          Thread.sleep(retryMillis);
+          retryMillis = Math.min(2 * retryMillis, MAX_RETRY_MILLIS);
+        }
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      LOGGER.warn("Drainer interrupted for queue " + _queue.getId());
+    }
+    catch (RuntimeException ex)
+    {
+      LOGGER.error("Drainer failed for queue " + _queue.getId(), ex);
+      fail(ex);
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  /**
+   * Fails the offers not synced yet, and any later ones, and lets the
+   * syncer exit.
+   */
+  private void fail(RuntimeException ex)
+  {
+    List<CompletableFuture<Boolean>> pending;
+    synchronized (this)
+    {
+      _failure = ex;
+      pending = _unsynced;
+      _unsynced = new ArrayList<>();
+      notifyAll();
+    }
+
+    IllegalStateException failure =
+        new IllegalStateException("Producer failed: " + _queue.getId(), ex);
+    for (CompletableFuture<Boolean> future : pending)
+    {
+      future.completeExceptionally(failure);
+    }
+  }
+
+  private void close()
+  {
+    try
+    {
+      _channel.close();
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warn("Error closing spool of queue " + _queue.getId(), ex);
+    }
+  }
+
+  private static long mark(int epoch, int pos)
+  {
+    return ((long) epoch << 32) | (pos & 0xffffffffl);
+  }
+
+  private static int epoch(long mark)
+  {
+    return (int) (mark >>> 32);
+  }
+
+  private static int pos(long mark)
+  {
+    return (int) mark;
+  }
+
+  private static long advance(long mark, int itemLength)
+  {
+    return mark(epoch(mark), pos(mark) + RECORD_HEADER_SIZE + itemLength);
+  }
+}
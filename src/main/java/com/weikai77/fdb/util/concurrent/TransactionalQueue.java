@@ -0,0 +1,68 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import com.foundationdb.Database;
+import com.foundationdb.Transaction;
+
+/**
+ * A {@link Queue} whose operations taking a {@link Transaction} run within
+ * the caller's transaction, so that they commit, or retry, together with
+ * whatever else the caller does in it, e.g. a poll, a database write and a
+ * latch countdown in a single commit.
+ * 
+ * @author kwei
+ *
+ */
+public interface TransactionalQueue extends Queue
+{
+  /**
+   * @return the database the given transactions must come from
+   */
+  Database getDatabase();
+
+  /**
+   * Atomically moves the head item of this queue to the tail of the target
+   * queue in a single transaction. Both queues must use the same {@link
+   * Database} instance, e.g., by coming from the same manager.
+   * 
+   * @return the item moved, or null if this queue is empty or the target
+   *         is full, in which case neither queue is modified
+   * @throws IllegalArgumentException if the queues use different databases
+   */
+  byte[] transfer(TransactionalQueue target);
+
+  /**
+   * Same as {@link #transfer(TransactionalQueue)}, except that the item is
+   * passed through the given transformer before being offered to the
+   * target. The transformer runs inside the transaction, so it may be
+   * invoked more than once on retries, and must not return null.
+   */
+  byte[] transfer(TransactionalQueue target, UnaryOperator<byte[]> transformer);
+
+  long size(Transaction tr);
+  boolean isFull(Transaction tr);
+  boolean offer(Transaction tr, byte[] item);
+  boolean offer(Transaction tr, ByteBuffer item);
+  int offer(Transaction tr, List<byte[]> items);
+
+  /**
+   * Same as {@link #poll()}, but bounds the expired items dropped in the
+   * transaction, so it may return null while {@link #size(Transaction)} is
+   * still positive; polling again, in a new transaction, makes progress.
+   */
+  byte[] poll(Transaction tr);
+
+  /**
+   * Same as {@link #poll(Transaction)}, without copying the item out.
+   */
+  ByteBuffer pollBuffer(Transaction tr);
+
+  /**
+   * Same as {@link #poll(int)}, but bounds the expired items dropped in the
+   * transaction, so it may return fewer items than available, or none.
+   */
+  List<byte[]> poll(Transaction tr, int maxItems);
+}
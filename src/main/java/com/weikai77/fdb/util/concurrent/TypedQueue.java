@@ -0,0 +1,101 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.weikai77.util.BufferPool;
+
+/**
+ * A typed view of a {@link Queue}, whose items are serialized by a {@link
+ * Codec}.
+ * <p>
+ * Values are encoded into buffers from a {@link BufferPool}, which are
+ * copied once into the stored item, see {@link Queue#offer(ByteBuffer)},
+ * and decoded from a view of the item read, see {@link Queue#pollBuffer()}.
+ * A payload is thus copied once per offer, and not at all per poll,
+ * besides what the codec itself does.
+ *
+ * @author kwei
+ *
+ */
+public class TypedQueue<T>
+{
+  private final Queue _queue;
+  private final Codec<T> _codec;
+  private final BufferPool _pool;
+
+  public TypedQueue(Queue queue, Codec<T> codec, BufferPool pool)
+  {
+    _queue = queue;
+    _codec = codec;
+    _pool = pool;
+  }
+
+  public Queue getQueue()
+  {
+    return _queue;
+  }
+
+  public String getId()
+  {
+    return _queue.getId();
+  }
+
+  public long size()
+  {
+    return _queue.size();
+  }
+
+  public boolean isEmpty()
+  {
+    return _queue.isEmpty();
+  }
+
+  public boolean offer(T value)
+  {
+    ByteBuffer buffer = encode(value);
+    try
+    {
+      return _queue.offer(buffer);
+    }
+    finally
+    {
+      _pool.release(buffer);
+    }
+  }
+
+  /**
+   * @return the head value, or null if the queue is empty
+   */
+  public T poll()
+  {
+    ByteBuffer buffer = _queue.pollBuffer();
+    return buffer == null ? null : _codec.decode(buffer);
+  }
+
+  /**
+   * Encodes into a pooled buffer, doubling its capacity until the value
+   * fits.
+   *
+   * @return the flipped buffer, to be released to the pool
+   */
+  private ByteBuffer encode(T value)
+  {
+    ByteBuffer buffer = _pool.acquire();
+    while (true)
+    {
+      try
+      {
+        _codec.encode(value, buffer);
+        buffer.flip();
+        return buffer;
+      }
+      catch (BufferOverflowException ex)
+      {
+        int capacity = buffer.capacity();
+        _pool.release(buffer);
+        buffer = _pool.acquire(2 * capacity);
+      }
+    }
+  }
+}
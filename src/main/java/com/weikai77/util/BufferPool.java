@@ -0,0 +1,97 @@
+package com.weikai77.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of heap buffers, so that large payloads can be serialized
+ * without allocating, and growing, a new buffer each time.
+ * <p>
+ * Buffers larger than the pooled size are allocated on demand, and kept in
+ * the pool once released, so the pool adapts to the largest payloads
+ * seen. Acquiring and releasing are lock-free.
+ *
+ * @author kwei
+ *
+ */
+public class BufferPool
+{
+  private final int _bufferSize;
+  private final int _maxPooled;
+  private final Queue<ByteBuffer> _buffers;
+  private final AtomicInteger _pooled;
+
+  /**
+   * @param bufferSize initial size of the buffers
+   * @param maxPooled max number of idle buffers kept
+   */
+  public BufferPool(int bufferSize, int maxPooled)
+  {
+    if (bufferSize <= 0)
+    {
+      throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    }
+    if (maxPooled < 0)
+    {
+      throw new IllegalArgumentException("Invalid max pooled: " + maxPooled);
+    }
+
+    _bufferSize = bufferSize;
+    _maxPooled = maxPooled;
+    _buffers = new ConcurrentLinkedQueue<>();
+    _pooled = new AtomicInteger();
+  }
+
+  /**
+   * @return a cleared buffer of at least the initial size
+   */
+  public ByteBuffer acquire()
+  {
+    return acquire(_bufferSize);
+  }
+
+  /**
+   * @return a cleared buffer of at least the given capacity
+   */
+  public ByteBuffer acquire(int minCapacity)
+  {
+    ByteBuffer buffer = _buffers.poll();
+    if (buffer != null)
+    {
+      _pooled.decrementAndGet();
+      if (buffer.capacity() >= minCapacity)
+      {
+        buffer.clear();
+        return buffer;
+      }
+    }
+
+    // too small buffers are dropped, in favor of the larger one
+    return ByteBuffer.allocate(Math.max(minCapacity, _bufferSize));
+  }
+
+  /**
+   * Returns a buffer to the pool. The buffer must not be used afterwards.
+   */
+  public void release(ByteBuffer buffer)
+  {
+    if (_pooled.incrementAndGet() <= _maxPooled)
+    {
+      _buffers.offer(buffer);
+    }
+    else
+    {
+      _pooled.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of idle buffers in the pool
+   */
+  public int size()
+  {
+    return _pooled.get();
+  }
+}
@@ -0,0 +1,375 @@
+package com.weikai77.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel for large numbers of short-lived timeouts, e.g.,
+ * watch timeouts that are almost always cancelled before they expire.
+ * <p>
+ * Scheduling and cancelling are O(1): both just enqueue the timeout on a
+ * lock-free queue, and the single worker thread moves it in or out of its
+ * bucket on the next tick. Cancelled timeouts are thus unlinked within a
+ * tick rather than lingering until their deadline. Timeouts expire up to
+ * one tick late.
+ * <p>
+ * Tasks run on the worker thread and must be short and non-blocking.
+ *
+ * @author kwei
+ *
+ */
+public class HashedWheelTimer
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private static final long DEFAULT_TICK_MILLIS = 10;
+  private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+  private static final int STATE_INIT = 0;
+  private static final int STATE_STARTED = 1;
+  private static final int STATE_STOPPED = 2;
+
+  private static class InstanceHolder
+  {
+    private static final HashedWheelTimer INSTANCE = new HashedWheelTimer(DEFAULT_TICK_MILLIS,
+        TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+  }
+
+  /**
+   * @return the process-wide timer shared by all watches and primitives
+   */
+  public static HashedWheelTimer getInstance()
+  {
+    return InstanceHolder.INSTANCE;
+  }
+
+  private final long _tickNanos;
+  private final Bucket[] _wheel;
+  private final int _mask;
+  private final Queue<WheelTimeout> _pending = new ConcurrentLinkedQueue<>();
+  private final Queue<WheelTimeout> _cancelled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _state = new AtomicInteger(STATE_INIT);
+  private final Thread _worker;
+  private volatile long _startTime;
+
+  /**
+   * @param tickDuration the granularity of the timer
+   * @param ticksPerWheel number of buckets, rounded up to a power of 2
+   */
+  public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel)
+  {
+    if (tickDuration <= 0)
+    {
+      throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+    {
+      throw new IllegalArgumentException("Invalid ticks per wheel: " + ticksPerWheel);
+    }
+
+    int size = 1;
+    while (size < ticksPerWheel)
+    {
+      size <<= 1;
+    }
+
+    _tickNanos = unit.toNanos(tickDuration);
+    _wheel = new Bucket[size];
+    for (int i=0; i<size; i++)
+    {
+      _wheel[i] = new Bucket();
+    }
+    _mask = size - 1;
+
+    _worker = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        workerLoop();
+      }
+    }, "hashed-wheel-timer");
+    _worker.setDaemon(true);
+  }
+
+  /**
+   * Schedules a task to run once after the given delay. The worker thread
+   * is started on first use.
+   */
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit)
+  {
+    start();
+
+    long deadline = System.nanoTime() - _startTime + Math.max(unit.toNanos(delay), 0);
+    WheelTimeout timeout = new WheelTimeout(task, deadline);
+    _pending.add(timeout);
+    return timeout;
+  }
+
+  private void start()
+  {
+    int state = _state.get();
+    if (state == STATE_STARTED)
+    {
+      return;
+    }
+    else if (state == STATE_STOPPED)
+    {
+      throw new IllegalStateException("Timer has been stopped");
+    }
+
+    synchronized (this)
+    {
+      if (_state.get() == STATE_INIT)
+      {
+        _startTime = System.nanoTime();
+        _state.set(STATE_STARTED);
+        _worker.start();
+      }
+    }
+  }
+
+  /**
+   * Stops the worker thread. Timeouts that have not expired are dropped.
+   */
+  public void stop()
+  {
+    if (_state.getAndSet(STATE_STOPPED) == STATE_STARTED)
+    {
+      _worker.interrupt();
+    }
+  }
+
+  private void workerLoop()
+  {
+    long tick = 0;
+    while (_state.get() == STATE_STARTED)
+    {
+      if (!waitForNextTick(tick))
+      {
+        // stopped
+        break;
+      }
+
+      removeCancelled();
+      transferPending(tick);
+      _wheel[(int) (tick & _mask)].expire();
+      ++tick;
+    }
+  }
+
+  /**
+   * Sleeps until the end of the given tick.
+   *
+   * @return false if the timer has been stopped, true otherwise
+   */
+  private boolean waitForNextTick(long tick)
+  {
+    long deadline = _tickNanos * (tick + 1);
+    while (true)
+    {
+      long sleepNanos = deadline - (System.nanoTime() - _startTime);
+      if (sleepNanos <= 0)
+      {
+        return true;
+      }
+
+      try
+      {
+        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+      }
+      catch (InterruptedException ex)
+      {
+        if (_state.get() == STATE_STOPPED)
+        {
+          return false;
+        }
+      }
+    }
+  }
+
+  private void removeCancelled()
+  {
+    WheelTimeout timeout;
+    while ((timeout = _cancelled.poll()) != null)
+    {
+      if (timeout._bucket != null)
+      {
+        timeout._bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void transferPending(long tick)
+  {
+    WheelTimeout timeout;
+    while ((timeout = _pending.poll()) != null)
+    {
+      if (timeout.isCancelled())
+      {
+        continue;
+      }
+
+      long ticks = timeout._deadline / _tickNanos;
+      timeout._remainingRounds = (ticks - tick) / _wheel.length;
+
+      // never schedule into the past
+      long bucketTick = Math.max(ticks, tick);
+      _wheel[(int) (bucketTick & _mask)].add(timeout);
+    }
+  }
+
+  public interface Timeout
+  {
+    /**
+     * @return true if cancelled by this call, false if already expired
+     *         or cancelled
+     */
+    boolean cancel();
+    boolean isCancelled();
+    boolean isExpired();
+  }
+
+  private class WheelTimeout implements Timeout
+  {
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable _task;
+    private final long _deadline;
+    private final AtomicInteger _timeoutState = new AtomicInteger(INIT);
+
+    // only accessed by the worker thread
+    private long _remainingRounds;
+    private Bucket _bucket;
+    private WheelTimeout _prev;
+    private WheelTimeout _next;
+
+    public WheelTimeout(Runnable task, long deadline)
+    {
+      _task = task;
+      _deadline = deadline;
+    }
+
+    @Override
+    public boolean cancel()
+    {
+      if (!_timeoutState.compareAndSet(INIT, CANCELLED))
+      {
+        return false;
+      }
+
+      // let the worker unlink it on the next tick
+      _cancelled.add(this);
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return _timeoutState.get() == CANCELLED;
+    }
+
+    @Override
+    public boolean isExpired()
+    {
+      return _timeoutState.get() == EXPIRED;
+    }
+
+    private void expire()
+    {
+      if (!_timeoutState.compareAndSet(INIT, EXPIRED))
+      {
+        return;
+      }
+
+      try
+      {
+        _task.run();
+      }
+      catch (Throwable ex)
+      {
+        LOGGER.warn("Error running timer task", ex);
+      }
+    }
+  }
+
+  /**
+   * A doubly-linked list of timeouts, only accessed by the worker thread.
+   */
+  private class Bucket
+  {
+    private WheelTimeout _head;
+    private WheelTimeout _tail;
+
+    public void add(WheelTimeout timeout)
+    {
+      timeout._bucket = this;
+      if (_head == null)
+      {
+        _head = _tail = timeout;
+      }
+      else
+      {
+        _tail._next = timeout;
+        timeout._prev = _tail;
+        _tail = timeout;
+      }
+    }
+
+    public void remove(WheelTimeout timeout)
+    {
+      WheelTimeout next = timeout._next;
+      if (timeout._prev != null)
+      {
+        timeout._prev._next = next;
+      }
+      if (next != null)
+      {
+        next._prev = timeout._prev;
+      }
+
+      if (timeout == _head)
+      {
+        _head = next;
+      }
+      if (timeout == _tail)
+      {
+        _tail = timeout._prev;
+      }
+
+      timeout._prev = null;
+      timeout._next = null;
+      timeout._bucket = null;
+    }
+
+    public void expire()
+    {
+      WheelTimeout timeout = _head;
+      while (timeout != null)
+      {
+        WheelTimeout next = timeout._next;
+        if (timeout._remainingRounds <= 0)
+        {
+          remove(timeout);
+          timeout.expire();
+        }
+        else if (timeout.isCancelled())
+        {
+          remove(timeout);
+        }
+        else
+        {
+          --timeout._remainingRounds;
+        }
+        timeout = next;
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.weikai77.fdb.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.foundationdb.async.Future;
+
+/**
+ * Uninterruptible wait on a watch, Java 21 variant.
+ * <p>
+ * Blocking in FDB's native future pins the carrier of a virtual thread, so
+ * virtual threads park on the bridged {@link CompletableFuture} instead,
+ * which releases the carrier. Platform threads keep the native wait.
+ *
+ * @author kwei
+ *
+ */
+class WatchAwaiter
+{
+  private WatchAwaiter() {}
+
+  /**
+   * @param future the FDB watch
+   * @param fired the same watch bridged into a {@link CompletableFuture}
+   */
+  static void await(Future<Void> future, CompletableFuture<Void> fired)
+  {
+    if (!Thread.currentThread().isVirtual())
+    {
+      future.blockUntilReady();
+      return;
+    }
+
+    try
+    {
+      // join() ignores interrupts, like blockUntilReady()
+      fired.join();
+    }
+    catch (CancellationException | CompletionException ex)
+    {
+      // fired with an error, or cancelled
+    }
+  }
+}
@@ -2,8 +2,9 @@ package com.weikai77.fdb.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -15,6 +16,7 @@ import com.foundationdb.Transaction;
 import com.foundationdb.async.Function;
 import com.foundationdb.tuple.ByteArrayUtil;
 import com.foundationdb.tuple.Tuple;
+import com.weikai77.util.HashedWheelTimer;
 
 /**
  * 
@@ -142,7 +144,7 @@ public class FdbUtilsTestIT
     FDB fdb = FDB.selectAPIVersion(200);
     Database db = fdb.open();
 
-    final Watch watch = FdbUtils.getAndWatch(db, Executors.newSingleThreadScheduledExecutor(),
+    final Watch watch = FdbUtils.getAndWatch(db, HashedWheelTimer.getInstance(),
         "myFirstWatch".getBytes());
 
     db.run(new Function<Transaction,Void>()
@@ -164,7 +166,7 @@ public class FdbUtilsTestIT
     FDB fdb = FDB.selectAPIVersion(200);
     Database db = fdb.open();
 
-    final Watch watch = FdbUtils.setAndWatch(db, Executors.newSingleThreadScheduledExecutor(),
+    final Watch watch = FdbUtils.setAndWatch(db, HashedWheelTimer.getInstance(),
         "myFirstWatch".getBytes(), "".getBytes());
 
     db.run(new Function<Transaction,Void>()
@@ -180,13 +182,67 @@ public class FdbUtilsTestIT
     watch.await();
   }
   
+  @Test
+  public void testOnFire() throws Exception
+  {
+    FDB fdb = FDB.selectAPIVersion(200);
+    Database db = fdb.open();
+
+    final Watch watch = FdbUtils.getAndWatch(db, HashedWheelTimer.getInstance(),
+        "myFirstWatch".getBytes());
+    CompletableFuture<Void> fired = watch.onFire();
+    Assert.assertFalse(fired.isDone());
+
+    FdbUtils.signalWatch(db, "myFirstWatch".getBytes());
+    fired.get(10, TimeUnit.SECONDS);
+
+    // times out, and cancels the watch
+    final Watch watch2 = FdbUtils.getAndWatch(db, HashedWheelTimer.getInstance(),
+        "myFirstWatch".getBytes());
+    Assert.assertFalse(watch2.onFire(100, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS));
+    Assert.assertTrue(watch2.onFire().isCancelled());
+
+    // cancelled by someone else, not timed out
+    final Watch watch3 = FdbUtils.getAndWatch(db, HashedWheelTimer.getInstance(),
+        "myFirstWatch".getBytes());
+    CompletableFuture<Boolean> fired3 = watch3.onFire(10, TimeUnit.SECONDS);
+    watch3.cancel();
+    try
+    {
+      fired3.get(10, TimeUnit.SECONDS);
+      Assert.fail("Should have failed but did not");
+    }
+    catch (CancellationException ex) {}
+  }
+
+  @Test
+  public void testAwaitInterruptibly() throws Exception
+  {
+    FDB fdb = FDB.selectAPIVersion(200);
+    Database db = fdb.open();
+
+    final Watch watch = FdbUtils.getAndWatch(db, HashedWheelTimer.getInstance(),
+        "myFirstWatch".getBytes());
+    Thread.currentThread().interrupt();
+    try
+    {
+      watch.awaitInterruptibly();
+      Assert.fail("Should have failed but did not");
+    }
+    catch (InterruptedException ex) {}
+    finally
+    {
+      watch.cancel();
+    }
+  }
+
   @Test
   public void testWatchLimit() throws Exception
   {
     FDB fdb = FDB.selectAPIVersion(200);
     Database db = fdb.open();
     db.options().setMaxWatches(100);
-    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    HashedWheelTimer timer = HashedWheelTimer.getInstance();
 
     List<Watch> watches = new ArrayList<Watch>();
     for (int i=0; i<200; i++)
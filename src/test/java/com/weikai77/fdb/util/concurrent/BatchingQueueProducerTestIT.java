@@ -0,0 +1,125 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class BatchingQueueProducerTestIT
+{
+  @Test
+  public void testMultiThreaded() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue");
+    BatchingQueueProducer producer = new BatchingQueueProducer(queue, 50, 10);
+    producer.start();
+    try
+    {
+      int threads = 10;
+      int itemsPerThread = 100;
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t=0; t<threads; t++)
+      {
+        final int thread = t;
+        futures.add(executor.submit(new Runnable()
+        {
+          public void run()
+          {
+            List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+            for (int i=0; i<itemsPerThread; i++)
+            {
+              acks.add(producer.offer(FdbUtils.encode(thread + ":" + i)));
+            }
+            for (CompletableFuture<Boolean> ack : acks)
+            {
+              Assert.assertTrue(ack.join());
+            }
+          }
+        }));
+      }
+
+      for (Future<?> f : futures)
+      {
+        f.get();
+      }
+      Assert.assertEquals(threads * itemsPerThread, queue.size());
+
+      // items from each thread must come out in the order they went in
+      int[] next = new int[threads];
+      byte[] item = null;
+      while ((item = queue.poll()) != null)
+      {
+        String[] parts = FdbUtils.decodeString(item).split(":");
+        int thread = Integer.parseInt(parts[0]);
+        Assert.assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+      }
+      for (int t=0; t<threads; t++)
+      {
+        Assert.assertEquals(itemsPerThread, next[t]);
+      }
+    }
+    finally
+    {
+      producer.shutdown();
+      producer.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testBoundedQueue() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", 5);
+    BatchingQueueProducer producer = new BatchingQueueProducer(queue, 10, 50);
+    producer.start();
+    try
+    {
+      List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+      for (int i=0; i<8; i++)
+      {
+        acks.add(producer.offer(FdbUtils.encode("item" + i)));
+      }
+
+      int accepted = 0;
+      for (CompletableFuture<Boolean> ack : acks)
+      {
+        if (ack.get())
+        {
+          ++accepted;
+        }
+      }
+      Assert.assertEquals(5, accepted);
+      Assert.assertEquals(5l, queue.size());
+      Assert.assertArrayEquals(FdbUtils.encode("item0"), queue.poll());
+    }
+    finally
+    {
+      producer.shutdown();
+      producer.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myTestQueue");
+    }
+
+    try
+    {
+      producer.offer(FdbUtils.encode("late"));
+      Assert.fail("Should have failed but did not");
+    }
+    catch (IllegalStateException ex) {}
+  }
+}
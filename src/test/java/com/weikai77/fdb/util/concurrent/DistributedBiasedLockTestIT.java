@@ -0,0 +1,136 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class DistributedBiasedLockTestIT
+{
+  @Test
+  public void testRevocation() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedBiasedLock lock1 = lockMgr.newBiasedLock("myTestLock", 0);
+    DistributedBiasedLock lock2 = lockMgr.newBiasedLock("myTestLock", 0);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try
+    {
+      // stays biased after release
+      lock1.acquire();
+      Assert.assertTrue(lock1.hasLock());
+      lock1.release();
+      Assert.assertFalse(lock1.hasLock());
+      Assert.assertTrue(lock1.isBiased());
+      lock1.acquire();
+      lock1.release();
+
+      // not revoked without waiting
+      Assert.assertFalse(lock2.tryAcquire());
+      lock1.acquire();
+      Assert.assertTrue(lock1.isBiased());
+      lock1.release();
+
+      // revoked right away when not in use
+      Assert.assertTrue(lock2.tryAcquire(5, TimeUnit.SECONDS));
+      Assert.assertTrue(lock2.isBiased());
+      Assert.assertFalse(lock1.isBiased());
+
+      // revoked on release when in use
+      lock2.release();
+      lock1.acquire();
+      Assert.assertFalse(lock2.isBiased());
+      Future<Boolean> contender = executor.submit(() -> lock2.tryAcquire(5, TimeUnit.SECONDS));
+      Thread.sleep(200);
+      Assert.assertFalse(contender.isDone());
+      lock1.release();
+      Assert.assertTrue(contender.get());
+      Assert.assertFalse(lock1.isBiased());
+
+      lock2.release();
+      Assert.assertTrue(lock2.releaseBias());
+      Assert.assertFalse(lock2.isBiased());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      lockMgr.deleteBiasedLock("myTestLock");
+    }
+  }
+
+  @Test
+  public void testBusyOwner() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedBiasedLock lock1 = lockMgr.newBiasedLock("myTestLock", 0);
+    DistributedBiasedLock lock2 = lockMgr.newBiasedLock("myTestLock", 0);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    AtomicBoolean stopped = new AtomicBoolean();
+
+    try
+    {
+      // the owner re-acquires right after every release
+      lock1.acquire();
+      lock1.release();
+      Future<?> owner = executor.submit(() ->
+      {
+        while (!stopped.get())
+        {
+          lock1.acquire();
+          lock1.release();
+        }
+        return null;
+      });
+      Thread.sleep(200);
+
+      // handed over on the next release, while the owner is still busy
+      Assert.assertTrue(lock2.tryAcquire(5, TimeUnit.SECONDS));
+      Assert.assertFalse(owner.isDone());
+      stopped.set(true);
+
+      lock2.release();
+      owner.get(10, TimeUnit.SECONDS);
+      Assert.assertTrue(lock1.tryAcquire(5, TimeUnit.SECONDS));
+      lock1.release();
+      Assert.assertTrue(lock1.releaseBias());
+    }
+    finally
+    {
+      stopped.set(true);
+      executor.shutdownNow();
+      lockMgr.deleteBiasedLock("myTestLock");
+    }
+  }
+
+  @Test
+  public void testExpiry() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedBiasedLock lock1 = lockMgr.newBiasedLock("myTestLock", 300);
+    DistributedBiasedLock lock2 = lockMgr.newBiasedLock("myTestLock", 300);
+
+    try
+    {
+      // taken over once expired, even though lock1 never releases
+      lock1.acquire();
+      long start = System.currentTimeMillis();
+      lock2.acquire();
+      Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+      Assert.assertTrue(lock2.hasLock());
+    }
+    finally
+    {
+      lockMgr.deleteBiasedLock("myTestLock");
+    }
+  }
+}
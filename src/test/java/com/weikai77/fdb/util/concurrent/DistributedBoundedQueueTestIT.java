@@ -6,10 +6,16 @@ import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.foundationdb.subspace.Subspace;
+import com.foundationdb.tuple.Tuple;
+
 /**
  * 
  * @author kwei
@@ -194,4 +200,193 @@ public class DistributedBoundedQueueTestIT
       queueMgr.deleteQueue("myTestQueue");
     }
   }
+
+  @Test
+  public void testRingBuffer() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    queueMgr.createRingBuffer("myTestQueue", 3);
+    try
+    {
+      // the mode survives a reload
+      DistributedQueue queue = queueMgr.getQueue("myTestQueue");
+      Assert.assertTrue(((DistributedBoundedQueue) queue).isRingBuffer());
+
+      for (int i=0; i<5; i++)
+      {
+        Assert.assertTrue(queue.offer(("item" + i).getBytes()));
+        Assert.assertFalse(queue.isFull());
+      }
+      Assert.assertEquals(3l, queue.size());
+
+      // the two oldest items have been overwritten
+      Assert.assertArrayEquals("item2".getBytes(), queue.poll());
+
+      List<byte[]> items = new ArrayList<>();
+      for (int i=5; i<9; i++)
+      {
+        items.add(("item" + i).getBytes());
+      }
+      Assert.assertEquals(4, queue.offer(items));
+      Assert.assertEquals(3l, queue.size());
+
+      List<byte[]> polled = queue.poll(10);
+      Assert.assertEquals(3, polled.size());
+      for (int i=0; i<3; i++)
+      {
+        Assert.assertArrayEquals(("item" + (i+6)).getBytes(), polled.get(i));
+      }
+      Assert.assertNull(queue.poll());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testMigrateWrapped() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", 3000);
+    try
+    {
+      // a version 1 queue, with offsets modulo the capacity, whose items
+      // wrap around over several migration batches
+      long capacity = 3000;
+      long head = 2800;
+      int size = 2900;
+      Subspace space = queue.getSpace();
+      for (int i=0; i<size; i+=500)
+      {
+        int from = i;
+        queue.getDatabase().run(new Function<Transaction,Void>()
+        {
+          @Override
+          public Void apply(Transaction tr)
+          {
+            for (int j=from; j<Math.min(from+500, size); j++)
+            {
+              long offset = (head + j) % capacity;
+              tr.set(queue._itemsSpace.pack(offset),
+                  Tuple.from(1, offset, ("item" + j).getBytes()).pack());
+            }
+            tr.set(space.subspace(Tuple.from("meta")).pack(),
+                Tuple.from(1, capacity, head, size).pack());
+            return null;
+          }
+        });
+      }
+
+      // not usable until migrated
+      try
+      {
+        queue.poll();
+        Assert.fail("Should have failed but did not");
+      }
+      catch (IllegalStateException ex) {}
+      Assert.assertEquals((long) size, queue.size());
+
+      // migrated on load, in FIFO order
+      DistributedQueue migrated = queueMgr.getQueue("myTestQueue");
+      Assert.assertEquals((long) size, migrated.size());
+      Assert.assertTrue(migrated.offer("last".getBytes()));
+      List<byte[]> polled = new ArrayList<>();
+      List<byte[]> items;
+      while (!(items = migrated.poll(1000)).isEmpty())
+      {
+        polled.addAll(items);
+      }
+      Assert.assertEquals(size + 1, polled.size());
+      for (int i=0; i<size; i++)
+      {
+        Assert.assertArrayEquals(("item" + i).getBytes(), polled.get(i));
+      }
+      Assert.assertArrayEquals("last".getBytes(), polled.get(size));
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testResizeWakesProducers() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue = queueMgr.createBlockingQueue("myTestQueue", 1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try
+    {
+      queue.put("item0".getBytes());
+      Future<?> producer = executor.submit(() ->
+      {
+        queue.put("item1".getBytes());
+        return null;
+      });
+      Thread.sleep(200);
+      Assert.assertFalse(producer.isDone());
+
+      // no consumer, the room comes from the resize alone
+      queueMgr.resize("myTestQueue", 2);
+      producer.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(2l, queue.size());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testResize() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", 2);
+    try
+    {
+      Assert.assertTrue(queue.offer("item0".getBytes()));
+      Assert.assertTrue(queue.offer("item1".getBytes()));
+      Assert.assertFalse(queue.offer("item2".getBytes()));
+
+      // grows in place, seen by the existing instance
+      queueMgr.resize("myTestQueue", 4);
+      Assert.assertEquals(4l, queue.capacity());
+      Assert.assertTrue(queue.offer("item2".getBytes()));
+      Assert.assertTrue(queue.offer("item3".getBytes()));
+      Assert.assertFalse(queue.offer("item4".getBytes()));
+      Assert.assertEquals(4l, queueMgr.getQueue("myTestQueue").capacity());
+
+      // shrinking keeps the items, but rejects offers until drained
+      queueMgr.resize("myTestQueue", 1);
+      Assert.assertEquals(4l, queue.size());
+      Assert.assertFalse(queue.offer("item4".getBytes()));
+      for (int i=0; i<4; i++)
+      {
+        Assert.assertArrayEquals(("item" + i).getBytes(), queue.poll());
+      }
+      Assert.assertTrue(queue.offer("item4".getBytes()));
+      Assert.assertFalse(queue.offer("item5".getBytes()));
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+
+    queueMgr.createQueue("myTestQueue");
+    try
+    {
+      queueMgr.resize("myTestQueue", 10);
+      Assert.fail("Unbounded queue resized");
+    }
+    catch (IllegalArgumentException ex)
+    {
+      // expected
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
 }
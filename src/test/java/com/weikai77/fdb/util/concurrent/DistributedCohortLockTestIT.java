@@ -0,0 +1,121 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class DistributedCohortLockTestIT
+{
+  @Test
+  public void testSingleThreaded() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedCohortLock lock = lockMgr.getCohortLock("myTestLock");
+    DistributedSimpleLock other = lockMgr.newSimpleLock("myTestLock");
+
+    try
+    {
+      Assert.assertSame(lock, lockMgr.getCohortLock("myTestLock"));
+      try
+      {
+        lockMgr.getCohortLock("myTestLock", DistributedLockMgr.DEFAULT_MAX_HANDOFFS + 1);
+        Assert.fail("Should have failed but did not");
+      }
+      catch (IllegalArgumentException ex) {}
+
+      // reentrant locally, acquired once on FDB
+      lock.acquire();
+      Assert.assertTrue(lock.tryAcquire());
+      Assert.assertTrue(lock.isHeldByCurrentThread());
+      Assert.assertFalse(other.tryAcquire());
+      lock.release();
+      Assert.assertFalse(other.tryAcquire());
+      lock.release();
+      Assert.assertFalse(lock.isHeldByCurrentThread());
+
+      // released on FDB, no one waiting locally
+      Assert.assertTrue(other.tryAcquire());
+      Assert.assertFalse(lock.tryAcquire(100, TimeUnit.MILLISECONDS));
+      other.release();
+      Assert.assertTrue(lock.tryAcquire(100, TimeUnit.MILLISECONDS));
+      lock.release();
+
+      try
+      {
+        lock.release();
+        Assert.fail();
+      }
+      catch (IllegalMonitorStateException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      lockMgr.deleteSimpleLock("myTestLock");
+    }
+  }
+
+  @Test
+  public void testMultiProcess() throws Exception
+  {
+    // one lock manager per emulated process
+    DistributedLockMgr lockMgr1 = TestUtils.getLockMgr();
+    DistributedLockMgr lockMgr2 = TestUtils.getLockMgr();
+    DistributedCohortLock lock1 = lockMgr1.getReentrantCohortLock("myTestLock", 4);
+    DistributedCohortLock lock2 = lockMgr2.getReentrantCohortLock("myTestLock", 4);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    AtomicInteger holders = new AtomicInteger();
+    AtomicInteger count = new AtomicInteger();
+
+    try
+    {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i=0; i<8; i++)
+      {
+        DistributedCohortLock lock = i % 2 == 0 ? lock1 : lock2;
+        futures.add(executor.submit(() ->
+        {
+          for (int j=0; j<20; j++)
+          {
+            lock.acquire();
+            try
+            {
+              Assert.assertEquals(1, holders.incrementAndGet());
+              count.incrementAndGet();
+              holders.decrementAndGet();
+            }
+            finally
+            {
+              lock.release();
+            }
+          }
+        }));
+      }
+
+      for (Future<?> future : futures)
+      {
+        future.get(60, TimeUnit.SECONDS);
+      }
+      Assert.assertEquals(160, count.get());
+      Assert.assertTrue(lockMgr1.newReentrantLock("myTestLock").tryAcquire());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      lockMgr1.deleteReentrantLock("myTestLock");
+    }
+  }
+}
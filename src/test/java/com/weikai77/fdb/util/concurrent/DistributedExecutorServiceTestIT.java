@@ -0,0 +1,209 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class DistributedExecutorServiceTestIT
+{
+  @Test
+  public void testSubmit() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedExecutorService client = queueMgr.createExecutorService("myExecutor", 0);
+    DistributedExecutorService worker = queueMgr.getExecutorService("myExecutor", 2);
+    try
+    {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int i=0; i<10; i++)
+      {
+        futures.add(client.submit(new Square(i)));
+      }
+      for (int i=0; i<10; i++)
+      {
+        Assert.assertEquals(Integer.valueOf(i * i), futures.get(i).get(10, TimeUnit.SECONDS));
+      }
+
+      Future<Integer> failed = client.submit(new Square(-1));
+      try
+      {
+        failed.get(10, TimeUnit.SECONDS);
+        Assert.fail("Should have failed but did not");
+      }
+      catch (ExecutionException ex)
+      {
+        Assert.assertTrue(ex.getCause() instanceof IllegalArgumentException);
+      }
+
+      List<Callable<Integer>> tasks = new ArrayList<>();
+      tasks.add(new Square(-1));
+      tasks.add(new Square(3));
+      Assert.assertEquals(Integer.valueOf(9), client.invokeAny(tasks, 10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      client.shutdown();
+      worker.shutdown();
+      worker.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myExecutor");
+    }
+  }
+
+  @Test
+  public void testInvokeAllAndShutdown() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedExecutorService client = queueMgr.createExecutorService("myExecutor", 0);
+    DistributedExecutorService worker = queueMgr.getExecutorService("myExecutor", 2);
+    try
+    {
+      List<Callable<Integer>> tasks = new ArrayList<>();
+      for (int i=0; i<5; i++)
+      {
+        tasks.add(new Square(i));
+      }
+      List<Future<Integer>> futures = client.invokeAll(tasks, 10, TimeUnit.SECONDS);
+      for (int i=0; i<5; i++)
+      {
+        Assert.assertTrue(futures.get(i).isDone());
+        Assert.assertEquals(Integer.valueOf(i * i), futures.get(i).get());
+      }
+
+      // the idle workers wake up right away
+      Thread.sleep(200);
+      long start = System.currentTimeMillis();
+      worker.shutdown();
+      Assert.assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertTrue(System.currentTimeMillis() - start < 500);
+    }
+    finally
+    {
+      client.shutdown();
+      worker.shutdown();
+      queueMgr.deleteQueue("myExecutor");
+    }
+  }
+
+  @Test
+  public void testCancelAndReject() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedExecutorService client = queueMgr.createExecutorService("myExecutor", 0);
+    try
+    {
+      // nobody is working, so the task stays in the queue
+      Future<Integer> f = client.submit(new Square(2));
+      Assert.assertFalse(f.isDone());
+      Assert.assertTrue(f.cancel(false));
+      Assert.assertTrue(f.isCancelled());
+
+      try
+      {
+        client.submit(new Callable<Integer>()
+        {
+          public Integer call() { return 0; }
+        });
+        Assert.fail("Should have failed but did not");
+      }
+      catch (RejectedExecutionException ex) {}
+
+      client.shutdown();
+      try
+      {
+        client.submit(new Square(2));
+        Assert.fail("Should have failed but did not");
+      }
+      catch (RejectedExecutionException ex) {}
+    }
+    finally
+    {
+      client.shutdown();
+      queueMgr.deleteQueue("myExecutor");
+    }
+  }
+
+  @Test
+  public void testResultTooLarge() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedExecutorService client = queueMgr.createExecutorService("myExecutor", 0);
+    DistributedExecutorService worker = queueMgr.getExecutorService("myExecutor", 1);
+    try
+    {
+      // FDB values are limited to 100KB, so the result cannot be recorded
+      Future<byte[]> f = client.submit(new Blob(200 * 1024));
+      try
+      {
+        f.get(10, TimeUnit.SECONDS);
+        Assert.fail("Should have failed but did not");
+      }
+      catch (ExecutionException ex)
+      {
+        Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+
+      // the worker is still alive
+      Assert.assertEquals(Integer.valueOf(4), client.submit(new Square(2)).get(10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      client.shutdown();
+      worker.shutdown();
+      worker.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myExecutor");
+    }
+  }
+
+  private static class Blob implements Callable<byte[]>, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int _size;
+
+    public Blob(int size)
+    {
+      _size = size;
+    }
+
+    @Override
+    public byte[] call()
+    {
+      return new byte[_size];
+    }
+  }
+
+  private static class Square implements Callable<Integer>, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int _n;
+
+    public Square(int n)
+    {
+      _n = n;
+    }
+
+    @Override
+    public Integer call()
+    {
+      if (_n < 0)
+      {
+        throw new IllegalArgumentException("Negative: " + _n);
+      }
+      return _n * _n;
+    }
+  }
+}
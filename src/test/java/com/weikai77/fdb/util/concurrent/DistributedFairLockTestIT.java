@@ -0,0 +1,111 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class DistributedFairLockTestIT
+{
+  @Test
+  public void testSingleThreaded() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedFairLock lock1 = lockMgr.newFairLock("myTestLock");
+    DistributedFairLock lock2 = lockMgr.newFairLock("myTestLock");
+
+    try
+    {
+      Assert.assertTrue(lock1.tryAcquire());
+      Assert.assertTrue(lock1.hasLock());
+      Assert.assertFalse(lock2.tryAcquire());
+      Assert.assertFalse(lock2.tryAcquire(100));
+      Assert.assertEquals(0, lock1.getQueueLength());
+
+      lock1.release();
+      Assert.assertFalse(lock1.hasLock());
+      Assert.assertTrue(lock2.tryAcquire(100));
+
+      try
+      {
+        lock1.release();
+        Assert.fail();
+      }
+      catch (IllegalMonitorStateException ex)
+      {
+        // expected
+      }
+      lock2.release();
+
+      // handed over to the next waiter once expired
+      lock1.acquire(300);
+      long start = System.currentTimeMillis();
+      Assert.assertTrue(lock2.tryAcquire(5000));
+      Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+      Assert.assertFalse(lock1.hasLock());
+      lock2.release();
+    }
+    finally
+    {
+      lockMgr.deleteFairLock("myTestLock");
+    }
+  }
+
+  @Test
+  public void testFifo() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedFairLock holder = lockMgr.newFairLock("myTestLock");
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+    try
+    {
+      holder.acquire();
+
+      // queue up one at a time, so the tickets are in order
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i=0; i<5; i++)
+      {
+        int index = i;
+        DistributedFairLock lock = lockMgr.newFairLock("myTestLock");
+        futures.add(executor.submit(() ->
+        {
+          lock.acquire();
+          order.add(index);
+          lock.release();
+        }));
+        while (holder.getQueueLength() < i+1)
+        {
+          Thread.sleep(10);
+        }
+      }
+
+      holder.release();
+      for (Future<?> future : futures)
+      {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+      Assert.assertTrue(holder.tryAcquire());
+      holder.release();
+    }
+    finally
+    {
+      executor.shutdownNow();
+      lockMgr.deleteFairLock("myTestLock");
+    }
+  }
+}
@@ -2,6 +2,8 @@ package com.weikai77.fdb.util.concurrent;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -147,4 +149,101 @@ public class DistributedQueueTestIT
     Assert.assertEquals(0l, queue.size());
     Assert.assertNull(queue.poll());
   }
+
+  @Test
+  public void testTransfer() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue source = queueMgr.getQueue("myTestQueue");
+    DistributedQueue target = queueMgr.createQueue("myTargetQueue", 1);
+    try
+    {
+      Assert.assertNull(source.transfer(target));
+
+      source.offer("foo".getBytes());
+      source.offer("bar".getBytes());
+      Assert.assertArrayEquals("FOO".getBytes(), 
+          source.transfer(target, item -> new String(item).toUpperCase().getBytes()));
+      Assert.assertEquals(1l, source.size());
+      Assert.assertEquals(1l, target.size());
+
+      // target is full, so nothing moves
+      Assert.assertNull(source.transfer(target));
+      Assert.assertEquals(1l, source.size());
+      Assert.assertEquals(1l, target.size());
+
+      Assert.assertArrayEquals("FOO".getBytes(), target.poll());
+      Assert.assertArrayEquals("bar".getBytes(), source.transfer(target));
+      Assert.assertTrue(source.isEmpty());
+      Assert.assertArrayEquals("bar".getBytes(), target.poll());
+
+      // another manager, with its own database
+      DistributedQueue other = TestUtils.getTupleBasedQueueMgr().getQueue("myTargetQueue");
+      try
+      {
+        source.transfer(other);
+        Assert.fail("Should have failed but did not");
+      }
+      catch (IllegalArgumentException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTargetQueue");
+    }
+  }
+
+  @Test
+  public void testReadByOffset() throws Exception
+  {
+    DistributedQueue queue = TestUtils.getTupleBasedQueueMgr().getQueue("myTestQueue");
+    for (int i=0; i<10; i++)
+    {
+      queue.offer(("item" + i).getBytes());
+    }
+    queue.poll();
+
+    Assert.assertNull(queue.get(0));
+    Assert.assertArrayEquals("item5".getBytes(), queue.get(5));
+    Assert.assertNull(queue.get(10));
+
+    NavigableMap<Long,byte[]> items = queue.range(0, 4);
+    Assert.assertEquals(3, items.size());
+    Assert.assertEquals(Long.valueOf(1), items.firstKey());
+    Assert.assertArrayEquals("item3".getBytes(), items.get(3l));
+
+    // replay everything left, in pages, without removing anything
+    QueueCursor cursor = queue.cursor(0);
+    long expected = 1;
+    NavigableMap<Long,byte[]> page;
+    while (!(page = cursor.next(4)).isEmpty())
+    {
+      for (Map.Entry<Long,byte[]> entry : page.entrySet())
+      {
+        Assert.assertEquals(expected, (long) entry.getKey());
+        Assert.assertArrayEquals(("item" + expected).getBytes(), entry.getValue());
+        ++expected;
+      }
+    }
+    Assert.assertEquals(10, expected);
+    Assert.assertEquals(10, cursor.getPosition());
+    Assert.assertEquals(9l, queue.size());
+
+    queue.offer("item10".getBytes());
+    Assert.assertArrayEquals("item10".getBytes(), cursor.next(4).get(10l));
+
+    // offsets are not reused once drained, so the cursor keeps up
+    while (queue.poll() != null);
+    Assert.assertTrue(cursor.next(4).isEmpty());
+    queue.offer("item11".getBytes());
+    List<byte[]> batch = new ArrayList<>();
+    batch.add("item12".getBytes());
+    queue.offer(batch);
+    items = cursor.next(4);
+    Assert.assertEquals(2, items.size());
+    Assert.assertArrayEquals("item11".getBytes(), items.get(11l));
+    Assert.assertArrayEquals("item12".getBytes(), items.get(12l));
+  }
 }
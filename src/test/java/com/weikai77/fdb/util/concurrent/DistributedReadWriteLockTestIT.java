@@ -7,6 +7,9 @@ import java.util.concurrent.Future;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.foundationdb.FDB;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
 import com.weikai77.fdb.util.concurrent.DistributedReadWriteLock.ReadLock;
 import com.weikai77.fdb.util.concurrent.DistributedReadWriteLock.WriteLock;
 
@@ -140,4 +143,70 @@ public class DistributedReadWriteLockTestIT
       lockMgr.deleteReadWriteLock("myTestReadWriteLock");
     }
   }
+
+  @Test
+  public void testTryLock() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedReadWriteLock rwl = lockMgr.newReadWriteLock("myTestReadWriteLock");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try
+    {
+      ReadLock readLock = rwl.readLock();
+      WriteLock writeLock = rwl.writeLock();
+
+      Assert.assertTrue(readLock.tryLock());
+      Assert.assertFalse(writeLock.tryLock());
+      Assert.assertTrue(readLock.tryLock());
+      readLock.unlock();
+
+      // upgrade atomically
+      boolean upgraded = FDB.selectAPIVersion(200).open().run(new Function<Transaction,Boolean>()
+      {
+        @Override
+        public Boolean apply(Transaction tr)
+        {
+          readLock.unlock(tr);
+          return writeLock.tryLock(tr);
+        }
+      });
+      Assert.assertTrue(upgraded);
+      Assert.assertEquals(0, rwl.getReaderCount());
+      Assert.assertEquals(1, rwl.getWriterCount());
+      Assert.assertFalse(readLock.tryLock());
+
+      // a blocked reader is counted as waiting, and admitted on unlock
+      Future<?> reader = executor.submit(() ->
+      {
+        readLock.lock();
+        return null;
+      });
+      while (rwl.getWaitingReaderCount() < 1)
+      {
+        Thread.sleep(10);
+      }
+      writeLock.unlock();
+      reader.get();
+      Assert.assertEquals(1, rwl.getReaderCount());
+      Assert.assertEquals(0, rwl.getWaitingReaderCount());
+      readLock.unlock();
+      Assert.assertEquals(0, rwl.getReaderCount());
+
+      try
+      {
+        readLock.unlock();
+        Assert.fail();
+      }
+      catch (IllegalMonitorStateException ex)
+      {
+        // expected
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+      lockMgr.deleteReadWriteLock("myTestReadWriteLock");
+    }
+  }
 }
@@ -0,0 +1,169 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class DistributedScheduledExecutorServiceTestIT
+{
+  @Test
+  public void testSchedule() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedScheduledExecutorService client = queueMgr.createScheduledExecutorService("myScheduler", 0);
+    DistributedScheduledExecutorService worker1 = queueMgr.getScheduledExecutorService("myScheduler", 1);
+    DistributedScheduledExecutorService worker2 = queueMgr.getScheduledExecutorService("myScheduler", 1);
+    try
+    {
+      long startTime = System.currentTimeMillis();
+      ScheduledFuture<Long> late = client.schedule(new Now(), 2, TimeUnit.SECONDS);
+      ScheduledFuture<Long> early = client.schedule(new Now(), 500, TimeUnit.MILLISECONDS);
+      Assert.assertTrue(early.getDelay(TimeUnit.MILLISECONDS) <= 500);
+      Assert.assertTrue(early.compareTo(late) < 0);
+
+      long earlyTime = early.get(10, TimeUnit.SECONDS);
+      long lateTime = late.get(10, TimeUnit.SECONDS);
+      Assert.assertTrue(earlyTime - startTime >= 500);
+      Assert.assertTrue(lateTime - startTime >= 2000);
+
+      ScheduledFuture<Long> cancelled = client.schedule(new Now(), 1, TimeUnit.HOURS);
+      Assert.assertTrue(cancelled.cancel(false));
+      Assert.assertTrue(cancelled.isCancelled());
+    }
+    finally
+    {
+      client.shutdown();
+      worker1.shutdown();
+      worker2.shutdown();
+      worker1.awaitTermination(10, TimeUnit.SECONDS);
+      worker2.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myScheduler");
+    }
+  }
+
+  @Test
+  public void testFixedRate() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedScheduledExecutorService worker1 = queueMgr.createScheduledExecutorService("myScheduler", 1);
+    DistributedScheduledExecutorService worker2 = queueMgr.getScheduledExecutorService("myScheduler", 1);
+    DistributedQueue ticks = queueMgr.createQueue("myTicks");
+    try
+    {
+      ScheduledFuture<?> f = worker1.scheduleAtFixedRate(new Tick(), 0, 200, TimeUnit.MILLISECONDS);
+      Thread.sleep(1100);
+      Assert.assertTrue(f.cancel(false));
+      Thread.sleep(500);
+
+      // each firing ran exactly once, on either node
+      long count = ticks.size();
+      Assert.assertTrue("Ticks: " + count, count >= 4 && count <= 7);
+      Thread.sleep(500);
+      Assert.assertEquals(count, ticks.size());
+    }
+    finally
+    {
+      worker1.shutdown();
+      worker2.shutdown();
+      worker1.awaitTermination(10, TimeUnit.SECONDS);
+      worker2.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myScheduler");
+      queueMgr.deleteQueue("myTicks");
+    }
+  }
+
+  @Test
+  public void testFixedRateOverrun() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedScheduledExecutorService worker1 = queueMgr.createScheduledExecutorService("myScheduler", 2);
+    DistributedScheduledExecutorService worker2 = queueMgr.getScheduledExecutorService("myScheduler", 2);
+    DistributedQueue ticks = queueMgr.createQueue("myTicks");
+    try
+    {
+      // runs for longer than its period
+      ScheduledFuture<?> f = worker1.scheduleAtFixedRate(new SlowTick(), 0, 100, TimeUnit.MILLISECONDS);
+      Thread.sleep(1500);
+      f.cancel(false);
+      Thread.sleep(500);
+
+      // the firings never overlapped
+      List<byte[]> items = new ArrayList<>();
+      byte[] item;
+      while ((item = ticks.poll()) != null)
+      {
+        items.add(item);
+      }
+      Assert.assertTrue("Ticks: " + items.size(), items.size() >= 4 && items.size() % 2 == 0);
+      for (int i=0; i<items.size(); i++)
+      {
+        Assert.assertEquals(i % 2 == 0 ? "start" : "end", FdbUtils.decodeString(items.get(i)));
+      }
+    }
+    finally
+    {
+      worker1.shutdown();
+      worker2.shutdown();
+      worker1.awaitTermination(10, TimeUnit.SECONDS);
+      worker2.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myScheduler");
+      queueMgr.deleteQueue("myTicks");
+    }
+  }
+
+  private static class Now implements Callable<Long>, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long call()
+    {
+      return System.currentTimeMillis();
+    }
+  }
+
+  private static class Tick implements Runnable, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void run()
+    {
+      TestUtils.getTupleBasedQueueMgr().getQueue("myTicks").offer(FdbUtils.encode("tick"));
+    }
+  }
+
+  private static class SlowTick implements Runnable, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void run()
+    {
+      DistributedQueue ticks = TestUtils.getTupleBasedQueueMgr().getQueue("myTicks");
+      ticks.offer(FdbUtils.encode("start"));
+      try
+      {
+        Thread.sleep(300);
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+      ticks.offer(FdbUtils.encode("end"));
+    }
+  }
+}
@@ -1,8 +1,12 @@
 package com.weikai77.fdb.util.concurrent;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.foundationdb.FDB;
 import com.weikai77.util.SettableClock;
 
 /**
@@ -235,4 +239,79 @@ public class DistributedSimpleLockTestIT
       Assert.assertFalse(lock2.hasLock());
     }
   }
+
+  @Test
+  public void testWaiterTakesOverExpiredLock() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedSimpleLock lock1 = lockMgr.newSimpleLock("myTestLock");
+    DistributedSimpleLock lock2 = lockMgr.newSimpleLock("myTestLock");
+
+    try
+    {
+      lock1.acquire(500);
+
+      // woken up by the expiry of lock1, not by a write
+      long start = System.currentTimeMillis();
+      lock2.acquire();
+      long elapsed = System.currentTimeMillis() - start;
+      Assert.assertTrue(lock2.hasLock());
+      Assert.assertFalse(lock1.hasLock());
+      Assert.assertTrue(elapsed < 2000);
+
+      // same within a timeout
+      lock2.acquire(300);
+      Assert.assertTrue(lock1.tryAcquire(5000, 0));
+      Assert.assertTrue(lock1.hasLock());
+    }
+    finally
+    {
+      lockMgr.deleteSimpleLock("myTestLock");
+    }
+  }
+
+  @Test
+  public void testKeepalive() throws Exception
+  {
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedSimpleLock lock1 = lockMgr.newSimpleLock("myTestLock");
+    DistributedSimpleLock lock2 = lockMgr.newSimpleLock("myTestLock");
+    LockKeepalive keepalive = new LockKeepalive(FDB.selectAPIVersion(200).open(), 
+        50, TimeUnit.MILLISECONDS, 10);
+    AtomicBoolean lost = new AtomicBoolean();
+    keepalive.start();
+
+    try
+    {
+      lock1.acquire(300);
+      keepalive.register(lock1, 300, lock -> lost.set(true));
+
+      // renewed well past the TTL
+      Thread.sleep(1000);
+      Assert.assertTrue(lock1.hasLock());
+      Assert.assertFalse(lock2.tryAcquire());
+
+      // expires once unregistered
+      Assert.assertTrue(keepalive.unregister(lock1));
+      Assert.assertTrue(lock2.tryAcquire(2000, 0));
+      Assert.assertFalse(lock1.hasLock());
+      Assert.assertFalse(lost.get());
+
+      // lost once taken over
+      lock2.release();
+      lock1.acquire(300);
+      keepalive.register(lock1, 300, lock -> lost.set(true));
+      lock1.release();
+      lock2.acquire();
+      Thread.sleep(200);
+      Assert.assertTrue(lost.get());
+      Assert.assertEquals(0, keepalive.size());
+    }
+    finally
+    {
+      keepalive.shutdown();
+      keepalive.awaitTermination(10, TimeUnit.SECONDS);
+      lockMgr.deleteSimpleLock("myTestLock");
+    }
+  }
 }
@@ -0,0 +1,97 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.concurrent.MultiQueueConsumer.Item;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class MultiQueueConsumerTestIT
+{
+  @Test
+  public void testWeightedConsumption() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree heavy = queueMgr.createBlockingQueue("heavyQueue");
+    DistributedBlockingQueueLockFree light = queueMgr.createBlockingQueue("lightQueue");
+    try
+    {
+      for (int i=0; i<40; i++)
+      {
+        heavy.offer("heavy".getBytes());
+        light.offer("light".getBytes());
+      }
+
+      MultiQueueConsumer consumer = queueMgr.newMultiQueueConsumer();
+      consumer.addQueue(heavy, 3);
+      consumer.addQueue(light, 1);
+
+      int heavyCount = 0;
+      for (int i=0; i<40; i++)
+      {
+        Item item = consumer.poll();
+        Assert.assertNotNull(item);
+        if ("heavyQueue".equals(item.getQueueId()))
+        {
+          ++heavyCount;
+        }
+      }
+      Assert.assertEquals(30, heavyCount);
+
+      // drain the rest
+      int remaining = 0;
+      while (consumer.poll() != null)
+      {
+        ++remaining;
+      }
+      Assert.assertEquals(40, remaining);
+      Assert.assertNull(consumer.poll());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("heavyQueue");
+      queueMgr.deleteQueue("lightQueue");
+    }
+  }
+
+  @Test
+  public void testTake() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue1 = queueMgr.createBlockingQueue("queue1");
+    DistributedBlockingQueueLockFree queue2 = queueMgr.createBlockingQueue("queue2");
+    try
+    {
+      MultiQueueConsumer consumer = queueMgr.newMultiQueueConsumer();
+      consumer.addQueue(queue1, 1);
+      consumer.addQueue(queue2, 1);
+      Assert.assertNull(consumer.take(100, TimeUnit.MILLISECONDS));
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      Future<Item> f = executor.submit(() -> consumer.take());
+      Thread.sleep(200);
+      Assert.assertFalse(f.isDone());
+
+      byte[] foo = "foo".getBytes();
+      queue2.offer(foo);
+      Item item = f.get(10, TimeUnit.SECONDS);
+      Assert.assertEquals("queue2", item.getQueueId());
+      Assert.assertArrayEquals(foo, item.getValue());
+      Assert.assertTrue(queue2.isEmpty());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("queue1");
+      queueMgr.deleteQueue("queue2");
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.util.SettableClock;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueueAffinityMgrTestIT
+{
+  @Test
+  public void testSingleOwner() throws Exception
+  {
+    SettableClock clock = new SettableClock(System.currentTimeMillis());
+    DistributedGroupMgr mgr = TestUtils.getTupleBasedGroupMgr(clock);
+    DistributedGroup group = mgr.createGroup("myTestGroup", 60_000);
+    GroupKeyMapper mapper1 = new GroupKeyMapper(mgr.getGroup("myTestGroup"), 3, 500l);
+    GroupKeyMapper mapper2 = new GroupKeyMapper(mgr.getGroup("myTestGroup"), 3, 500l);
+    Set<String> running1 = ConcurrentHashMap.newKeySet();
+    Set<String> running2 = ConcurrentHashMap.newKeySet();
+    QueueAffinityMgr affinity1 = new QueueAffinityMgr(mapper1, "node1", id ->
+    {
+      running1.add(id);
+      return () -> running1.remove(id);
+    });
+    QueueAffinityMgr affinity2 = new QueueAffinityMgr(mapper2, "node2", id ->
+    {
+      running2.add(id);
+      return () -> running2.remove(id);
+    });
+
+    try
+    {
+      group.join("node1");
+      mapper1.start();
+      mapper2.start();
+      affinity1.start();
+      affinity2.start();
+      for (int i=0; i<20; i++)
+      {
+        affinity1.addQueue("queue" + i);
+        affinity2.addQueue("queue" + i);
+      }
+
+      // node1 owns everything
+      waitFor(() -> running1.size() == 20 && running2.isEmpty());
+
+      // ownership is split once node2 joins
+      group.join("node2");
+      waitFor(() -> running1.size() + running2.size() == 20 &&
+          !running1.isEmpty() && !running2.isEmpty());
+      for (int i=0; i<20; i++)
+      {
+        Assert.assertTrue(running1.contains("queue" + i) ^ running2.contains("queue" + i));
+      }
+
+      // and moves back once node2 leaves
+      group.leave("node2");
+      waitFor(() -> running1.size() == 20 && running2.isEmpty());
+
+      affinity1.shutdown();
+      Assert.assertTrue(affinity1.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertTrue(running1.isEmpty());
+    }
+    finally
+    {
+      affinity1.shutdown();
+      affinity2.shutdown();
+      mapper1.shutdown();
+      mapper2.shutdown();
+      mgr.deleteGroup("myTestGroup");
+    }
+  }
+
+  private static void waitFor(BooleanSupplier condition)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.getAsBoolean())
+    {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+}
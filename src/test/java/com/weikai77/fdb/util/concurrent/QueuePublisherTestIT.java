@@ -0,0 +1,181 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueuePublisherTestIT
+{
+  @Test
+  public void testPublish() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue = queueMgr.createBlockingQueue("myTestQueue");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try
+    {
+      for (int i=0; i<5; i++)
+      {
+        queue.offer(FdbUtils.encode("item" + i));
+      }
+
+      List<String> received = new ArrayList<>();
+      CountDownLatch latch = new CountDownLatch(8);
+      QueuePublisher publisher = new QueuePublisher(queue, 3, executor);
+      publisher.subscribe(new Subscriber<byte[]>()
+      {
+        public void onSubscribe(Subscription s) { s.request(8); }
+        public void onNext(byte[] item)
+        {
+          received.add(FdbUtils.decodeString(item));
+          latch.countDown();
+        }
+        public void onError(Throwable t) {}
+        public void onComplete() {}
+      });
+
+      // the last items arrive through the watch
+      Thread.sleep(200);
+      for (int i=5; i<10; i++)
+      {
+        queue.offer(FdbUtils.encode("item" + i));
+      }
+      Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+      for (int i=0; i<8; i++)
+      {
+        Assert.assertEquals("item" + i, received.get(i));
+      }
+
+      // demand is honoured exactly
+      Thread.sleep(200);
+      Assert.assertEquals(8, received.size());
+      Assert.assertEquals(2l, queue.size());
+    }
+    finally
+    {
+      executor.shutdownNow();
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testRequestWhileWaiting() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue = queueMgr.createBlockingQueue("myTestQueue");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    AtomicInteger drains = new AtomicInteger();
+    Executor counting = new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      {
+        drains.incrementAndGet();
+        executor.execute(command);
+      }
+    };
+
+    try
+    {
+      List<String> received = new ArrayList<>();
+      CountDownLatch latch = new CountDownLatch(1);
+      Subscription[] subscription = new Subscription[1];
+      new QueuePublisher(queue, 3, counting).subscribe(new Subscriber<byte[]>()
+      {
+        public void onSubscribe(Subscription s) { subscription[0] = s; }
+        public void onNext(byte[] item)
+        {
+          received.add(FdbUtils.decodeString(item));
+          latch.countDown();
+        }
+        public void onError(Throwable t) {}
+        public void onComplete() {}
+      });
+
+      // a second request while the watch is outstanding does not poll again
+      subscription[0].request(1);
+      Thread.sleep(200);
+      subscription[0].request(1);
+      Thread.sleep(500);
+      Assert.assertTrue(drains.get() <= 2);
+
+      queue.offer(FdbUtils.encode("item"));
+      Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals("item", received.get(0));
+      subscription[0].cancel();
+    }
+    finally
+    {
+      executor.shutdownNow();
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testSubscribe() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try
+    {
+      QueueSubscriber subscriber = new QueueSubscriber(queue, 4, 10, executor);
+      Publisher<byte[]> source = new Publisher<byte[]>()
+      {
+        public void subscribe(Subscriber<? super byte[]> s)
+        {
+          s.onSubscribe(new Subscription()
+          {
+            private int _next = 0;
+
+            public synchronized void request(long n)
+            {
+              for (long i=0; i<n && _next<10; i++)
+              {
+                s.onNext(FdbUtils.encode("item" + _next++));
+              }
+              if (_next == 10)
+              {
+                s.onComplete();
+              }
+            }
+            public void cancel() {}
+          });
+        }
+      };
+
+      source.subscribe(subscriber);
+      subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+
+      Assert.assertEquals(10l, queue.size());
+      for (int i=0; i<10; i++)
+      {
+        Assert.assertEquals("item" + i, FdbUtils.decodeString(queue.poll()));
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.util.SettableClock;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueueStatsTestIT
+{
+  @Test
+  public void testUnbounded() throws Exception
+  {
+    testStats(0);
+  }
+
+  @Test
+  public void testBounded() throws Exception
+  {
+    testStats(100);
+  }
+
+  private void testStats(long capacity) throws Exception
+  {
+    // start on a second boundary, so the rate buckets are predictable
+    SettableClock clock = new SettableClock(System.currentTimeMillis() / 1000 * 1000);
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr(clock);
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", capacity);
+    DistributedQueue other = queueMgr.createQueue("myOtherTestQueue", capacity);
+    try
+    {
+      queue.offer("item0".getBytes());
+      clock.tick(2_000);
+      queue.offer(Arrays.asList("item1".getBytes(), "item2".getBytes(), "item3".getBytes()));
+      other.offer("item".getBytes());
+      clock.tick(1_000);
+
+      QueueStats stats = queue.getStats();
+      Assert.assertEquals(4, stats.getDepth());
+      Assert.assertEquals(20, stats.getBytes());
+      Assert.assertEquals(3_000, stats.oldestItemAge());
+      Assert.assertEquals(0.4, stats.enqueueRate(), 0.001);
+      Assert.assertEquals(0.0, stats.dequeueRate(), 0.001);
+
+      // the head moves, and so does the oldest item
+      Assert.assertArrayEquals("item0".getBytes(), queue.poll());
+      Assert.assertEquals(2, queue.poll(2).size());
+      clock.tick(1_000);
+      stats = queue.getStats();
+      Assert.assertEquals(1, stats.getDepth());
+      Assert.assertEquals(5, stats.getBytes());
+      Assert.assertEquals(2_000, stats.oldestItemAge());
+      Assert.assertEquals(0.3, stats.dequeueRate(), 0.001);
+
+      // and the age drops to 0 once drained
+      queue.poll();
+      Assert.assertEquals(0, queue.oldestItemAge());
+
+      // rates leave the window
+      clock.tick(60_000);
+      Assert.assertEquals(0.0, queue.enqueueRate(), 0.001);
+
+      // all queues at once
+      Map<String,QueueStats> all = queueMgr.getStats();
+      Assert.assertEquals(0, all.get("myTestQueue").getDepth());
+      Assert.assertEquals(4, all.get("myTestQueue").getDequeued());
+      Assert.assertEquals(1, all.get("myOtherTestQueue").getDepth());
+      Assert.assertEquals(64_000, all.get("myOtherTestQueue").oldestItemAge());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+      queueMgr.deleteQueue("myOtherTestQueue");
+    }
+
+    Assert.assertFalse(queueMgr.getStats().containsKey("myTestQueue"));
+  }
+}
@@ -0,0 +1,67 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueueSubscriptionTestIT
+{
+  @Test
+  public void testSubscribe() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue = queueMgr.createBlockingQueue("myTestQueue");
+    try
+    {
+      // items offered before subscribing are drained right away
+      for (int i=0; i<5; i++)
+      {
+        queue.offer(FdbUtils.encode("item" + i));
+      }
+
+      Set<String> received = ConcurrentHashMap.newKeySet();
+      CountDownLatch latch = new CountDownLatch(10);
+      QueueSubscription subscription = queue.subscribe(item ->
+      {
+        received.add(FdbUtils.decodeString(item));
+        latch.countDown();
+      }, 3);
+
+      // the rest are pushed through the change monitor
+      Thread.sleep(200);
+      for (int i=5; i<10; i++)
+      {
+        queue.offer(FdbUtils.encode("item" + i));
+      }
+      Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+      for (int i=0; i<10; i++)
+      {
+        Assert.assertTrue(received.contains("item" + i));
+      }
+      Assert.assertEquals(0l, queue.size());
+
+      // nothing is taken once cancelled
+      subscription.cancel();
+      Assert.assertTrue(subscription.awaitTermination(10, TimeUnit.SECONDS));
+      queue.offer(FdbUtils.encode("item10"));
+      Thread.sleep(200);
+      Assert.assertEquals(1l, queue.size());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+      queueMgr.shutdown();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foundationdb.Database;
+import com.foundationdb.FDB;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.weikai77.util.SettableClock;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueueTtlTestIT
+{
+  @Test
+  public void testUnbounded() throws Exception
+  {
+    testTtl(0);
+  }
+
+  @Test
+  public void testBounded() throws Exception
+  {
+    testTtl(100);
+  }
+
+  @Test
+  public void testUnboundedManyExpired() throws Exception
+  {
+    testManyExpired(0);
+  }
+
+  @Test
+  public void testBoundedManyExpired() throws Exception
+  {
+    testManyExpired(10_000);
+  }
+
+  private void testManyExpired(long capacity) throws Exception
+  {
+    Database db = FDB.selectAPIVersion(200).open();
+    SettableClock clock = new SettableClock(System.currentTimeMillis());
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr(clock);
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", capacity, 10, TimeUnit.SECONDS);
+    try
+    {
+      int expired = DistributedQueue.MAX_DROPPED_PER_POLL * 2 + 10;
+      for (int i=0; i<expired; i+=100)
+      {
+        List<byte[]> items = new ArrayList<>();
+        for (int j=i; j<Math.min(i+100, expired); j++)
+        {
+          items.add(("item" + j).getBytes());
+        }
+        queue.offer(items);
+      }
+      queue.offer("live".getBytes(), 0, TimeUnit.SECONDS);
+      clock.tick(20_000);
+
+      // a single transaction gives up after dropping enough items
+      byte[] item = db.run(new Function<Transaction,byte[]>()
+      {
+        @Override
+        public byte[] apply(Transaction tr)
+        {
+          return queue.poll(tr);
+        }
+      });
+      Assert.assertNull(item);
+      Assert.assertEquals(expired - DistributedQueue.MAX_DROPPED_PER_POLL + 1, queue.size());
+
+      // the others poll again
+      Assert.assertArrayEquals("live".getBytes(), queue.poll());
+      Assert.assertEquals(0l, queue.size());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  private void testTtl(long capacity) throws Exception
+  {
+    SettableClock clock = new SettableClock(System.currentTimeMillis());
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr(clock);
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", capacity, 10, TimeUnit.SECONDS);
+    try
+    {
+      // the queue's TTL, and an item of its own
+      queue.offer("item0".getBytes());
+      queue.offer("item1".getBytes(), 1, TimeUnit.SECONDS);
+      queue.offer("item2".getBytes(), 0, TimeUnit.SECONDS);
+      clock.tick(5_000);
+      queue.offer("item3".getBytes());
+
+      Assert.assertArrayEquals("item0".getBytes(), queueMgr.getQueue("myTestQueue").get(0));
+      Assert.assertArrayEquals("item0".getBytes(), queue.poll());
+
+      // item1 is skipped
+      Assert.assertArrayEquals("item2".getBytes(), queue.poll());
+
+      // item3 expires after its queue TTL
+      clock.tick(20_000);
+      Assert.assertNull(queue.poll());
+      Assert.assertEquals(0l, queue.size());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+
+    queue = queueMgr.createQueue("myTestQueue", capacity, 10, TimeUnit.SECONDS);
+    try
+    {
+      for (int i=0; i<20; i++)
+      {
+        if (i % 5 == 0)
+        {
+          queue.offer(("item" + i).getBytes(), 0, TimeUnit.SECONDS);
+        }
+        else
+        {
+          queue.offer(("item" + i).getBytes());
+        }
+      }
+
+      Assert.assertEquals(0, queue.purgeExpired());
+      clock.tick(20_000);
+      Assert.assertEquals(16, queue.purgeExpired());
+
+      // only the items that never expire are left
+      List<byte[]> items = queue.poll(10);
+      Assert.assertEquals(4, items.size());
+      for (int i=0; i<4; i++)
+      {
+        Assert.assertArrayEquals(("item" + i*5).getBytes(), items.get(i));
+      }
+      Assert.assertNull(queue.poll());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+}
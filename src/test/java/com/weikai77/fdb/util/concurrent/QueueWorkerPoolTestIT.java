@@ -0,0 +1,71 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class QueueWorkerPoolTestIT
+{
+  @Test
+  public void testHandleAndRetry() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedBlockingQueueLockFree queue = queueMgr.createBlockingQueue("myTestQueue");
+    try
+    {
+      for (int i=0; i<20; i++)
+      {
+        queue.offer(FdbUtils.encode("item" + i));
+      }
+
+      // item3 always fails, item5 only fails the first time
+      Set<String> handled = ConcurrentHashMap.newKeySet();
+      AtomicInteger item5Attempts = new AtomicInteger();
+      QueueWorkerPool pool = queueMgr.newQueueWorkerPool(queue, item ->
+      {
+        String s = FdbUtils.decodeString(item);
+        if (s.equals("item3") || (s.equals("item5") && item5Attempts.incrementAndGet() == 1))
+        {
+          throw new RuntimeException("Failed: " + s);
+        }
+        handled.add(s);
+      }, 4, 8, 10000, 2);
+
+      long deadline = System.currentTimeMillis() + 20000;
+      while (pool.getDeadLetterQueue().size() == 0 && System.currentTimeMillis() < deadline)
+      {
+        Thread.sleep(100);
+      }
+
+      pool.shutdown();
+      Assert.assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+      Assert.assertEquals(19, handled.size());
+      Assert.assertFalse(handled.contains("item3"));
+      Assert.assertEquals(0l, queue.size());
+      Assert.assertEquals("item3", FdbUtils.decodeString(pool.getDeadLetterQueue().poll()));
+
+      QueueWorkerPool.Metrics metrics = pool.getMetrics();
+      Assert.assertEquals(19, metrics.getSucceeded());
+      Assert.assertEquals(3, metrics.getFailed());
+      Assert.assertEquals(1, metrics.getDeadLettered());
+      Assert.assertEquals(2, metrics.getRedelivered());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+      queueMgr.shutdown();
+    }
+  }
+}
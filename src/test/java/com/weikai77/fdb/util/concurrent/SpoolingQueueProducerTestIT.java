@@ -0,0 +1,181 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class SpoolingQueueProducerTestIT
+{
+  @Test
+  public void testDrain() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue");
+    File file = File.createTempFile("spool", ".dat");
+    file.delete();
+
+    // small enough to wrap around a few times
+    SpoolingQueueProducer producer = new SpoolingQueueProducer(queue, file, 4096, 10);
+    producer.start();
+    try
+    {
+      List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+      for (int i=0; i<500; i++)
+      {
+        CompletableFuture<Boolean> ack = producer.offer(FdbUtils.encode("item" + i));
+        acks.add(ack);
+        if (i % 50 == 49)
+        {
+          // let the drainer catch up
+          ack.join();
+          waitFor(() -> queue.size() == acks.size());
+        }
+      }
+      for (CompletableFuture<Boolean> ack : acks)
+      {
+        Assert.assertTrue(ack.join());
+      }
+
+      producer.shutdown();
+      Assert.assertTrue(producer.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertEquals(500l, queue.size());
+      for (int i=0; i<500; i++)
+      {
+        Assert.assertArrayEquals(FdbUtils.encode("item" + i), queue.poll());
+      }
+    }
+    finally
+    {
+      producer.shutdown();
+      queueMgr.deleteQueue("myTestQueue");
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testRecover() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", 2);
+    File file = File.createTempFile("spool", ".dat");
+    file.delete();
+
+    SpoolingQueueProducer producer = new SpoolingQueueProducer(queue, file, 1 << 20, 10);
+    producer.start();
+    try
+    {
+      // acknowledged once spooled, even though the queue is full
+      List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+      for (int i=0; i<5; i++)
+      {
+        acks.add(producer.offer(FdbUtils.encode("item" + i)));
+      }
+      for (CompletableFuture<Boolean> ack : acks)
+      {
+        Assert.assertTrue(ack.get(10, TimeUnit.SECONDS));
+      }
+
+      waitFor(() -> queue.size() == 2);
+      producer.shutdown();
+      Assert.assertTrue(producer.awaitTermination(10, TimeUnit.SECONDS));
+
+      // the rest is drained by the next producer
+      Assert.assertArrayEquals(FdbUtils.encode("item0"), queue.poll());
+      Assert.assertArrayEquals(FdbUtils.encode("item1"), queue.poll());
+      producer = new SpoolingQueueProducer(queue, file, 1 << 20, 10);
+      producer.start();
+      for (int i=2; i<5; i++)
+      {
+        byte[] item = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((item = queue.poll()) == null)
+        {
+          Assert.assertTrue(System.currentTimeMillis() < deadline);
+          Thread.sleep(50);
+        }
+        Assert.assertArrayEquals(FdbUtils.encode("item" + i), item);
+      }
+    }
+    finally
+    {
+      producer.shutdown();
+      producer.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myTestQueue");
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testDrainerFailure() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue", 1);
+    File file = File.createTempFile("spool", ".dat");
+    file.delete();
+
+    SpoolingQueueProducer producer = new SpoolingQueueProducer(queue, file, 1 << 20, 10);
+    producer.start();
+    try
+    {
+      Assert.assertTrue(producer.offer(FdbUtils.encode("item0")).get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(producer.offer(FdbUtils.encode("item1")).get(10, TimeUnit.SECONDS));
+      waitFor(() -> queue.size() == 1);
+
+      // corrupt the CRC of the second record, which the drainer retries
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+      {
+        raf.seek(16 + 12 + 5 + 8);
+        raf.writeInt(0);
+      }
+
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (true)
+      {
+        try
+        {
+          producer.offer(FdbUtils.encode("item2")).get(10, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+          Assert.assertTrue(ex.getCause() instanceof IllegalStateException);
+          break;
+        }
+        Assert.assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(50);
+      }
+    }
+    finally
+    {
+      producer.shutdown();
+      producer.awaitTermination(10, TimeUnit.SECONDS);
+      queueMgr.deleteQueue("myTestQueue");
+      file.delete();
+    }
+  }
+
+  private static void waitFor(BooleanSupplier condition)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.getAsBoolean())
+    {
+      Assert.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+  }
+}
@@ -29,10 +29,16 @@ public class TestUtils
   }
 
   public static DistributedQueueMgr getTupleBasedQueueMgr()
+  {
+    return getTupleBasedQueueMgr(SystemClock.getInstance());
+  }
+
+  public static DistributedQueueMgr getTupleBasedQueueMgr(Clock clock)
   {
     FDB fdb = FDB.selectAPIVersion(200);
     Database db = fdb.open();
-    return new DistributedQueueMgr(db, new TupleBasedSpace("test", "queues"), getLockMgr());
+    return new DistributedQueueMgr(db, new TupleBasedSpace("test", "queues"), getLockMgr(),
+        clock);
   }
   
   public static DistributedQueueMgr getDirectoryBasedQueueMgr()
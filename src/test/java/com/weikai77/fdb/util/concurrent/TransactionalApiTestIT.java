@@ -0,0 +1,90 @@
+package com.weikai77.fdb.util.concurrent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.foundationdb.Database;
+import com.foundationdb.FDB;
+import com.foundationdb.Transaction;
+import com.foundationdb.async.Function;
+import com.weikai77.fdb.util.FdbUtils;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class TransactionalApiTestIT
+{
+  @Test
+  public void testAtomicAcrossPrimitives() throws Exception
+  {
+    Database db = FDB.selectAPIVersion(200).open();
+    DistributedLockMgr lockMgr = TestUtils.getLockMgr();
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue");
+    DistributedCountDownLatch latch = lockMgr.newCountDownLatch("myTestCountDownLatch");
+    DistributedSimpleLock lock = lockMgr.newSimpleLock("myTestLock");
+
+    try
+    {
+      queue.offer(FdbUtils.encode("item"));
+      latch.setCount(1);
+
+      // poll, count down and lock in a single transaction
+      byte[] item = db.run(new Function<Transaction,byte[]>()
+      {
+        @Override
+        public byte[] apply(Transaction tr)
+        {
+          if (!lock.tryAcquire(tr))
+          {
+            return null;
+          }
+          byte[] value = queue.poll(tr);
+          latch.countDown(tr);
+          return value;
+        }
+      });
+
+      Assert.assertArrayEquals(FdbUtils.encode("item"), item);
+      Assert.assertEquals(0l, queue.size());
+      Assert.assertEquals(0, latch.getCount());
+      Assert.assertTrue(lock.hasLock());
+
+      // none of the changes is visible if the transaction aborts
+      queue.offer(FdbUtils.encode("item"));
+      latch.setCount(1);
+      try
+      {
+        db.run(new Function<Transaction,Void>()
+        {
+          @Override
+          public Void apply(Transaction tr)
+          {
+            queue.poll(tr);
+            latch.countDown(tr);
+            lock.release(tr);
+            throw new IllegalStateException("abort");
+          }
+        });
+        Assert.fail();
+      }
+      catch (IllegalStateException ex)
+      {
+        // expected
+      }
+
+      Assert.assertEquals(1l, queue.size());
+      Assert.assertEquals(1, latch.getCount());
+      Assert.assertTrue(lock.hasLock());
+      lock.release();
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+      lockMgr.deleteCountDownLatch("myTestCountDownLatch");
+      lockMgr.deleteSimpleLock("myTestLock");
+    }
+  }
+}
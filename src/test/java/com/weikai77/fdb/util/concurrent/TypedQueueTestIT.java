@@ -0,0 +1,84 @@
+package com.weikai77.fdb.util.concurrent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.util.BufferPool;
+
+/**
+ *
+ * @author kwei
+ *
+ */
+public class TypedQueueTestIT
+{
+  private static final Codec<String> STRING_CODEC = new Codec<String>()
+  {
+    @Override
+    public void encode(String value, ByteBuffer buffer)
+    {
+      buffer.put(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String decode(ByteBuffer buffer)
+    {
+      return new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining(), StandardCharsets.UTF_8);
+    }
+  };
+
+  @Test
+  public void testByteBuffer() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    DistributedQueue queue = queueMgr.createQueue("myTestQueue");
+    try
+    {
+      // only the remaining bytes are offered, and the buffer is left as is
+      ByteBuffer buffer = ByteBuffer.wrap("xxitem0".getBytes());
+      buffer.position(2);
+      Assert.assertTrue(queue.offer(buffer));
+      Assert.assertEquals(2, buffer.position());
+      queue.offer("item1".getBytes());
+
+      ByteBuffer polled = queue.pollBuffer();
+      Assert.assertEquals(ByteBuffer.wrap("item0".getBytes()), polled);
+      Assert.assertArrayEquals("item1".getBytes(), queue.poll());
+      Assert.assertNull(queue.pollBuffer());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+
+  @Test
+  public void testTypedQueue() throws Exception
+  {
+    DistributedQueueMgr queueMgr = TestUtils.getTupleBasedQueueMgr();
+    BufferPool pool = new BufferPool(4, 4);
+    TypedQueue<String> queue = new TypedQueue<>(queueMgr.createBlockingQueue("myTestQueue", 10),
+        STRING_CODEC, pool);
+    try
+    {
+      // larger than the pooled buffers
+      String large = new String(new char[10_000]).replace('\0', 'x');
+      Assert.assertTrue(queue.offer("item0"));
+      Assert.assertTrue(queue.offer(large));
+      Assert.assertEquals(2, queue.size());
+      Assert.assertEquals(1, pool.size());
+
+      Assert.assertEquals("item0", queue.poll());
+      Assert.assertEquals(large, queue.poll());
+      Assert.assertNull(queue.poll());
+    }
+    finally
+    {
+      queueMgr.deleteQueue("myTestQueue");
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.weikai77.util;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 
+ * @author kwei
+ *
+ */
+public class BufferPoolTest
+{
+  @Test
+  public void testReuse()
+  {
+    BufferPool pool = new BufferPool(16, 2);
+    ByteBuffer buffer = pool.acquire();
+    Assert.assertEquals(16, buffer.capacity());
+    buffer.put((byte) 1);
+    pool.release(buffer);
+    Assert.assertEquals(1, pool.size());
+
+    // the same buffer, cleared
+    ByteBuffer reused = pool.acquire();
+    Assert.assertSame(buffer, reused);
+    Assert.assertEquals(0, reused.position());
+    Assert.assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testGrowAndBound()
+  {
+    BufferPool pool = new BufferPool(16, 2);
+    ByteBuffer small = pool.acquire();
+    pool.release(small);
+
+    // the small buffer gives way to a larger one
+    ByteBuffer large = pool.acquire(64);
+    Assert.assertEquals(64, large.capacity());
+    pool.release(large);
+    Assert.assertSame(large, pool.acquire());
+
+    // at most two idle buffers
+    pool.release(ByteBuffer.allocate(16));
+    pool.release(ByteBuffer.allocate(16));
+    pool.release(ByteBuffer.allocate(16));
+    Assert.assertEquals(2, pool.size());
+  }
+}
@@ -0,0 +1,90 @@
+package com.weikai77.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.weikai77.util.HashedWheelTimer.Timeout;
+
+/**
+ * 
+ * @author kwei
+ *
+ */
+public class HashedWheelTimerTest
+{
+  @Test
+  public void testExpire() throws Exception
+  {
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    try
+    {
+      CountDownLatch latch = new CountDownLatch(1);
+      long startTime = System.nanoTime();
+      // longer than one round of the wheel
+      Timeout timeout = timer.newTimeout(() -> latch.countDown(), 200, TimeUnit.MILLISECONDS);
+
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      Assert.assertTrue("Elapsed: " + elapsedMillis, elapsedMillis >= 200);
+      Assert.assertTrue(timeout.isExpired());
+      Assert.assertFalse(timeout.cancel());
+    }
+    finally
+    {
+      timer.stop();
+    }
+  }
+
+  @Test
+  public void testCancel() throws Exception
+  {
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    try
+    {
+      AtomicInteger fired = new AtomicInteger();
+      Timeout[] timeouts = new Timeout[1000];
+      for (int i=0; i<timeouts.length; i++)
+      {
+        timeouts[i] = timer.newTimeout(() -> fired.incrementAndGet(), 100 + i % 50, TimeUnit.MILLISECONDS);
+      }
+      for (int i=0; i<timeouts.length; i+=2)
+      {
+        Assert.assertTrue(timeouts[i].cancel());
+        Assert.assertFalse(timeouts[i].cancel());
+      }
+
+      CountDownLatch latch = new CountDownLatch(1);
+      timer.newTimeout(() -> latch.countDown(), 300, TimeUnit.MILLISECONDS);
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+      Assert.assertEquals(timeouts.length / 2, fired.get());
+      for (int i=0; i<timeouts.length; i++)
+      {
+        Assert.assertEquals(i % 2 == 0, timeouts[i].isCancelled());
+        Assert.assertEquals(i % 2 == 1, timeouts[i].isExpired());
+      }
+    }
+    finally
+    {
+      timer.stop();
+    }
+  }
+
+  @Test
+  public void testStop() throws Exception
+  {
+    HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 8);
+    timer.newTimeout(() -> {}, 1, TimeUnit.SECONDS);
+    timer.stop();
+    try
+    {
+      timer.newTimeout(() -> {}, 1, TimeUnit.SECONDS);
+      Assert.fail("Should have failed but did not");
+    }
+    catch (IllegalStateException ex) {}
+  }
+}